@@ -24,60 +24,83 @@
  * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
  * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
-
 package org.appspot.apprtc;
 
 import org.webrtc.VideoRenderer.I420Frame;
 
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class acts as an allocation pool meant to minimize GC churn caused by
  * frame allocation & disposal.  The public API comprises of just two methods:
- * copyFrame(), which allocates as necessary and copies, and
- * returnFrame(), which returns frame ownership to the pool for use by a later
- * call to copyFrame().
+ * takeFrame(), which reuses or allocates a frame with the dimensions of its
+ * argument, and returnFrame(), which returns frame ownership to the pool for
+ * use by a later call to takeFrame().
+ *
+ * Frames are kept in one bucket per set of dimensions.  Each bucket holds at
+ * most MAX_FRAMES_PER_BUCKET frames; extra returned frames are left to the GC.
+ * When the resolution changes (rotation, quality adaptation), the buckets of
+ * the old dimensions stop being used: buckets that haven't been used for
+ * IDLE_EVICT_NANOS are evicted, and at most MAX_BUCKETS buckets are kept,
+ * evicting the least recently used first.  A frame returned after its bucket
+ * was evicted is discarded.
  *
- * This class is thread-safe; calls to copyFrame() and returnFrame() are allowed
- * to happen on any thread.
+ * This class is thread-safe; calls to takeFrame() and returnFrame() are
+ * allowed to happen on any thread.  Neither takes a lock unless a new bucket
+ * has to be created or buckets are being swept for eviction.
  */
 class FramePool {
-  // Maps each summary code (see summarizeFrameDimensions()) to a list of frames
-  // of that description.
-  private final HashMap<Long, LinkedList<I420Frame>> availableFrames =
-      new HashMap<Long, LinkedList<I420Frame>>();
   // Every dimension (e.g. width, height, stride) of a frame must be less than
   // this value.
   private static final long MAX_DIMENSION = 4096;
+  // At most one frame is being copied, one is waiting to be uploaded, and one
+  // is being uploaded, so more than this is never needed at once.
+  static final int MAX_FRAMES_PER_BUCKET = 3;
+  static final int MAX_BUCKETS = 2;
+  static final long IDLE_EVICT_NANOS = 5000000000L;
+  private static final long SWEEP_INTERVAL_NANOS = 1000000000L;
+
+  // Maps each summary code (see summarizeFrameDimensions()) to the bucket of
+  // frames of that description.
+  private final ConcurrentHashMap<Long, Bucket> buckets =
+      new ConcurrentHashMap<Long, Bucket>();
+  private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+  // Statistics.
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong discarded = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong retainedBytes = new AtomicLong();
 
   public I420Frame takeFrame(I420Frame source) {
+    long now = System.nanoTime();
+    maybeSweep(now);
+
     long desc = summarizeFrameDimensions(source);
-    I420Frame dst = null;
-    synchronized (availableFrames) {
-      LinkedList<I420Frame> frames = availableFrames.get(desc);
-      if (frames == null) {
-        frames = new LinkedList<I420Frame>();
-        availableFrames.put(desc, frames);
-      }
-      if (!frames.isEmpty()) {
-        dst = frames.pop();
-      } else {
-        dst = new I420Frame(
-            source.width, source.height, source.yuvStrides, null);
-      }
+    Bucket bucket = buckets.get(desc);
+    if (bucket == null) {
+      bucket = addBucket(desc, frameBytes(source), now);
     }
-    return dst;
+    bucket.lastUsed = now;
+    I420Frame dst = bucket.poll();
+    if (dst != null) {
+      hits.incrementAndGet();
+      return dst;
+    }
+    misses.incrementAndGet();
+    return new I420Frame(source.width, source.height, source.yuvStrides, null);
   }
 
   public void returnFrame(I420Frame frame) {
-    long desc = summarizeFrameDimensions(frame);
-    synchronized (availableFrames) {
-      LinkedList<I420Frame> frames = availableFrames.get(desc);
-      if (frames == null) {
-        throw new IllegalArgumentException("Unexpected frame dimensions");
-      }
-      frames.add(frame);
+    Bucket bucket = buckets.get(summarizeFrameDimensions(frame));
+    if (bucket == null || !bucket.offer(frame)) {
+      discarded.incrementAndGet();
     }
   }
 
@@ -89,6 +112,100 @@ class FramePool {
         frame.yuvStrides[2] < MAX_DIMENSION;
   }
 
+  // Number of takeFrame() calls that reused a pooled frame.
+  public long getHits() {
+    return hits.get();
+  }
+
+  // Number of takeFrame() calls that had to allocate a frame.
+  public long getMisses() {
+    return misses.get();
+  }
+
+  // Number of returned frames that weren't kept, because their bucket was full
+  // or evicted.
+  public long getDiscarded() {
+    return discarded.get();
+  }
+
+  // Number of buckets that were evicted.
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  // Bytes of frame data held by the pool (not counting frames in use).
+  public long getRetainedBytes() {
+    return retainedBytes.get();
+  }
+
+  public int getBucketCount() {
+    return buckets.size();
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "FramePool[hits=%d, misses=%d, discarded=%d, evictions=%d, " +
+        "buckets=%d, retainedBytes=%d]", getHits(), getMisses(),
+        getDiscarded(), getEvictions(), getBucketCount(), getRetainedBytes());
+  }
+
+  // Slow path: create the bucket for |desc|, evicting the least recently used
+  // buckets if there would be more than MAX_BUCKETS.
+  private synchronized Bucket addBucket(long desc, long frameBytes, long now) {
+    Bucket bucket = buckets.get(desc);
+    if (bucket != null) {
+      return bucket;
+    }
+    while (buckets.size() >= MAX_BUCKETS) {
+      Map.Entry<Long, Bucket> oldest = null;
+      for (Map.Entry<Long, Bucket> entry : buckets.entrySet()) {
+        if (oldest == null || entry.getValue().lastUsed < oldest.getValue().lastUsed) {
+          oldest = entry;
+        }
+      }
+      evict(oldest.getKey(), oldest.getValue());
+    }
+    bucket = new Bucket(frameBytes, now);
+    buckets.put(desc, bucket);
+    return bucket;
+  }
+
+  // Evict buckets that haven't been used for IDLE_EVICT_NANOS; runs at most
+  // once per SWEEP_INTERVAL_NANOS, on whichever thread gets there first.
+  void maybeSweep(long now) {
+    long last = lastSweep.get();
+    if (now - last < SWEEP_INTERVAL_NANOS || !lastSweep.compareAndSet(last, now)) {
+      return;
+    }
+    synchronized (this) {
+      Iterator<Map.Entry<Long, Bucket>> iterator = buckets.entrySet().iterator();
+      while (iterator.hasNext()) {
+        Map.Entry<Long, Bucket> entry = iterator.next();
+        if (now - entry.getValue().lastUsed >= IDLE_EVICT_NANOS) {
+          evict(entry.getKey(), entry.getValue());
+        }
+      }
+    }
+  }
+
+  private void evict(Long desc, Bucket bucket) {
+    buckets.remove(desc, bucket);
+    bucket.evict();
+    evictions.incrementAndGet();
+  }
+
+  // Return the number of bytes allocated for a frame with the dimensions of
+  // |frame|.
+  private static long frameBytes(I420Frame frame) {
+    long bytes = 0;
+    for (int i = 0; i < 3; ++i) {
+      int h = i == 0 ? frame.height : frame.height / 2;
+      bytes += (long) frame.yuvStrides[i] * h;
+    }
+    return bytes;
+  }
+
   // Return a code summarizing the dimensions of |frame|.  Two frames that
   // return the same summary are guaranteed to be able to store each others'
   // contents.  Used like Object.hashCode(), but we need all the bits of a long
@@ -101,4 +218,58 @@ class FramePool {
     ret = ret * MAX_DIMENSION + frame.yuvStrides[2];
     return ret;
   }
+
+  // The frames of one set of dimensions.  Whichever thread removes a frame
+  // from |frames| subtracts its bytes from |retainedBytes|, so the count stays
+  // right if a frame is returned while the bucket is being evicted.
+  private class Bucket {
+    private final ConcurrentLinkedQueue<I420Frame> frames =
+        new ConcurrentLinkedQueue<I420Frame>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final long frameBytes;
+    private volatile long lastUsed;
+    private volatile boolean evicted = false;
+
+    private Bucket(long frameBytes, long now) {
+      this.frameBytes = frameBytes;
+      this.lastUsed = now;
+    }
+
+    private I420Frame poll() {
+      I420Frame frame = frames.poll();
+      if (frame != null) {
+        size.decrementAndGet();
+        retainedBytes.addAndGet(-frameBytes);
+      }
+      return frame;
+    }
+
+    // Returns false if the frame wasn't kept.
+    private boolean offer(I420Frame frame) {
+      if (evicted) {
+        return false;
+      }
+      if (size.incrementAndGet() > MAX_FRAMES_PER_BUCKET) {
+        size.decrementAndGet();
+        return false;
+      }
+      retainedBytes.addAndGet(frameBytes);
+      frames.offer(frame);
+      // If the bucket was evicted meanwhile, take the frame back out (unless
+      // the eviction already drained it).
+      if (evicted && frames.remove(frame)) {
+        size.decrementAndGet();
+        retainedBytes.addAndGet(-frameBytes);
+        return false;
+      }
+      return true;
+    }
+
+    private void evict() {
+      evicted = true;
+      while (poll() != null) {
+        // Drop the frame; its buffers are freed by the GC.
+      }
+    }
+  }
 }
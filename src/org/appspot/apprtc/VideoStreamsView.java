@@ -27,22 +27,34 @@
 
 package org.appspot.apprtc;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.Point;
 import android.graphics.Rect;
+import android.graphics.SurfaceTexture;
+import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
+import android.os.Build;
 import android.util.Log;
+import android.view.Choreographer;
 
+import org.mitre.svmp.apprtc.TextureFrames;
 import org.mitre.svmp.performance.PerformanceAdapter;
+import org.mitre.svmp.performance.SpanCounter;
+import org.mitre.svmp.performance.StartupPhase;
 import org.webrtc.VideoRenderer.I420Frame;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.util.ArrayList;
 import java.util.EnumMap;
+import java.util.List;
 
+import javax.microedition.khronos.egl.EGL10;
 import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
 import javax.microedition.khronos.opengles.GL10;
 
 /**
@@ -60,92 +72,479 @@ public class VideoStreamsView
   public static enum Endpoint { LOCAL, REMOTE };
 
   private final static String TAG = "VideoStreamsView";
+  // How long the decoder thread waits for a zero-copy frame to be uploaded
+  // before it drops the frame.
+  private final static long HANDOFF_TIMEOUT_MS = 100;
   private EnumMap<Endpoint, Rect> rects =
       new EnumMap<Endpoint, Rect>(Endpoint.class);
   private Point screenDimensions;
+  /** How the remote frame is fit to the view when their aspect ratios differ. */
+  public enum ScaleMode {
+    STRETCH,   // fill the view, distorting the frame
+    LETTERBOX, // fit the whole frame, with black bars on two sides
+    CROP       // fill the view, cutting off two sides of the frame
+  }
+  private final ScaleMode scaleMode;
+  // Size of the surface and of the remote frames; only accessed on the render
+  // thread.
+  private int surfaceWidth = 0;
+  private int surfaceHeight = 0;
+  private int frameWidth = 0;
+  private int frameHeight = 0;
+  // Where the remote frame is drawn, in view coordinates (origin at the top
+  // left); read by the UI thread to map touches to the remote screen.
+  private volatile Rect viewport;
   // [0] are local Y,U,V, [1] are remote Y,U,V.
   private int[][] yuvTextures = { { -1, -1, -1}, {-1, -1, -1 }};
+  // Allocated width (the stride) and height of each texture in |yuvTextures|;
+  // storage is only reallocated when these change.
+  private int[][] textureWidths = new int[2][3];
+  private int[][] textureHeights = new int[2][3];
+  // Share of each texture's width that holds the picture; the rest is stride
+  // padding, which is cropped off in the fragment shader.
+  private float[][] textureCrops = { { 1, 1, 1 }, { 1, 1, 1 } };
+  private int[] cropLocations = { -1, -1, -1 };
+  private int yuvProgram = -1;
   private int posLocation = -1;
+  private int tcLocation = -1;
+  // Used to draw hardware-decoded frames from a SurfaceTexture, if the WebRTC
+  // library supports that (see TextureFrames).  |textureFramesPossible| is
+  // cleared once texture frames are known to be off, and |textureFrames| is
+  // only set once the decoder has actually been told to use our context (see
+  // setTextureFrames()).  The rest is only accessed on the render thread.
+  private volatile boolean textureFramesPossible;
+  private volatile boolean textureFrames = false;
+  private int oesProgram = -1;
+  private int oesPosLocation = -1;
+  private int oesTcLocation = -1;
+  private int oesMatrixLocation = -1;
+  private int oesTexture = -1;
+  private float[] oesMatrix = new float[16];
+  private boolean drawOes = false;
+  // The render thread's EGL context, shared with the decoder so it can decode
+  // into textures we can draw.
+  private volatile EGLContext eglContext;
+  // Guarded by |surfaceCreatedRunnables|.  Runnables waiting for the surface,
+  // see runWhenSurfaceCreated().
+  private boolean surfaceCreated = false;
+  private final List<Runnable> surfaceCreatedRunnables =
+      new ArrayList<Runnable>();
   private long lastFPSLogTime = System.nanoTime();
   private long numFramesSinceLastLog = 0;
+  private long uploadNanosSinceLastLog = 0;
+  private long numUploadsSinceLastLog = 0;
   private FramePool framePool = new FramePool();
+  // If true, frames are uploaded straight from the decoder's buffers instead
+  // of being copied into |framePool| frames first.
+  private final boolean zeroCopy;
   // Accessed on multiple threads!  Must be synchronized.
   private EnumMap<Endpoint, I420Frame> framesToRender =
       new EnumMap<Endpoint, I420Frame>(Endpoint.class);
+  // Guarded by |framesToRender|.  At most one frame is being uploaded and
+  // drawn at a time; frames that arrive meanwhile wait in |framesToRender|,
+  // where a newer frame replaces an older one (it would be late anyway).
+  private boolean uploadScheduled = false;
+  private boolean renderInFlight = false;
+  // The SurfaceTexture and texture of the latest hardware-decoded frame.
+  private SurfaceTexture pendingSurfaceTexture;
+  private int pendingTexture;
+  // Schedules uploads on the display's vsync; null below API 16, where
+  // uploads are scheduled as soon as a frame arrives.
+  private final VsyncScheduler vsync;
 
   // used for performance instrumentation
   private PerformanceAdapter spi;
+  // Only accessed on the render thread.
+  private boolean frameUploaded = false;
+  private boolean firstFrameTraced = false;
+  private long uploadedNanos = 0; // when the frame waiting to be drawn was uploaded
 
-  public VideoStreamsView(Context c, Point screenDimensions, PerformanceAdapter spi) {
+  public VideoStreamsView(Context c, Point screenDimensions, PerformanceAdapter spi,
+      boolean zeroCopy, ScaleMode scaleMode) {
     super(c);
     this.screenDimensions = screenDimensions;
+    this.scaleMode = scaleMode;
+    this.viewport = new Rect(0, 0, screenDimensions.x, screenDimensions.y);
+    this.zeroCopy = zeroCopy;
     setEGLContextClientVersion(2);
     setRenderer(this);
     setRenderMode(RENDERMODE_WHEN_DIRTY);
+    vsync = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN ?
+        new VsyncScheduler() : null;
+    textureFramesPossible = TextureFrames.isSupported();
+    if (textureFramesPossible) {
+      // The decoder's textures would live in our context, so it must survive
+      // pauses until we know whether it's used (see setTextureFrames()).
+      setPreserveEGLContextOnPause(true);
+    }
 
     // used for performance instrumentation
     this.spi = spi;
   }
 
+  /**
+   * Return the EGL context to decode into (see TextureFrames), or null if
+   * texture frames aren't supported by the library or the GPU, or the surface
+   * hasn't been created yet.
+   */
+  public Object getEglContext() {
+    return eglContext;
+  }
+
+  /**
+   * Return true once the surface has been created, so getEglContext() has
+   * its final value.
+   */
+  public boolean isSurfaceCreated() {
+    synchronized (surfaceCreatedRunnables) {
+      return surfaceCreated;
+    }
+  }
+
+  /**
+   * Run |runnable| on the UI thread once the surface has been created, or
+   * right away if it already has been.
+   */
+  public void runWhenSurfaceCreated(Runnable runnable) {
+    synchronized (surfaceCreatedRunnables) {
+      if (!surfaceCreated) {
+        surfaceCreatedRunnables.add(runnable);
+        return;
+      }
+    }
+    post(runnable);
+  }
+
+  /**
+   * Tell the view whether the decoder was actually set up to decode into the
+   * context from getEglContext(); if not, frames are always drawn as I420.
+   */
+  public void setTextureFrames(boolean enabled) {
+    textureFrames = enabled;
+    if (enabled) {
+      return;
+    }
+    textureFramesPossible = false;
+    setPreserveEGLContextOnPause(false);
+    queueEvent(new Runnable() {
+        public void run() {
+          if (oesProgram != -1) {
+            GLES20.glDeleteProgram(oesProgram);
+            oesProgram = -1;
+          }
+        }
+      });
+  }
+
   /** Queue |frame| to be uploaded. */
   public void queueFrame(final Endpoint stream, I420Frame frame) {
+    spi.increment(SpanCounter.FRAMES_RECEIVED);
+    if (textureFrames) {
+      SurfaceTexture surfaceTexture = TextureFrames.getSurfaceTexture(frame);
+      if (surfaceTexture != null) {
+        queueTextureFrame(surfaceTexture, TextureFrames.getTextureId(frame));
+        return;
+      }
+    }
+    if (zeroCopy) {
+      uploadFrame(frame);
+      return;
+    }
+
     // Paying for the copy of the YUV data here allows CSC and painting time
     // to get spent on the render thread instead of the UI thread.
     abortUnless(framePool.validateDimensions(frame), "Frame too large!");
     final I420Frame frameCopy = framePool.takeFrame(frame).copyFrom(frame);
-    boolean needToScheduleRender;
+    spi.add(SpanCounter.FRAME_COPY_BYTES, frameBytes(frame));
+    boolean needToScheduleUpload;
     synchronized (framesToRender) {
-      // A new render needs to be scheduled (via updateFrames()) iff there isn't
-      // already a render scheduled, which is true iff framesToRender is empty.
-      needToScheduleRender = framesToRender.isEmpty();
       I420Frame frameToDrop = framesToRender.put(stream, frameCopy);
       if (frameToDrop != null) {
         framePool.returnFrame(frameToDrop);
+        spi.increment(SpanCounter.FRAMES_DROPPED);
+      }
+      needToScheduleUpload = !uploadScheduled && !renderInFlight;
+      uploadScheduled |= needToScheduleUpload;
+    }
+    if (needToScheduleUpload) {
+      scheduleUpload();
+    }
+  }
+
+  // Hardware-decoded frames are already on the GPU; the render thread only has
+  // to latch the SurfaceTexture's latest image, so nothing is copied.
+  private void queueTextureFrame(SurfaceTexture surfaceTexture, int texture) {
+    boolean needToScheduleUpload;
+    synchronized (framesToRender) {
+      if (pendingSurfaceTexture != null) {
+        spi.increment(SpanCounter.FRAMES_DROPPED);
+      }
+      pendingSurfaceTexture = surfaceTexture;
+      pendingTexture = texture;
+      needToScheduleUpload = !uploadScheduled && !renderInFlight;
+      uploadScheduled |= needToScheduleUpload;
+    }
+    if (needToScheduleUpload) {
+      scheduleUpload();
+    }
+  }
+
+  // Upload the waiting frame on the next vsync, or right away below API 16.
+  private void scheduleUpload() {
+    if (vsync != null) {
+      vsync.schedule();
+    } else {
+      startUpload();
+    }
+  }
+
+  private void startUpload() {
+    synchronized (framesToRender) {
+      uploadScheduled = false;
+      renderInFlight = true;
+    }
+    queueEvent(new Runnable() {
+        public void run() {
+          updateFrames();
+        }
+      });
+  }
+
+  // Called on the render thread once a frame has been drawn; schedules the
+  // upload of the next frame if one arrived meanwhile.
+  private void frameDrawn() {
+    boolean needToScheduleUpload;
+    synchronized (framesToRender) {
+      renderInFlight = false;
+      needToScheduleUpload = !uploadScheduled &&
+          (!framesToRender.isEmpty() || pendingSurfaceTexture != null);
+      uploadScheduled |= needToScheduleUpload;
+    }
+    if (needToScheduleUpload) {
+      scheduleUpload();
+    }
+  }
+
+  @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+  private class VsyncScheduler implements Choreographer.FrameCallback {
+    // Created on the UI thread, so callbacks run on the UI thread.
+    private final Choreographer choreographer = Choreographer.getInstance();
+
+    public void schedule() {
+      choreographer.postFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+      startUpload();
+    }
+  }
+
+  // Zero-copy mode: the decoder's buffers are only valid until renderFrame()
+  // returns, so hand |frame| to the render thread and wait until it has been
+  // uploaded to the remote textures.  The decoder gets its buffers back when
+  // this returns.  If the render thread doesn't get to the frame in time, the
+  // frame is dropped.
+  private void uploadFrame(final I420Frame frame) {
+    final FrameHandoff handoff = new FrameHandoff();
+    queueEvent(new Runnable() {
+        public void run() {
+          if (!handoff.beginUpload()) {
+            return; // the decoder thread gave up on this frame
+          }
+          try {
+            texImage2D(frame, 1);
+            frameUploaded = true;
+            uploadedNanos = System.nanoTime();
+            drawOes = false;
+          } finally {
+            handoff.endUpload();
+          }
+          requestRender();
+        }
+      });
+    if (!handoff.awaitUpload(HANDOFF_TIMEOUT_MS)) {
+      spi.increment(SpanCounter.FRAMES_DROPPED);
+    }
+  }
+
+  // Tracks a zero-copy frame between the decoder thread and the render thread.
+  // Once the render thread starts uploading, the decoder thread must wait for
+  // it to finish, because the upload reads the decoder's buffers.
+  private static class FrameHandoff {
+    private static final int PENDING = 0;
+    private static final int UPLOADING = 1;
+    private static final int DONE = 2;
+    private static final int ABANDONED = 3;
+    private int state = PENDING;
+
+    // Called on the render thread; returns false if the frame was abandoned.
+    synchronized boolean beginUpload() {
+      if (state != PENDING) {
+        return false;
       }
+      state = UPLOADING;
+      return true;
+    }
+
+    synchronized void endUpload() {
+      state = DONE;
+      notifyAll();
     }
-    if (needToScheduleRender) {
-      queueEvent(new Runnable() {
-          public void run() {
-            updateFrames();
+
+    // Called on the decoder thread; returns true if the frame was uploaded.
+    synchronized boolean awaitUpload(long timeoutMs) {
+      long deadline = System.nanoTime() + timeoutMs * 1000000;
+      boolean interrupted = false;
+      while (state != DONE) {
+        long remaining = (deadline - System.nanoTime()) / 1000000;
+        if (state == PENDING && remaining <= 0) {
+          state = ABANDONED;
+          break;
+        }
+        try {
+          if (state == PENDING) {
+            wait(remaining);
+          } else {
+            wait(); // the upload has started, it can't be abandoned
           }
-        });
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      return state == DONE;
     }
   }
 
+  // Return the number of bytes in the planes of |frame|.
+  private static long frameBytes(I420Frame frame) {
+    long bytes = 0;
+    for (int i = 0; i < 3; ++i) {
+      int h = i == 0 ? frame.height : frame.height / 2;
+      bytes += (long) frame.yuvStrides[i] * h;
+    }
+    return bytes;
+  }
+
   // Upload the planes from |framesToRender| to the textures owned by this View.
   private void updateFrames() {
 //    I420Frame localFrame = null;
     I420Frame remoteFrame = null;
+    SurfaceTexture surfaceTexture = null;
+    int texture = 0;
     synchronized (framesToRender) {
 //      localFrame = framesToRender.remove(Endpoint.LOCAL);
       remoteFrame = framesToRender.remove(Endpoint.REMOTE);
+      surfaceTexture = pendingSurfaceTexture;
+      texture = pendingTexture;
+      pendingSurfaceTexture = null;
+    }
+    if (/*localFrame == null && */remoteFrame == null && surfaceTexture == null) {
+      // An earlier upload already took the frame (e.g. a redraw asked for by
+      // the system scheduled a second upload); nothing will be drawn for this
+      // one, so let the next frame be scheduled.
+      frameDrawn();
+      return;
+    }
+    if (surfaceTexture != null) {
+      long start = System.nanoTime();
+      surfaceTexture.updateTexImage();
+      surfaceTexture.getTransformMatrix(oesMatrix);
+      oesTexture = texture;
+      drawOes = true;
+      frameUploaded = true;
+      uploadedNanos = System.nanoTime();
+      spi.add(SpanCounter.FRAME_UPLOAD_MICROS, (uploadedNanos - start) / 1000);
     }
 //    if (localFrame != null) {
-//      texImage2D(localFrame, yuvTextures[0]);
+//      texImage2D(localFrame, 0);
 //      framePool.returnFrame(localFrame);
 //    }
     if (remoteFrame != null) {
-      texImage2D(remoteFrame, yuvTextures[1]);
+      texImage2D(remoteFrame, 1);
       framePool.returnFrame(remoteFrame);
+      frameUploaded = true;
+      uploadedNanos = System.nanoTime();
+      drawOes = false;
     }
-    abortUnless(/*localFrame != null || */remoteFrame != null,
-                "Nothing to render!");
     requestRender();
   }
 
   /** Inform this View of the dimensions of frames coming from |stream|. */
   public void setSize(Endpoint stream, int width, int height) {
-    // Generate 3 texture ids for Y/U/V and place them into |textures|,
-    // allocating enough storage for |width|x|height| pixels.
-    int[] textures = yuvTextures[stream == Endpoint.LOCAL ? 0 : 1];
+    // Texture storage is allocated by the first upload at the new size, once
+    // the strides are known.
+    int index = stream == Endpoint.LOCAL ? 0 : 1;
+    for (int i = 0; i < 3; ++i) {
+      textureWidths[index][i] = 0;
+      textureHeights[index][i] = 0;
+    }
+    if (stream == Endpoint.REMOTE) {
+      frameWidth = width;
+      frameHeight = height;
+      updateViewport();
+    }
+  }
+
+  /**
+   * Return where the remote frame is drawn, in view coordinates. Touches are
+   * mapped to the remote screen through this same rectangle.
+   */
+  public Rect getViewport() {
+    return viewport;
+  }
+
+  // Fit the remote frame to the surface according to |scaleMode|, and apply
+  // the result as the GL viewport. Called on the render thread.
+  private void updateViewport() {
+    if (surfaceWidth == 0 || surfaceHeight == 0) {
+      return;
+    }
+    Rect rect = computeViewport(
+        scaleMode, surfaceWidth, surfaceHeight, frameWidth, frameHeight);
+    // GL's viewport origin is at the bottom left.
+    GLES20.glViewport(rect.left, surfaceHeight - rect.bottom,
+        rect.width(), rect.height());
+    checkNoGLES2Error();
+    if (!rect.equals(viewport)) {
+      Log.d(TAG, "Viewport " + rect.toShortString() + " for " + frameWidth +
+          "x" + frameHeight + " frames (" + scaleMode + ")");
+    }
+    viewport = rect;
+  }
+
+  // Return the rectangle, centered in a |width|x|height| view, that a
+  // |frameWidth|x|frameHeight| frame is drawn to in |mode|. When cropping, the
+  // rectangle extends past the view.
+  private static Rect computeViewport(ScaleMode mode, int width, int height,
+      int frameWidth, int frameHeight) {
+    if (mode == ScaleMode.STRETCH || frameWidth <= 0 || frameHeight <= 0) {
+      return new Rect(0, 0, width, height);
+    }
+    // Compare the aspect ratios without dividing: the frame is wider than the
+    // view when frameWidth / frameHeight > width / height.
+    boolean frameIsWider = (long) frameWidth * height > (long) width * frameHeight;
+    int viewportWidth = width;
+    int viewportHeight = height;
+    if (frameIsWider == (mode == ScaleMode.LETTERBOX)) {
+      viewportHeight = (int) ((long) width * frameHeight / frameWidth);
+    } else {
+      viewportWidth = (int) ((long) height * frameWidth / frameHeight);
+    }
+    int left = (width - viewportWidth) / 2;
+    int top = (height - viewportHeight) / 2;
+    return new Rect(left, top, left + viewportWidth, top + viewportHeight);
+  }
+
+  // Generate 3 texture ids for Y/U/V and place them into |textures|.
+  private static void genTextures(int[] textures) {
     GLES20.glGenTextures(3, textures, 0);
     for (int i = 0; i < 3; ++i) {
-      int w = i == 0 ? width : width / 2;
-      int h = i == 0 ? height : height / 2;
       GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
       GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[i]);
-      GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, w, h, 0,
-          GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, null);
       GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
           GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
       GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
@@ -166,58 +565,131 @@ public class VideoStreamsView
 
   @Override
   public void onSurfaceChanged(GL10 unused, int width, int height) {
-    GLES20.glViewport(0, 0, width, height);
-    checkNoGLES2Error();
+    surfaceWidth = width;
+    surfaceHeight = height;
+    updateViewport();
   }
 
   @Override
   public void onDrawFrame(GL10 unused) {
     GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-    drawRectangle(yuvTextures[1], remoteVertices);
-//    drawRectangle(yuvTextures[0], localVertices);
+    if (drawOes) {
+      drawOesRectangle(remoteVertices);
+    } else {
+      drawRectangle(1, remoteVertices);
+    }
+//    drawRectangle(0, localVertices);
     ++numFramesSinceLastLog;
 
     // used for performance instrumentation
-    this.spi.incrementFrameCount();
+    this.spi.increment(SpanCounter.FRAME_COUNT);
+    // Redraws asked for by the system (e.g. after onSurfaceChanged()) don't
+    // follow an upload, so they mustn't end the upload that's in flight.
+    if (uploadedNanos > 0) {
+      spi.add(SpanCounter.FRAME_PRESENT_MICROS,
+          (System.nanoTime() - uploadedNanos) / 1000);
+      uploadedNanos = 0;
+      frameDrawn();
+    }
+    if (frameUploaded && !firstFrameTraced) {
+      firstFrameTraced = true;
+      spi.endPhase(StartupPhase.FIRST_FRAME);
+      spi.endPhase(StartupPhase.STARTUP);
+    }
 
     long now = System.nanoTime();
     if (lastFPSLogTime == -1 || now - lastFPSLogTime > 1e9) {
       double fps = numFramesSinceLastLog / ((now - lastFPSLogTime) / 1e9);
-      Log.d(TAG, "Rendered FPS: " + fps);
+      double uploadMs = numUploadsSinceLastLog == 0 ? 0 :
+          uploadNanosSinceLastLog / 1e6 / numUploadsSinceLastLog;
+      Log.d(TAG, "Rendered FPS: " + fps + ", upload ms: " + uploadMs + ", " +
+          framePool);
       lastFPSLogTime = now;
       numFramesSinceLastLog = 1;
+      uploadNanosSinceLastLog = 0;
+      numUploadsSinceLastLog = 0;
     }
     checkNoGLES2Error();
   }
 
   @Override
   public void onSurfaceCreated(GL10 unused, EGLConfig config) {
-    int program = GLES20.glCreateProgram();
-    addShaderTo(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_STRING, program);
-    addShaderTo(GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_STRING, program);
+    // The surface may have been recreated with a new context (e.g. after
+    // onPause()), so any textures we had are gone.
+    for (int i = 0; i < 2; ++i) {
+      yuvTextures[i][0] = yuvTextures[i][1] = yuvTextures[i][2] = -1;
+      for (int j = 0; j < 3; ++j) {
+        textureWidths[i][j] = 0;
+        textureHeights[i][j] = 0;
+      }
+    }
+    // Rows of padded U/V planes don't have to be 4-byte aligned.
+    GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
 
-    GLES20.glLinkProgram(program);
-    int[] result = new int[] { GLES20.GL_FALSE };
-    result[0] = GLES20.GL_FALSE;
-    GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, result, 0);
-    abortUnless(result[0] == GLES20.GL_TRUE,
-        GLES20.glGetProgramInfoLog(program));
+    int program = createProgram(VERTEX_SHADER_STRING, FRAGMENT_SHADER_STRING);
     GLES20.glUseProgram(program);
+    yuvProgram = program;
 
     GLES20.glUniform1i(GLES20.glGetUniformLocation(program, "y_tex"), 0);
     GLES20.glUniform1i(GLES20.glGetUniformLocation(program, "u_tex"), 1);
     GLES20.glUniform1i(GLES20.glGetUniformLocation(program, "v_tex"), 2);
+    cropLocations[0] = GLES20.glGetUniformLocation(program, "y_crop");
+    cropLocations[1] = GLES20.glGetUniformLocation(program, "u_crop");
+    cropLocations[2] = GLES20.glGetUniformLocation(program, "v_crop");
 
     // Actually set in drawRectangle(), but queried only once here.
     posLocation = GLES20.glGetAttribLocation(program, "in_pos");
+    tcLocation = GLES20.glGetAttribLocation(program, "in_tc");
 
-    int tcLocation = GLES20.glGetAttribLocation(program, "in_tc");
-    GLES20.glEnableVertexAttribArray(tcLocation);
-    GLES20.glVertexAttribPointer(
-        tcLocation, 2, GLES20.GL_FLOAT, false, 0, textureCoords);
+    drawOes = false;
+    oesProgram = -1;
+    if (textureFramesPossible) {
+      createOesProgram();
+    }
+    // Only share our context if we can draw what gets decoded into it.
+    eglContext = oesProgram != -1 ?
+        ((EGL10) EGLContext.getEGL()).eglGetCurrentContext() : null;
 
     GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
     checkNoGLES2Error();
+
+    synchronized (surfaceCreatedRunnables) {
+      surfaceCreated = true;
+      for (Runnable runnable : surfaceCreatedRunnables) {
+        post(runnable);
+      }
+      surfaceCreatedRunnables.clear();
+    }
+  }
+
+  // Build the program that draws hardware-decoded frames; leaves |oesProgram|
+  // at -1 if the GPU can't sample external textures, which isn't fatal since
+  // frames are then decoded to I420 instead.
+  private void createOesProgram() {
+    String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+    if (extensions == null ||
+        !extensions.contains("GL_OES_EGL_image_external")) {
+      Log.w(TAG, "GL_OES_EGL_image_external not supported, " +
+          "not decoding to textures");
+      return;
+    }
+    try {
+      int program = createProgram(
+          OES_VERTEX_SHADER_STRING, OES_FRAGMENT_SHADER_STRING);
+      GLES20.glUseProgram(program);
+      GLES20.glUniform1i(GLES20.glGetUniformLocation(program, "oes_tex"), 0);
+      oesPosLocation = GLES20.glGetAttribLocation(program, "in_pos");
+      oesTcLocation = GLES20.glGetAttribLocation(program, "in_tc");
+      oesMatrixLocation = GLES20.glGetUniformLocation(program, "tex_matrix");
+      checkNoGLES2Error();
+      oesProgram = program;
+    } catch (RuntimeException e) {
+      Log.w(TAG, "Failed to build the texture frame program, " +
+          "not decoding to textures", e);
+      // Clear the error so later checks don't trip over it.
+      while (GLES20.glGetError() != GLES20.GL_NO_ERROR) {
+      }
+    }
   }
 
   // Wrap a float[] in a direct FloatBuffer using native byte order.
@@ -229,27 +701,73 @@ public class VideoStreamsView
     return buffer;
   }
 
-  // Upload the YUV planes from |frame| to |textures|.
-  private void texImage2D(I420Frame frame, int[] textures) {
+  // Upload the YUV planes from |frame| to the textures of stream |index|.
+  // Each plane is uploaded at its stride width, and the padding is cropped off
+  // when drawing; texture storage is only reallocated when the size changes.
+  private void texImage2D(I420Frame frame, int index) {
+    long start = System.nanoTime();
+    int[] textures = yuvTextures[index];
+    if (textures[0] == -1) {
+      genTextures(textures);
+    }
     for (int i = 0; i < 3; ++i) {
       ByteBuffer plane = frame.yuvPlanes[i];
       GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
       GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[i]);
       int w = i == 0 ? frame.width : frame.width / 2;
       int h = i == 0 ? frame.height : frame.height / 2;
-      abortUnless(w == frame.yuvStrides[i], frame.yuvStrides[i] + "!=" + w);
-      GLES20.glTexImage2D(
-          GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, w, h, 0,
-          GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, plane);
+      int stride = frame.yuvStrides[i];
+      abortUnless(stride >= w, stride + "<" + w);
+      if (textureWidths[index][i] != stride || textureHeights[index][i] != h) {
+        GLES20.glTexImage2D(
+            GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, stride, h, 0,
+            GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, plane);
+        textureWidths[index][i] = stride;
+        textureHeights[index][i] = h;
+        textureCrops[index][i] = (float) w / stride;
+      } else {
+        GLES20.glTexSubImage2D(
+            GLES20.GL_TEXTURE_2D, 0, 0, 0, stride, h,
+            GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, plane);
+      }
     }
     checkNoGLES2Error();
+
+    long uploadNanos = System.nanoTime() - start;
+    uploadNanosSinceLastLog += uploadNanos;
+    ++numUploadsSinceLastLog;
+    spi.add(SpanCounter.FRAME_UPLOAD_MICROS, uploadNanos / 1000);
   }
 
-  // Draw |textures| using |vertices| (X,Y coordinates).
-  private void drawRectangle(int[] textures, FloatBuffer vertices) {
+  // Link a program from |vertexSource| and |fragmentSource|.
+  private static int createProgram(String vertexSource, String fragmentSource) {
+    int program = GLES20.glCreateProgram();
+    addShaderTo(GLES20.GL_VERTEX_SHADER, vertexSource, program);
+    addShaderTo(GLES20.GL_FRAGMENT_SHADER, fragmentSource, program);
+
+    GLES20.glLinkProgram(program);
+    int[] result = new int[] { GLES20.GL_FALSE };
+    result[0] = GLES20.GL_FALSE;
+    GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, result, 0);
+    abortUnless(result[0] == GLES20.GL_TRUE,
+        GLES20.glGetProgramInfoLog(program));
+    return program;
+  }
+
+  // Draw the textures of stream |index| using |vertices| (X,Y coordinates).
+  private void drawRectangle(int index, FloatBuffer vertices) {
+    int[] textures = yuvTextures[index];
+    if (textures[0] == -1) {
+      return; // nothing has been uploaded yet
+    }
+    GLES20.glUseProgram(yuvProgram);
+    GLES20.glVertexAttribPointer(
+        tcLocation, 2, GLES20.GL_FLOAT, false, 0, textureCoords);
+    GLES20.glEnableVertexAttribArray(tcLocation);
     for (int i = 0; i < 3; ++i) {
       GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
       GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[i]);
+      GLES20.glUniform1f(cropLocations[i], textureCrops[index][i]);
     }
 
     GLES20.glVertexAttribPointer(
@@ -260,6 +778,24 @@ public class VideoStreamsView
     checkNoGLES2Error();
   }
 
+  // Draw the latest hardware-decoded frame using |vertices|.
+  private void drawOesRectangle(FloatBuffer vertices) {
+    GLES20.glUseProgram(oesProgram);
+    GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+    GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, oesTexture);
+    GLES20.glUniformMatrix4fv(oesMatrixLocation, 1, false, oesMatrix, 0);
+
+    GLES20.glVertexAttribPointer(
+        oesPosLocation, 2, GLES20.GL_FLOAT, false, 0, vertices);
+    GLES20.glEnableVertexAttribArray(oesPosLocation);
+    GLES20.glVertexAttribPointer(
+        oesTcLocation, 2, GLES20.GL_FLOAT, false, 0, oesTextureCoords);
+    GLES20.glEnableVertexAttribArray(oesTcLocation);
+
+    GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+    checkNoGLES2Error();
+  }
+
   // Compile & attach a |type| shader specified by |source| to |program|.
   private static void addShaderTo(
       int type, String source, int program) {
@@ -300,6 +836,11 @@ public class VideoStreamsView
   private static final FloatBuffer textureCoords = directNativeFloatBuffer(
       new float[] { 0, 0, 0, 1, 1, 0, 1, 1 });
 
+  // Texture Coordinates for a SurfaceTexture, whose transform matrix expects
+  // the origin at the bottom left.
+  private static final FloatBuffer oesTextureCoords = directNativeFloatBuffer(
+      new float[] { 0, 1, 0, 0, 1, 1, 1, 0 });
+
   // Pass-through vertex shader.
   private static final String VERTEX_SHADER_STRING =
       "varying vec2 interp_tc;\n" +
@@ -312,6 +853,32 @@ public class VideoStreamsView
       "  interp_tc = in_tc;\n" +
       "}\n";
 
+  // Vertex shader that applies a SurfaceTexture's transform matrix.
+  private static final String OES_VERTEX_SHADER_STRING =
+      "varying vec2 interp_tc;\n" +
+      "\n" +
+      "attribute vec4 in_pos;\n" +
+      "attribute vec4 in_tc;\n" +
+      "uniform mat4 tex_matrix;\n" +
+      "\n" +
+      "void main() {\n" +
+      "  gl_Position = in_pos;\n" +
+      "  interp_tc = (tex_matrix * in_tc).xy;\n" +
+      "}\n";
+
+  // Pixel shader for an external (SurfaceTexture) texture, which is already
+  // RGB.
+  private static final String OES_FRAGMENT_SHADER_STRING =
+      "#extension GL_OES_EGL_image_external : require\n" +
+      "precision mediump float;\n" +
+      "varying vec2 interp_tc;\n" +
+      "\n" +
+      "uniform samplerExternalOES oes_tex;\n" +
+      "\n" +
+      "void main() {\n" +
+      "  gl_FragColor = texture2D(oes_tex, interp_tc);\n" +
+      "}\n";
+
   // YUV to RGB pixel shader. Loads a pixel from each plane and pass through the
   // matrix.
   private static final String FRAGMENT_SHADER_STRING =
@@ -321,11 +888,14 @@ public class VideoStreamsView
       "uniform sampler2D y_tex;\n" +
       "uniform sampler2D u_tex;\n" +
       "uniform sampler2D v_tex;\n" +
+      "uniform float y_crop;\n" +
+      "uniform float u_crop;\n" +
+      "uniform float v_crop;\n" +
       "\n" +
       "void main() {\n" +
-      "  float y = texture2D(y_tex, interp_tc).r;\n" +
-      "  float u = texture2D(u_tex, interp_tc).r - .5;\n" +
-      "  float v = texture2D(v_tex, interp_tc).r - .5;\n" +
+      "  float y = texture2D(y_tex, interp_tc * vec2(y_crop, 1.0)).r;\n" +
+      "  float u = texture2D(u_tex, interp_tc * vec2(u_crop, 1.0)).r - .5;\n" +
+      "  float v = texture2D(v_tex, interp_tc * vec2(v_crop, 1.0)).r - .5;\n" +
       // CSC according to http://www.fourcc.org/fccyvrgb.php
       "  gl_FragColor = vec4(y + 1.403 * v, " +
       "                      y - 0.344 * u - 0.714 * v, " +
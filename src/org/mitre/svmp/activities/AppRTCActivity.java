@@ -87,6 +87,7 @@ public class AppRTCActivity extends Activity implements StateObserver, MessageHa
     protected ConnectionInfo connectionInfo;
 
     protected boolean proxying = false; // if this is true, we have finished the handshakes and the connection is running
+    private boolean mediaPaused = false; // if this is true, the activity is hidden and its media is paused
     private ProgressDialog pd;
 
     @Override
@@ -144,6 +145,11 @@ public class AppRTCActivity extends Activity implements StateObserver, MessageHa
         return value;
     }
 
+    // called from PCObserver
+    public PerformanceAdapter getPerformanceAdapter() {
+        return performanceAdapter;
+    }
+
     // called from PCObserver
     public MediaConstraints getPCConstraints() {
         MediaConstraints value = null;
@@ -207,10 +213,30 @@ public class AppRTCActivity extends Activity implements StateObserver, MessageHa
     @Override
     public void onPause() {
         super.onPause();
-        if (proxying)
+        // if the activity is only hidden (e.g. the Home button was pressed or the screen turned off), a child class can
+        // pause its media and keep the session instead of exiting
+        if (proxying && !isFinishing() && onPauseMedia())
+            mediaPaused = true;
+        else if (proxying)
             disconnectAndExit();
     }
 
+    @Override
+    public void onResume() {
+        super.onResume();
+        if (mediaPaused) {
+            mediaPaused = false;
+            onResumeMedia();
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        // the activity can be destroyed while it's hidden and its media is paused
+        disconnectAndExit();
+        super.onDestroy();
+    }
+
     // Log |msg| and Toast about it.
     public void logAndToast(final int resID) {
         Log.d(TAG, getResources().getString(resID));
@@ -319,6 +345,24 @@ public class AppRTCActivity extends Activity implements StateObserver, MessageHa
     protected void onDisconnectAndExit() {
     }
 
+    // override in child classes; called when the activity is hidden while running
+    // returns true if the media was paused and the session should be kept, false to exit
+    protected boolean onPauseMedia() {
+        return false;
+    }
+
+    // override in child classes; called when the activity is shown again after onPauseMedia returned true
+    protected void onResumeMedia() {
+    }
+
+    // override in child classes; called when the state changes to AUTH, so the signaling parameters are available
+    protected void onAuthenticated() {
+    }
+
+    // override in child classes; called on the main thread when the active network changes while running
+    public void onNetworkChanged() {
+    }
+
     public boolean isConnected() {
         return proxying;
     }
@@ -330,6 +374,7 @@ public class AppRTCActivity extends Activity implements StateObserver, MessageHa
             case CONNECTED:
                 break;
             case AUTH:
+                onAuthenticated();
                 break;
             case RUNNING:
                 break;
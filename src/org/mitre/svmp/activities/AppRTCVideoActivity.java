@@ -57,12 +57,15 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.mitre.svmp.apprtc.*;
 import org.mitre.svmp.client.*;
+import org.mitre.svmp.common.Utility;
+import org.mitre.svmp.performance.StartupPhase;
 import org.mitre.svmp.protocol.SVMPProtocol;
 import org.mitre.svmp.protocol.SVMPProtocol.AppsRequest;
 import org.mitre.svmp.protocol.SVMPProtocol.Request;
 import org.mitre.svmp.protocol.SVMPProtocol.Response;
 import org.webrtc.*;
 
+import java.util.Locale;
 import java.util.TimeZone;
 
 /**
@@ -71,16 +74,23 @@ import java.util.TimeZone;
  */
 public class AppRTCVideoActivity extends AppRTCActivity {
     private static final String TAG = AppRTCVideoActivity.class.getName();
+    // how long the PeerConnection may wait for the view's surface before it gives up on texture frames
+    private static final int SURFACE_TIMEOUT_MS = 2000;
 
     private MediaConstraints sdpMediaConstraints;
+    private SdpPolicy sdpPolicy;
     private SDPObserver sdpObserver;
     private VideoStreamsView vsv;
+    private Point displaySize;
     private PCObserver pcObserver;
     private TouchHandler touchHandler;
     private RotationHandler rotationHandler;
     private String pkgName; // what app we want to launch when we finish connecting
     private KeyHandler keyHandler;
     private ConfigHandler configHandler;
+    private boolean parallelStartup; // whether to set up WebRTC while the WebSocket connects (set in Preferences)
+    private boolean textureFramesDecided; // guarded by this
+    private boolean waitingForSurface; // guarded by this
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -99,27 +109,52 @@ public class AppRTCVideoActivity extends AppRTCActivity {
 //            EnumSet.of(Logging.TraceLevel.TRACE_ALL),
 //            Logging.Severity.LS_SENSITIVE);
 
-        Point displaySize = new Point();
+        displaySize = new Point();
         getWindowManager().getDefaultDisplay().getSize(displaySize);
-        vsv = new VideoStreamsView(this, displaySize, performanceAdapter);
+        // find out if video frames should be uploaded without copying them first (set in Preferences)
+        boolean zeroCopyFrames = Utility.getPrefBool(this,
+                R.string.preferenceKey_connection_zeroCopyFrames,
+                R.string.preferenceValue_connection_zeroCopyFrames);
+        // find out how video should be fit to the screen if its aspect ratio doesn't match (set in Preferences)
+        VideoStreamsView.ScaleMode scaleMode;
+        try {
+            scaleMode = VideoStreamsView.ScaleMode.valueOf(Utility.getPrefString(this,
+                    R.string.preferenceKey_connection_scaleMode,
+                    R.string.preferenceValue_connection_scaleMode).toUpperCase(Locale.US));
+        } catch (IllegalArgumentException e) {
+            scaleMode = VideoStreamsView.ScaleMode.LETTERBOX;
+        }
+        vsv = new VideoStreamsView(this, displaySize, performanceAdapter, zeroCopyFrames, scaleMode);
         vsv.setBackgroundColor(Color.DKGRAY); // start this VideoStreamsView with a color of dark gray
         setContentView(vsv);
 
-        touchHandler = new TouchHandler(this, displaySize, performanceAdapter);
+        touchHandler = new TouchHandler(this, vsv, performanceAdapter);
         rotationHandler = new RotationHandler(this);
         keyHandler = new KeyHandler(this);
         configHandler = new ConfigHandler(this);
 
+        // the performance data objects haven't been set yet, so this phase is timed here and recorded by the adapter
+        long initStart = System.nanoTime();
         AppRTCHelper.abortUnless(PeerConnectionFactory.initializeAndroidGlobals(this),
                 "Failed to initializeAndroidGlobals");
+        performanceAdapter.recordPhase(StartupPhase.WEBRTC_INIT, initStart, System.nanoTime());
+
+        parallelStartup = Utility.getPrefBool(this,
+                R.string.preferenceKey_connection_parallelStartup,
+                R.string.preferenceValue_connection_parallelStartup);
 
         //Create observers.
         sdpObserver = new SDPObserver(this);
         pcObserver = new PCObserver(this);
 
+        // the connection's codec and bitrate rules; if audio is turned off, don't ask the VM for it
+        sdpPolicy = new SdpPolicy(connectionInfo.getSdpPolicy());
+        // ask for video at the screen's resolution, so it doesn't have to be scaled
+        sdpPolicy.setReceiveResolution(displaySize.x, displaySize.y);
+
         sdpMediaConstraints = new MediaConstraints();
         sdpMediaConstraints.mandatory.add(new MediaConstraints.KeyValuePair(
-                "OfferToReceiveAudio", "true"));
+                "OfferToReceiveAudio", String.valueOf(sdpPolicy.isAudioEnabled())));
         sdpMediaConstraints.mandatory.add(new MediaConstraints.KeyValuePair(
                 "OfferToReceiveVideo", "true"));
 
@@ -142,11 +177,19 @@ public class AppRTCVideoActivity extends AppRTCActivity {
         return pcObserver;
     }
 
-/*
+    public SDPObserver getSDPObserver() {
+        return sdpObserver;
+    }
+
     public MediaConstraints getSdpMediaConstraints() {
         return sdpMediaConstraints;
     }
 
+    public SdpPolicy getSdpPolicy() {
+        return sdpPolicy;
+    }
+
+/*
     public boolean isInitiator() {
         return appRtcClient.isInitiator();
     }
@@ -178,15 +221,106 @@ public class AppRTCVideoActivity extends AppRTCActivity {
         super.onResume();
     }
 
+    // Called when the state changes to AUTH
+    // the signaling parameters are known now, so we can create the PeerConnection, gather ICE candidates, and create
+    // the offer while the WebSocket connects; AppRTCClient queues the WebRTC messages until the VM is ready
+    @Override
+    protected void onAuthenticated() {
+        if (parallelStartup)
+            startPeerConnection();
+    }
+
+    // Called when the activity is hidden; unless the session should end (set in Preferences), stop rendering video and
+    // ask the VM to throttle it, but keep the PeerConnection so the video comes back quickly
+    @Override
+    protected boolean onPauseMedia() {
+        boolean pauseWhenHidden = Utility.getPrefBool(this,
+                R.string.preferenceKey_connection_pauseWhenHidden,
+                R.string.preferenceValue_connection_pauseWhenHidden);
+        if (!pauseWhenHidden || pcObserver == null || pcObserver.getPC() == null)
+            return false;
+        pcObserver.setVideoPaused(true);
+        return true;
+    }
+
+    // Called when the activity is shown again after its media was paused
+    @Override
+    protected void onResumeMedia() {
+        if (pcObserver != null)
+            pcObserver.setVideoPaused(false);
+    }
+
+    // Called when the active network changes; the ICE candidates we're using belong to the old network
+    @Override
+    public void onNetworkChanged() {
+        if (pcObserver != null)
+            pcObserver.restartIce();
+    }
+
+    // sets up ICE servers and creates the offer, unless that has already been done
+    private synchronized void startPeerConnection() {
+        if (pcObserver.getPC() != null || appRtcClient == null || waitingForSurface)
+            return;
+
+        // if the WebRTC library supports it, decode video into textures that the view can draw without copying them;
+        // this has to happen before the factory is created, and needs the view's surface to have been created, which
+        // may not have happened yet with parallel startup
+        if (!textureFramesDecided) {
+            if (TextureFrames.isSupported() && !vsv.isSurfaceCreated()) {
+                waitingForSurface = true;
+                vsv.runWhenSurfaceCreated(new Runnable() {
+                    public void run() {
+                        stopWaitingForSurface(false);
+                    }
+                });
+                vsv.postDelayed(new Runnable() {
+                    public void run() {
+                        stopWaitingForSurface(true);
+                    }
+                }, SURFACE_TIMEOUT_MS);
+                return;
+            }
+
+            textureFramesDecided = true;
+            Object eglContext = vsv.getEglContext();
+            boolean textureFrames = eglContext != null && TextureFrames.enable(this, eglContext);
+            if (textureFrames)
+                Log.d(TAG, "Decoding video to textures");
+            else if (TextureFrames.isSupported())
+                Log.d(TAG, "Texture frames aren't usable on this device, decoding video to I420 frames");
+            vsv.setTextureFrames(textureFrames);
+        }
+
+        pcObserver.onIceServers(appRtcClient.getSignalingParams().iceServers);
+        appRtcClient.setInputChannel(pcObserver.getInputChannel());
+
+        PeerConnection pc = pcObserver.getPC();
+        if (pc != null) {
+            performanceAdapter.beginPhase(StartupPhase.OFFER_ANSWER);
+            pc.createOffer(sdpObserver, sdpMediaConstraints);
+        }
+    }
+
+    // called when the view's surface has been created, or when we've given up waiting for it
+    private synchronized void stopWaitingForSurface(boolean timedOut) {
+        if (!waitingForSurface)
+            return; // the other one already happened
+        waitingForSurface = false;
+        if (timedOut) {
+            Log.w(TAG, "View surface wasn't created within " + SURFACE_TIMEOUT_MS
+                    + "ms, decoding video to I420 frames");
+            textureFramesDecided = true;
+            vsv.setTextureFrames(false);
+        }
+        startPeerConnection();
+    }
+
     // MessageHandler interface method
     // Called when the client connection is established
     @Override
     public void onOpen() {
         super.onOpen();
 
-        // set up ICE servers
-        pcObserver.onIceServers(appRtcClient.getSignalingParams().iceServers);
-
         // send timezone information
         Request.Builder request = Request.newBuilder();
         request.setType(Request.RequestType.TIMEZONE);
@@ -203,9 +337,8 @@ public class AppRTCVideoActivity extends AppRTCActivity {
         // tell the VM what app we want to start
         sendAppsMessage();
 
-        PeerConnection pc = pcObserver.getPC();
-        if (pc != null)
-            pc.createOffer(sdpObserver, sdpMediaConstraints);
+        // if the PeerConnection wasn't started early (or we are reconnecting to a running session), start it now
+        startPeerConnection();
     }
 
     // sends "APPS" request to VM; if pkgName is not null, start that app, otherwise go to the Launcher
@@ -257,7 +390,7 @@ public class AppRTCVideoActivity extends AppRTCActivity {
                     } else if (type.equals("answer") || type.equals("offer")) {
                         SessionDescription sdp = new SessionDescription(
                                 SessionDescription.Type.fromCanonicalForm(type),
-                                AppRTCHelper.preferISAC((String) json.get("sdp")));
+                                sdpPolicy.applyRemote((String) json.get("sdp")));
                         getPCObserver().getPC().setRemoteDescription(sdpObserver, sdp);
                     } else if (type.equals("bye")) {
                         logAndToast(R.string.appRTC_toast_clientHandler_finish);
@@ -280,6 +413,8 @@ public class AppRTCVideoActivity extends AppRTCActivity {
     protected void onDisconnectAndExit() {
         if (rotationHandler != null)
             rotationHandler.cleanupRotationUpdates();
+        if (appRtcClient != null)
+            appRtcClient.setInputChannel(null);
         if (pcObserver != null)
             pcObserver.quit();
     }
@@ -35,6 +35,7 @@ import org.mitre.svmp.auth.module.CertificateModule;
 import org.mitre.svmp.auth.type.IAuthType;
 import org.mitre.svmp.client.R;
 import org.mitre.svmp.common.Utility;
+import org.mitre.svmp.net.SSLConfig;
 import org.mitre.svmp.widgets.AuthModuleArrayAdapter;
 
 /**
@@ -52,7 +53,8 @@ public class ConnectionDetails extends SvmpActivity {
             descriptionView,
             usernameView,
             hostView,
-            portView;
+            portView,
+            sdpPolicyView;
     private Spinner
             encryptionView,
             authTypeView;
@@ -71,6 +73,7 @@ public class ConnectionDetails extends SvmpActivity {
         usernameView = (EditText) findViewById(R.id.connectionDetails_editText_username);
         hostView = (EditText) findViewById(R.id.connectionDetails_editText_host);
         portView = (EditText) findViewById(R.id.connectionDetails_editText_port);
+        sdpPolicyView = (EditText) findViewById(R.id.connectionDetails_editText_sdpPolicy);
         encryptionView = (Spinner) findViewById(R.id.connectionDetails_spinner_encryption);
         authTypeView = (Spinner) findViewById(R.id.connectionDetails_spinner_authType);
         certificateView = (Button) findViewById(R.id.connectionDetails_button_certificate);
@@ -109,6 +112,7 @@ public class ConnectionDetails extends SvmpActivity {
                     }
                 if (connectionInfo.getCertificateAlias().length() > 0)
                     setCertAlias(connectionInfo.getCertificateAlias());
+                sdpPolicyView.setText(connectionInfo.getSdpPolicy());
                 // flag so we know this is an update, not insert
                 updateID = connectionInfo.getConnectionID();
             }
@@ -150,7 +154,8 @@ public class ConnectionDetails extends SvmpActivity {
         String description = descriptionView.getText().toString(),
                 username = usernameView.getText().toString(),
                 host = hostView.getText().toString(),
-                portString = portView.getText().toString();
+                portString = portView.getText().toString(),
+                sdpPolicy = sdpPolicyView.getText().toString().trim();
         int port = 0;
         try {
             port = Integer.parseInt(portString);
@@ -181,7 +186,7 @@ public class ConnectionDetails extends SvmpActivity {
         else {
             // create a new ConnectionInfo object
             ConnectionInfo connectionInfo = new ConnectionInfo(updateID, description, username, host, port,
-                    encryptionType, authType, certificateAlias, 0);
+                    encryptionType, authType, certificateAlias, sdpPolicy, 0);
 
             // insert or update the ConnectionInfo in the database
             long result;
@@ -194,6 +199,8 @@ public class ConnectionDetails extends SvmpActivity {
             if( result > -1 && updateID > 0 ) {
                 // we have updated this ConnectionInfo; if session info is stored for this ConnectionInfo, remove it
                 dbHandler.clearSessionInfo(connectionInfo);
+                // the SSLContext for this ConnectionInfo may use an old certificate alias
+                SSLConfig.invalidate(updateID);
 
                 finishMessage(R.string.connectionList_toast_updated, RESULT_REPOPULATE);
             }
@@ -29,6 +29,7 @@ import android.widget.*;
 import org.mitre.svmp.auth.module.PasswordModule;
 import org.mitre.svmp.common.ConnectionInfo;
 import org.mitre.svmp.common.Utility;
+import org.mitre.svmp.net.SSLConfig;
 import org.mitre.svmp.services.SessionService;
 import org.mitre.svmp.client.R;
 import org.mitre.svmp.widgets.ConnectionInfoArrayAdapter;
@@ -196,6 +197,7 @@ public class ConnectionList extends SvmpActivity {
                     stopService(new Intent(ConnectionList.this, SessionService.class));
                 // delete the connection info and repopulate the layout to reflect changes
                 dbHandler.deleteConnectionInfo(connectionID);
+                SSLConfig.invalidate(connectionID);
                 populateLayout();
                 toastLong(R.string.connectionList_toast_removed);
                 break;
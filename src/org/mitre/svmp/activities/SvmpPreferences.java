@@ -16,9 +16,11 @@
 package org.mitre.svmp.activities;
 
 import android.app.AlertDialog;
+import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
 import android.preference.Preference;
@@ -28,15 +30,12 @@ import android.util.Log;
 import android.view.View;
 import android.widget.Toast;
 import org.mitre.svmp.client.R;
-import org.mitre.svmp.common.Constants;
 import org.mitre.svmp.common.DatabaseHandler;
-import org.mitre.svmp.performance.MeasurementInfo;
+import org.mitre.svmp.common.Utility;
+import org.mitre.svmp.net.SSLConfig;
+import org.mitre.svmp.performance.PerformanceExporter;
 
-import javax.net.ssl.TrustManagerFactory;
 import java.io.*;
-import java.security.KeyStore;
-import java.text.SimpleDateFormat;
-import java.util.List;
 
 /**
  * @author Joe Portner
@@ -53,12 +52,7 @@ public class SvmpPreferences extends PreferenceActivity {
         // hide Memorizing Trust Manager if trust store is not empty
         boolean hideMTM = false;
         try {
-            KeyStore localTrustStore = KeyStore.getInstance("BKS");
-            InputStream in = this.getResources().openRawResource(R.raw.client_truststore);
-            localTrustStore.load(in, Constants.TRUSTSTORE_PASSWORD.toCharArray());
-            TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-            trustManagerFactory.init(localTrustStore);
-            hideMTM = localTrustStore.size() > 0;
+            hideMTM = SSLConfig.hasLocalTrustStore(this);
         } catch (Exception e) {
             // don't care
         }
@@ -135,9 +129,6 @@ public class SvmpPreferences extends PreferenceActivity {
             }
         }
 
-        DatabaseHandler handler = new DatabaseHandler(this);
-
-        List<MeasurementInfo> measurementInfoList = handler.getAllMeasurementInfo();
         TelephonyManager telephonyManager = (TelephonyManager) getSystemService(Context.TELEPHONY_SERVICE);
         int phoneTypeInt = telephonyManager.getPhoneType();
         String phoneType = "", cellValues = "";
@@ -150,53 +141,90 @@ public class SvmpPreferences extends PreferenceActivity {
         }
         cellValues = cellValues + " LTE[SignalStrength Rsrp Rsrq Rssnr Cqi]";
 
-        String error = "";
-        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH_mm_ssZ");
-        int filesWritten = 0;
-        for (MeasurementInfo measurementInfo : measurementInfoList) {
-            // get the performance data associated with this record
-            List<String> performanceDataList = handler.getAllPerformanceData(measurementInfo);
+        String format = Utility.getPrefString(this,
+                R.string.preferenceKey_performance_exportFormat,
+                R.string.preferenceValue_performance_exportFormat);
+        boolean compress = Utility.getPrefBool(this,
+                R.string.preferenceKey_performance_exportCompress,
+                R.string.preferenceValue_performance_exportCompress);
 
-            // if there is no data (the user probably connected and immediately exited), skip this record
-            if (performanceDataList.size() == 0)
-                continue;
+        new ExportTask(folder, format, compress, phoneType, cellValues).execute();
+    }
 
-            filesWritten++;
-            PrintWriter out = null;
+    // exports performance data in the background, showing progress in a dialog
+    private class ExportTask extends AsyncTask<Void, Integer, Integer> {
+        private File folder;
+        private String format;
+        private boolean compress;
+        private String phoneType;
+        private String cellValues;
+        private ProgressDialog progressDialog;
+        private String error = "";
+
+        public ExportTask(File folder, String format, boolean compress, String phoneType, String cellValues) {
+            this.folder = folder;
+            this.format = format;
+            this.compress = compress;
+            this.phoneType = phoneType;
+            this.cellValues = cellValues;
+        }
 
+        @Override
+        protected void onPreExecute() {
+            progressDialog = new ProgressDialog(SvmpPreferences.this);
+            progressDialog.setTitle(R.string.preference_performance_exportData_text);
+            progressDialog.setMessage(getResources().getText(R.string.preference_performance_exportData_progress));
+            progressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+            progressDialog.setCancelable(false);
+            progressDialog.show();
+        }
+
+        @Override
+        protected Integer doInBackground(Void... params) {
+            DatabaseHandler handler = new DatabaseHandler(SvmpPreferences.this);
+            int filesWritten = 0;
             try {
-                // open a file and a PrintWriter
-                File file = new File(folder, dateFormat.format(measurementInfo.getStartDate()) + ".csv");
-                out = new PrintWriter(new FileWriter(file));
-
-                // print headers
-                out.println("Measure date,Frames per second,Sensor updates per second,Touch updates per second,"
-                        + "CPU usage (%),Memory usage (kB),Wifi strength (%),Battery level (%),Cell network ("
-                        + phoneType + "),Cell values (" + cellValues + "),Ping (ms)");
-                for (String performanceData : performanceDataList)
-                    out.println(performanceData);
+                publishProgress(0, handler.countPerformanceRows());
+                PerformanceExporter exporter = new PerformanceExporter(handler, folder, format, compress,
+                        phoneType, cellValues, new PerformanceExporter.ProgressListener() {
+                    @Override
+                    public void onProgress(int rowsWritten) {
+                        publishProgress(rowsWritten);
+                    }
+                });
+                filesWritten = exporter.export();
             } catch (IOException e) {
                 Log.e(TAG, "Error exporting performance data to external storage: " + e.getMessage());
-                error = e.getMessage();
+                error = String.valueOf(e.getMessage());
             } finally {
-                if (out != null)
-                    out.close();
+                handler.close();
             }
+            return filesWritten;
+        }
 
-            // if we failed, break out of the loop
-            if (error.length() > 0)
-                break;
+        @Override
+        protected void onProgressUpdate(Integer... values) {
+            if (values.length > 1)
+                progressDialog.setMax(values[1]);
+            progressDialog.setProgress(values[0]);
         }
 
-        handler.close();
+        @Override
+        protected void onPostExecute(Integer filesWritten) {
+            try {
+                progressDialog.dismiss();
+            } catch (Exception e) {
+                // the activity may have been destroyed, don't care
+            }
 
-        if (error.length() > 0)
-            toastShort(R.string.preference_performance_exportData_toast_error, " " + error);
-        else if (filesWritten > 0)
-            toastShort(R.string.preference_performance_exportData_toast_success,
-                    " (wrote " + filesWritten + " file" + (filesWritten > 1 ? "s" : "") + ")");
-        else
-            toastShort(R.string.preference_performance_exportData_toast_noneWritten);
+            if (error.length() > 0)
+                toastShort(R.string.preference_performance_exportData_toast_error, " " + error);
+            else if (filesWritten > 0)
+                toastShort(R.string.preference_performance_exportData_toast_success,
+                        " (wrote " + filesWritten + " file" + (filesWritten > 1 ? "s" : "") + ")");
+            else
+                toastShort(R.string.preference_performance_exportData_toast_noneWritten);
+        }
     }
 
     private void doWipe() {
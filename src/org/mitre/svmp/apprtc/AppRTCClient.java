@@ -18,8 +18,10 @@ package org.mitre.svmp.apprtc;
 
 import android.os.AsyncTask;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.google.protobuf.InvalidProtocolBufferException;
@@ -30,23 +32,17 @@ import de.tavendo.autobahn.WebSocketException;
 import de.tavendo.autobahn.WebSocketOptions;
 
 import org.apache.http.*;
+import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.conn.ClientConnectionManager;
-import org.apache.http.conn.scheme.PlainSocketFactory;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpParams;
-import org.apache.http.params.HttpProtocolParams;
 import org.apache.http.protocol.HTTP;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.mitre.svmp.common.SessionInfo;
+import org.mitre.svmp.net.HttpClientCache;
 import org.mitre.svmp.net.SSLConfig;
 import org.mitre.svmp.performance.PerformanceTimer;
+import org.mitre.svmp.performance.StartupPhase;
 import org.mitre.svmp.services.SessionService;
 import org.mitre.svmp.activities.AppRTCActivity;
 import org.mitre.svmp.auth.AuthData;
@@ -78,7 +74,7 @@ import java.util.HashMap;
  * call connectToRoom().  Once that's done call sendMessage() and wait for the
  * registered handler to be called with received messages.
  */
-public class AppRTCClient extends Binder implements Constants {
+public class AppRTCClient extends Binder implements InputChannel.Listener, Constants {
     private static final String TAG = AppRTCClient.class.getName();
 
     // service and activity objects
@@ -92,6 +88,23 @@ public class AppRTCClient extends Binder implements Constants {
     private DatabaseHandler dbHandler;
     private boolean init = false; // switched to 'true' when activity first binds
     private boolean proxying = false; // switched to 'true' upon state machine change
+    private boolean hasVMREADY = false; // switched to 'true' when we receive VMREADY, reset when reconnecting
+    // requests that can't be sent yet, sent in order when we start proxying; before the VM is ready this only holds
+    // WebRTC messages (offer, candidates), while reconnecting it holds any outgoing request
+    private RequestBuffer pendingMessages = new RequestBuffer(MAX_PENDING_MESSAGES);
+
+    // reconnecting after the WebSocket drops while running (set in Preferences)
+    private static final long RECONNECT_DELAY_MIN = 500;  // ms, wait before the first attempt
+    private static final long RECONNECT_DELAY_MAX = 8000; // ms, the wait doubles after each failed attempt up to this
+    private static final long RECONNECT_TIMEOUT = 60000;  // ms, give up if we haven't reconnected in this long
+    private static final int MAX_PENDING_MESSAGES = 200;
+    private boolean autoReconnect;
+    private volatile boolean reconnecting = false; // only written while holding the lock on this, see startProxying
+    private volatile boolean networkChanged = false; // set when we drop the WebSocket because the network changed
+    private boolean reconnectPending = false; // whether a reconnect attempt is waiting to run
+    private long reconnectStart; // elapsedRealtime when the WebSocket dropped
+    private long reconnectDelay;
+    private Handler reconnectHandler = new Handler(Looper.getMainLooper());
 
     // performance instrumentation
     private PerformanceTimer performance;
@@ -102,6 +115,7 @@ public class AppRTCClient extends Binder implements Constants {
     private Socket socket;
     private SocketHandlerThread socketHandlerThread;
     private WebSocketConnection webSocket;
+    private volatile InputChannel inputChannel; // optional, input is sent over this when it's open
 
     // STEP 0: NEW -> STARTED
     public AppRTCClient(SessionService service, StateMachine machine, ConnectionInfo connectionInfo) {
@@ -128,6 +142,9 @@ public class AppRTCClient extends Binder implements Constants {
             int error = 0;
             // determine whether we should use SSL from the EncryptionType integer
             useSSL = connectionInfo.getEncryptionType() == Constants.ENCRYPTION_SSLTLS;
+            autoReconnect = Utility.getPrefBool(service,
+                    R.string.preferenceKey_connection_autoReconnect,
+                    R.string.preferenceValue_connection_autoReconnect);
 
             if (useSSL) {
                 sslConfig = new SSLConfig(connectionInfo, activity);
@@ -169,7 +186,13 @@ public class AppRTCClient extends Binder implements Constants {
     }
 
     public void disconnect() {
-        proxying = false;
+        synchronized (this) {
+            proxying = false;
+            reconnecting = false;
+        }
+        inputChannel = null;
+        reconnectHandler.removeCallbacks(reconnectAttempt);
+        pendingMessages.clear();
 
         // we're disconnecting, update the database record with the current timestamp
         dbHandler.close();
@@ -184,25 +207,217 @@ public class AppRTCClient extends Binder implements Constants {
     }
 
     public synchronized void sendMessage(Request msg) {
-        if (proxying) {
+        // input goes over the data channel if it's open, otherwise it falls back to the WebSocket
+        if (isInputRequest(msg.getType()) && sendOnInputChannel(msg)) {
+            return;
+        }
+        // while reconnecting, hold on to requests until the VM is ready again
+        if (!proxying && reconnecting) {
+            pendingMessages.add(msg);
+        }
+        // the PeerConnection can be set up before the VM is ready (see AppRTCVideoActivity.onAuthenticated)
+        else if (!proxying && msg.getType() == Request.RequestType.WEBRTC
+                && (machine.getState() == STATE.AUTH || machine.getState() == STATE.CONNECTED
+                || machine.getState() == STATE.RUNNING)) {
+            pendingMessages.add(msg);
+        }
+        else if (proxying) {
             //webSocket.sendBinaryMessage(msg.toByteArray());
             // VM is expecting a message delimiter (varint prefix) so write a delimited message instead
             try {
+                long encodeStart = System.nanoTime();
                 ByteArrayOutputStream stream = new ByteArrayOutputStream();
                 msg.writeDelimitedTo(stream);
-                webSocket.sendBinaryMessage(stream.toByteArray());
+                byte[] bytes = stream.toByteArray();
+                performance.getTrafficPerformanceData().recordOutgoing(msg.getType(), bytes.length,
+                        System.nanoTime() - encodeStart);
+                webSocket.sendBinaryMessage(bytes);
             } catch (IOException e) {
                 Log.e(TAG, "Error writing delimited byte output:", e);
             }
         }
     }
 
+    // called by AppRTCVideoActivity when the PeerConnection is created (or null when it's closed)
+    public void setInputChannel(InputChannel inputChannel) {
+        if (inputChannel != null)
+            inputChannel.setListener(this);
+        this.inputChannel = inputChannel;
+    }
+
+    public boolean isInputChannelOpen() {
+        InputChannel inputChannel = this.inputChannel;
+        return inputChannel != null && inputChannel.isOpen();
+    }
+
+    // returns false if the message couldn't be sent over the input data channel
+    public boolean sendOnInputChannel(Request msg) {
+        InputChannel inputChannel = this.inputChannel;
+        if (inputChannel == null || !inputChannel.isOpen())
+            return false;
+
+        // use the same framing as the WebSocket
+        try {
+            long encodeStart = System.nanoTime();
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            msg.writeDelimitedTo(stream);
+            byte[] bytes = stream.toByteArray();
+            long encodeNanos = System.nanoTime() - encodeStart;
+            if (inputChannel.send(bytes)) {
+                performance.getTrafficPerformanceData().recordOutgoing(msg.getType(), bytes.length, encodeNanos);
+                return true;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing delimited byte output:", e);
+        }
+        return false;
+    }
+
+    private static boolean isInputRequest(Request.RequestType type) {
+        return type == Request.RequestType.TOUCHEVENT || type == Request.RequestType.KEYEVENT
+                || type == Request.RequestType.SENSOREVENT;
+    }
+
+    // InputChannel.Listener interface method
+    // the VM only answers pings on the input channel; they measure the data channel's round-trip time
+    @Override
+    public void onInputChannelMessage(byte[] payload, long receivedNanos) {
+        try {
+            long decodeStart = System.nanoTime();
+            Response data = Response.parseFrom(payload);
+            performance.getTrafficPerformanceData().recordIncoming(data.getType(), payload.length,
+                    System.nanoTime() - decodeStart);
+            if (data.getType() == Response.ResponseType.PING && data.hasPingResponse())
+                performance.getDataChannelPingPerformanceData().onPingReceived(
+                        data.getPingResponse().getStartDate(), receivedNanos, -1, -1);
+            else
+                Log.w(TAG, "Unexpected message on input channel of type " + data.getType().name());
+        } catch (InvalidProtocolBufferException e) {
+            Log.e(TAG, "Unable to parse protobuf from input channel:", e);
+        }
+    }
+
+    // sets proxying (and ends reconnecting) and sends any queued messages, in one step so that no other message can
+    // get ahead, and none can arrive while we are neither reconnecting nor proxying and be dropped
+    private synchronized void startProxying() {
+        proxying = true;
+        reconnecting = false;
+        if (pendingMessages.size() > 0)
+            Log.d(TAG, String.format("Sending %d queued messages (%d coalesced or dropped)",
+                    pendingMessages.size(), pendingMessages.getDropped()));
+        for (Request msg : pendingMessages.take())
+            sendMessage(msg);
+    }
+
+    // called by SessionService when the active network changes
+    // the WebSocket is still bound to the old network, so drop it and reconnect now instead of waiting for it to time out
+    // the activity is told too, so it can restart ICE for the video
+    public void onNetworkChanged() {
+        performance.getPhaseTracer().begin(StartupPhase.MIGRATION);
+
+        if (reconnecting && reconnectPending) {
+            // we were waiting to try again, the new network may work now
+            reconnectHandler.removeCallbacks(reconnectAttempt);
+            reconnectDelay = 0;
+            postReconnect();
+        }
+        else if (proxying && autoReconnect && socket != null) {
+            networkChanged = true;
+            try {
+                socket.close(); // the WebSocket's onClose is called, which starts reconnecting
+            } catch (IOException e) {
+                // don't care
+            }
+        }
+
+        if (isBound())
+            activity.onNetworkChanged();
+    }
+
+    // called when the WebSocket drops unexpectedly; returns false if we can't reconnect, which is an error
+    private boolean startReconnecting() {
+        // we can only reconnect without logging in again if our session token is still valid
+        if (!autoReconnect || !hasVMREADY || sessionInfo.getExpires() <= new Date().getTime())
+            return false;
+
+        synchronized (this) {
+            proxying = false;
+            hasVMREADY = false;
+            reconnecting = true;
+        }
+        reconnectStart = SystemClock.elapsedRealtime();
+        // if we dropped the connection because the network changed, the new network is already up; don't wait
+        reconnectDelay = networkChanged ? 0 : RECONNECT_DELAY_MIN;
+        networkChanged = false;
+        performance.getPhaseTracer().begin(StartupPhase.RECONNECT);
+        toast(R.string.appRTC_toast_reconnect_start);
+        postReconnect();
+        return true;
+    }
+
+    private synchronized void postReconnect() {
+        reconnectPending = true;
+        reconnectHandler.postDelayed(reconnectAttempt, reconnectDelay);
+    }
+
+    // called when a reconnect attempt fails; waits longer before each attempt, until we run out of time
+    private void scheduleReconnect() {
+        if (!reconnecting)
+            return;
+
+        reconnectDelay = Math.min(Math.max(reconnectDelay * 2, RECONNECT_DELAY_MIN), RECONNECT_DELAY_MAX);
+        long elapsed = SystemClock.elapsedRealtime() - reconnectStart;
+        if (elapsed + reconnectDelay > RECONNECT_TIMEOUT || sessionInfo.getExpires() <= new Date().getTime()) {
+            Log.e(TAG, String.format("Failed to reconnect after %dms", elapsed));
+            synchronized (this) {
+                reconnecting = false;
+            }
+            machine.setState(STATE.ERROR, R.string.appRTC_toast_reconnect_fail); // RUNNING -> ERROR
+        }
+        else {
+            Log.d(TAG, String.format("Reconnect attempt failed, trying again in %dms", reconnectDelay));
+            reconnectHandler.removeCallbacks(reconnectAttempt); // a failed attempt can be reported more than once
+            postReconnect();
+        }
+    }
+
+    // reuses the session info we already have, so we connect straight to the proxy without logging in again
+    private Runnable reconnectAttempt = new Runnable() {
+        public void run() {
+            synchronized (AppRTCClient.this) {
+                reconnectPending = false;
+            }
+            if (!reconnecting)
+                return;
+            Log.d(TAG, "Attempting to reconnect");
+            if (socketHandlerThread != null)
+                socketHandlerThread.quitSafely();
+            connect();
+        }
+    };
+
+    // called when we receive VMREADY after reconnecting
+    private void finishReconnecting() {
+        performance.getPhaseTracer().end(StartupPhase.RECONNECT);
+        Log.i(TAG, String.format("Reconnected after %dms", SystemClock.elapsedRealtime() - reconnectStart));
+        startProxying(); // clears reconnecting
+        toast(R.string.appRTC_toast_reconnect_success);
+    }
+
+    private void toast(int resID) {
+        if (isBound())
+            activity.logAndToast(resID);
+        else
+            Log.d(TAG, service.getResources().getString(resID));
+    }
+
     // STEP 1: STARTED -> AUTH, Authenticate with the SVMP login REST service
     private class SVMPAuthenticator extends AsyncTask<JSONObject, Void, Integer> {
         private boolean passwordChange;
 
         @Override
         protected Integer doInBackground(JSONObject... jsonObjects) {
+            performance.getPhaseTracer().begin(StartupPhase.AUTHENTICATE);
             int returnVal = R.string.appRTC_toast_socketConnector_fail; // generic error message
             JSONObject jsonRequest = jsonObjects[0];
 
@@ -214,25 +429,16 @@ public class AppRTCClient extends Binder implements Constants {
                     api = passwordChange ? "changePassword" : "login",
                     uri = String.format("%s://%s:%d/%s", proto, rHost, rPort, api);
 
-            // set up HttpParams
-            HttpParams params = new BasicHttpParams();
-            HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
-            HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
-
-            // set up ConnectionManager
-            SchemeRegistry registry = new SchemeRegistry();
-            registry.register(new Scheme(proto, useSSL ? sslConfig.getSocketFactory() : PlainSocketFactory.getSocketFactory(), rPort));
-            ClientConnectionManager ccm = new ThreadSafeClientConnManager(params, registry);
-
-            // create HttpClient
-            DefaultHttpClient httpclient = new DefaultHttpClient(ccm, params);
+            // get the HttpClient for this connection; its kept-alive connections are reused across logins
+            HttpClient httpclient = HttpClientCache.getClient(connectionInfo, useSSL, sslConfig);
             HttpPost post = new HttpPost(uri);
             post.setHeader(HTTP.CONTENT_TYPE, "application/json");
 
+            HttpResponse response = null;
             try {
                 StringEntity entity = new StringEntity(jsonRequest.toString());
                 post.setEntity(entity);
-                HttpResponse response = httpclient.execute(post);
+                response = httpclient.execute(post);
                 int responseCode = response.getStatusLine().getStatusCode();
 
                 if (responseCode == 200) { // "OK", code for AUTH_OK
@@ -297,7 +503,17 @@ public class AppRTCClient extends Binder implements Constants {
                 }
             } catch (IOException e) {
                 Log.e(TAG, "HTTP request failed:", e);
+            } finally {
+                // read the rest of the response, so the connection can be reused
+                if (response != null && response.getEntity() != null) {
+                    try {
+                        response.getEntity().consumeContent();
+                    } catch (IOException e) {
+                        // don't care
+                    }
+                }
             }
+            performance.getPhaseTracer().end(StartupPhase.AUTHENTICATE);
             return returnVal;
         }
 
@@ -343,6 +559,7 @@ public class AppRTCClient extends Binder implements Constants {
     private class SocketConnector extends AsyncTask<Void, Void, Integer> {
         @Override
         protected Integer doInBackground(Void... params) {
+            performance.getPhaseTracer().begin(StartupPhase.SOCKET_CONNECT);
             int returnVal = R.string.appRTC_toast_socketConnector_fail; // resID for return message
 
             try {
@@ -390,12 +607,15 @@ public class AppRTCClient extends Binder implements Constants {
                 Log.e(TAG, "Exception: " + e.getMessage());
                 e.printStackTrace();
             }
+            performance.getPhaseTracer().end(StartupPhase.SOCKET_CONNECT);
             return returnVal;
         }
 
         @Override
         protected void onPostExecute(Integer result) {
-            if (result != 0) {
+            if (result != 0 && reconnecting) {
+                scheduleReconnect();
+            } else if (result != 0) {
                 machine.setState(STATE.ERROR, result); // STARTED -> ERROR
             } else {
                 // we have to run the WebSocket connection in a HandlerThread to ensure that Looper is prepared
@@ -431,26 +651,42 @@ public class AppRTCClient extends Binder implements Constants {
             // now establish a WebSocketConnection
             try {
                 webSocket = new WebSocketConnection();
+                performance.getPhaseTracer().begin(StartupPhase.WEBSOCKET_UPGRADE);
                 webSocket.connect(socket, uri, null, observer, options);
             } catch (WebSocketException e) {
                 Log.e(TAG, "Failed to connect to SVMP proxy:", e);
-                machine.setState(STATE.ERROR, R.string.appRTC_toast_socketConnector_fail);
+                if (reconnecting)
+                    scheduleReconnect();
+                else
+                    machine.setState(STATE.ERROR, R.string.appRTC_toast_socketConnector_fail);
             }
         }
     }
 
     WebSocket.WebSocketConnectionObserver observer = new WebSocket.WebSocketConnectionObserver() {
-        private boolean hasVMREADY;
         @Override
         public void onOpen() {
             Log.i(TAG, "WebSocket connected.");
-            machine.setState(STATE.CONNECTED, R.string.appRTC_toast_socketConnector_success); // AUTH -> CONNECTED
+            performance.getPhaseTracer().end(StartupPhase.WEBSOCKET_UPGRADE);
+            performance.getPhaseTracer().begin(StartupPhase.VM_READY);
+            // if we're reconnecting, the state is still RUNNING
+            if (!reconnecting)
+                machine.setState(STATE.CONNECTED, R.string.appRTC_toast_socketConnector_success); // AUTH -> CONNECTED
             // wait for VMREADY
         }
 
         @Override
         public void onClose(WebSocketCloseNotification code, String reason) {
-            if (proxying || machine.getState() == STATE.AUTH || machine.getState() == STATE.CONNECTED) {
+            if (reconnecting) {
+                // a reconnect attempt failed
+                Log.w(TAG, "WebSocket disconnected while reconnecting: " + code.toString() + ", " + reason);
+                scheduleReconnect();
+            }
+            else if (proxying && startReconnecting()) {
+                // we were disconnected unexpectedly, but we can try to reconnect with the same session
+                Log.w(TAG, "WebSocket disconnected, reconnecting: " + code.toString() + ", " + reason);
+            }
+            else if (proxying || machine.getState() == STATE.AUTH || machine.getState() == STATE.CONNECTED) {
                 // either we were disconnected unexpectedly, or the connection was never successfully established
                 // we haven't called disconnect(), this was an error; log this as an Error message and change state
                 changeToErrorState();
@@ -469,7 +705,10 @@ public class AppRTCClient extends Binder implements Constants {
         @Override
         public void onBinaryMessage(byte[] payload) {
             try {
+                long decodeStart = System.nanoTime();
                 Response data = Response.parseFrom(payload);
+                performance.getTrafficPerformanceData().recordIncoming(data.getType(), payload.length,
+                        System.nanoTime() - decodeStart);
                 Log.d(TAG, "Received incoming message object of type " + data.getType().name());
                 onResponse(data);
             } catch (InvalidProtocolBufferException e) {
@@ -503,10 +742,16 @@ public class AppRTCClient extends Binder implements Constants {
             // any other message type throws us into an error state
 
             // act on the status code
-            if (error == 0) { // success
+            if (error == 0 && reconnecting) { // success, the session continues where it left off
+                performance.getPhaseTracer().end(StartupPhase.VM_READY);
+                hasVMREADY = true;
+                finishReconnecting();
+            }
+            else if (error == 0) { // success
+                performance.getPhaseTracer().end(StartupPhase.VM_READY);
                 hasVMREADY = true;
                 machine.setState(STATE.RUNNING, R.string.appRTC_toast_svmpReadyWait_success); // CONNECTED -> RUNNING
-                proxying = true;
+                startProxying();
 
                 // callbacks to the service and activity to let them know the connection has started
                 service.onOpen();
@@ -516,8 +761,12 @@ public class AppRTCClient extends Binder implements Constants {
                 // start taking performance measurements
                 performance.start();
             }
-            else // fail with the appropriate error message
+            else { // fail with the appropriate error message
+                synchronized (AppRTCClient.this) {
+                    reconnecting = false;
+                }
                 machine.setState(STATE.ERROR, error);
+            }
         }
 
         // STEP 4: RUNNING
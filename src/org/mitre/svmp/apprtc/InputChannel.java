@@ -0,0 +1,100 @@
+/*
+ Copyright 2013 The MITRE Corporation, All Rights Reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this work except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.mitre.svmp.apprtc;
+
+import android.util.Log;
+import org.webrtc.DataChannel;
+import org.webrtc.PeerConnection;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author Joe Portner
+ * A WebRTC data channel to the VM that carries input (touch, key, and sensor events) and pings
+ * The PeerConnection uses RTP data channels, which are always unordered and never retransmitted, so a lost packet only
+ * loses that event instead of holding up the events behind it, as it would on the WebSocket's TCP connection
+ * (RTP channels refuse an Init that sets ordering or retransmits, so the defaults are used)
+ * The channel is added to the offer, so the VM can accept it; until it is open, AppRTCClient uses the WebSocket
+ */
+public class InputChannel implements DataChannel.Observer {
+    private static final String TAG = InputChannel.class.getName();
+    public static final String LABEL = "input";
+
+    public interface Listener {
+        // called on the signaling thread; receivedNanos is taken from System.nanoTime()
+        void onInputChannelMessage(byte[] payload, long receivedNanos);
+    }
+
+    private DataChannel dataChannel;
+    private volatile Listener listener;
+
+    private InputChannel(DataChannel dataChannel) {
+        this.dataChannel = dataChannel;
+        dataChannel.registerObserver(this);
+    }
+
+    // must be called before the offer is created; returns null if the channel can't be created, in which case input
+    // is sent over the WebSocket
+    public static InputChannel create(PeerConnection pc) {
+        DataChannel dataChannel = pc.createDataChannel(LABEL, new DataChannel.Init());
+        if (dataChannel == null) {
+            Log.e(TAG, "Failed to create input channel, sending input over the WebSocket");
+            return null;
+        }
+        return new InputChannel(dataChannel);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public synchronized boolean isOpen() {
+        return dataChannel != null && dataChannel.state() == DataChannel.State.OPEN;
+    }
+
+    // returns false if the message wasn't sent, e.g. the channel isn't open
+    public synchronized boolean send(byte[] bytes) {
+        return isOpen() && dataChannel.send(new DataChannel.Buffer(ByteBuffer.wrap(bytes), true));
+    }
+
+    // DataChannel.Observer interface method
+    @Override
+    public void onStateChange() {
+        DataChannel dataChannel = this.dataChannel;
+        if (dataChannel != null)
+            Log.d(TAG, "Input channel state: " + dataChannel.state());
+    }
+
+    // DataChannel.Observer interface method
+    @Override
+    public void onMessage(DataChannel.Buffer buffer) {
+        long receivedNanos = System.nanoTime(); // immediately get receive time
+        byte[] payload = new byte[buffer.data.remaining()];
+        buffer.data.get(payload);
+        Listener listener = this.listener;
+        if (listener != null)
+            listener.onInputChannelMessage(payload, receivedNanos);
+    }
+
+    public synchronized void close() {
+        if (dataChannel != null) {
+            dataChannel.unregisterObserver();
+            dataChannel.close();
+            dataChannel.dispose();
+            dataChannel = null;
+        }
+    }
+}
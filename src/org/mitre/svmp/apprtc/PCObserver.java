@@ -49,18 +49,30 @@ import org.appspot.apprtc.VideoStreamsView;
 import org.json.JSONObject;
 import org.mitre.svmp.activities.AppRTCVideoActivity;
 import org.mitre.svmp.client.R;
+import org.mitre.svmp.common.Utility;
+import org.mitre.svmp.performance.PerformanceAdapter;
+import org.mitre.svmp.performance.StartupPhase;
 import org.webrtc.*;
 
 import java.util.LinkedList;
 import java.util.List;
 
 //Implementation detail: observe ICE & stream changes and react accordingly.
-public class PCObserver implements PeerConnection.Observer {
+public class PCObserver implements PeerConnection.Observer, QualityController.Listener {
     static final String TAG = PCObserver.class.getName();
+    static final int PAUSED_BITRATE = 30; // kbps, the bitrate cap while video is paused
     AppRTCVideoActivity activity;
     PeerConnection pc;
     LinkedList<IceCandidate> queuedRemoteCandidates;
     PeerConnectionFactory factory;
+    WebRTCStatsCollector statsCollector;
+    InputChannel inputChannel; // null unless input should be sent over a data channel (set in Preferences)
+    volatile int bitrateCap; // kbps, 0 means no cap
+    volatile boolean videoPaused; // set while the activity is hidden
+    VideoTrack remoteVideoTrack;
+    VideoCallbacks videoCallbacks;
+    boolean renegotiate; // set when the bitrate cap changes while an offer/answer exchange is in progress
+    boolean iceRestart; // set when the next offer should restart ICE
     boolean quit;
 
     public PCObserver(AppRTCVideoActivity activity) {
@@ -80,44 +92,42 @@ public class PCObserver implements PeerConnection.Observer {
             pc.addIceCandidate(candidate);
     }
 
-    // Just for fun (and to regression-test bug 2302) make sure that DataChannels
-    // can be created, queried, and disposed.
-    public static void createDataChannelToRegressionTestBug2302(PeerConnection pc) {
-        DataChannel dc = pc.createDataChannel("dcLabel", new DataChannel.Init());
-        AppRTCHelper.abortUnless("dcLabel".equals(dc.label()), "Unexpected label corruption?");
-        dc.close();
-        dc.dispose();
+    public InputChannel getInputChannel() {
+        return inputChannel;
     }
 
     public void onIceServers(List<PeerConnection.IceServer> iceServers) {
+        PerformanceAdapter performanceAdapter = activity.getPerformanceAdapter();
+        performanceAdapter.beginPhase(StartupPhase.PEER_CONNECTION);
         factory = new PeerConnectionFactory();
         MediaConstraints pcConstraints = activity.getPCConstraints();
         pcConstraints.optional.add(new MediaConstraints.KeyValuePair("RtpDataChannels", "true"));
         pc = factory.createPeerConnection(
                 iceServers, pcConstraints, this);
 
-        createDataChannelToRegressionTestBug2302(pc);
-
-        final PeerConnection finalPC = pc;
-        final Runnable repeatedStatsLogger = new Runnable() {
-            public void run() {
-                if (quit)
-                    return;
+        // find out if we should send input over a data channel instead of the WebSocket (set in Preferences)
+        // the channel has to be created before the offer, so it's included in the offer
+        boolean useInputChannel = Utility.getPrefBool(activity,
+                R.string.preferenceKey_connection_inputDataChannel,
+                R.string.preferenceValue_connection_inputDataChannel);
+        if (useInputChannel)
+            inputChannel = InputChannel.create(pc); // null if the channel can't be created
+        performanceAdapter.endPhase(StartupPhase.PEER_CONNECTION);
+        performanceAdapter.beginPhase(StartupPhase.ICE);
 
-                final Runnable runnableThis = this;
-                boolean success = finalPC.getStats(new StatsObserver() {
-                    public void onComplete(StatsReport[] reports) {
-                        for (StatsReport report : reports)
-                            Log.d(TAG, "Stats: " + report.toString());
-                        activity.getVSV().postDelayed(runnableThis, 10000);
-                    }
-                }, null);
-                if (!success) {
-                    throw new RuntimeException("getStats() return false!");
-                }
-            }
-        };
-        activity.getVSV().postDelayed(repeatedStatsLogger, 10000);
+        // find out how often to collect WebRTC stats (set in Preferences), 0 disables stats collection
+        int statsInterval = Utility.getPrefInt(activity,
+                R.string.preferenceKey_performance_statsInterval,
+                R.string.preferenceValue_performance_statsInterval);
+        // find out if we should adapt video quality to network conditions (set in Preferences)
+        boolean adaptiveQuality = Utility.getPrefBool(activity,
+                R.string.preferenceKey_connection_adaptiveQuality,
+                R.string.preferenceValue_connection_adaptiveQuality);
+        if (statsInterval > 0) {
+            statsCollector = new WebRTCStatsCollector(activity.getVSV(), pc, performanceAdapter,
+                    adaptiveQuality ? new QualityController(this) : null, statsInterval);
+            statsCollector.start();
+        }
 
         activity.logAndToast(R.string.appRTC_toast_getIceServers_start);
     }
@@ -156,11 +166,32 @@ public class PCObserver implements PeerConnection.Observer {
     }
 
     @Override
-    public void onSignalingChange(PeerConnection.SignalingState newState) {
+    public void onSignalingChange(final PeerConnection.SignalingState newState) {
+        if (newState == PeerConnection.SignalingState.STABLE) {
+            activity.runOnUiThread(new Runnable() {
+                public void run() {
+                    if (renegotiate || iceRestart) {
+                        renegotiate = false;
+                        createOffer();
+                    }
+                }
+            });
+        }
     }
 
     @Override
     public void onIceConnectionChange(PeerConnection.IceConnectionState newState) {
+        Log.d(TAG, "ICE connection state: " + newState);
+        if (newState == PeerConnection.IceConnectionState.CONNECTED
+                || newState == PeerConnection.IceConnectionState.COMPLETED) {
+            PerformanceAdapter performanceAdapter = activity.getPerformanceAdapter();
+            performanceAdapter.endPhase(StartupPhase.ICE);
+            performanceAdapter.endPhase(StartupPhase.MIGRATION);
+        }
+        else if (newState == PeerConnection.IceConnectionState.FAILED) {
+            // none of the candidate pairs work anymore; gather new candidates and try again
+            restartIce();
+        }
     }
 
     @Override
@@ -169,14 +200,23 @@ public class PCObserver implements PeerConnection.Observer {
 
     @Override
     public void onAddStream(final MediaStream stream) {
+        PerformanceAdapter performanceAdapter = activity.getPerformanceAdapter();
+        performanceAdapter.instantPhase(StartupPhase.ADD_STREAM);
+        performanceAdapter.beginPhase(StartupPhase.FIRST_FRAME);
         new Thread(new Runnable() {
             public void run() {
                 AppRTCHelper.abortUnless(//stream.audioTracks.size() == 1 &&
                         stream.videoTracks.size() <= 1,
                         "Weird-looking stream: " + stream);
                 if(stream.videoTracks.size() == 1) {
-                    stream.videoTracks.get(0).addRenderer(new VideoRenderer(
-                            new VideoCallbacks(activity.getVSV(), VideoStreamsView.Endpoint.REMOTE)));
+                    VideoTrack videoTrack = stream.videoTracks.get(0);
+                    VideoCallbacks callbacks = new VideoCallbacks(activity.getVSV(), VideoStreamsView.Endpoint.REMOTE);
+                    videoTrack.addRenderer(new VideoRenderer(callbacks));
+                    synchronized (PCObserver.this) {
+                        remoteVideoTrack = videoTrack;
+                        videoCallbacks = callbacks;
+                        applyVideoPaused(); // the activity may have been hidden before the stream was added
+                    }
                 }
 
                 activity.runOnUiThread(new Runnable() {
@@ -192,20 +232,20 @@ public class PCObserver implements PeerConnection.Observer {
     public void onRemoveStream(final MediaStream stream) {
         new Thread(new Runnable() {
             public void run() {
+                synchronized (PCObserver.this) {
+                    remoteVideoTrack = null;
+                    videoCallbacks = null;
+                }
                 stream.videoTracks.get(0).dispose();
             }
         }).start();
     }
 
+    // we only use the input channel that we create; we don't accept channels from the VM
     @Override
     public void onDataChannel(final DataChannel dc) {
-        new Thread(new Runnable() {
-            public void run() {
-                throw new RuntimeException(
-                        "AppRTC doesn't use data channels, but got: " + dc.label() +
-                                " anyway!");
-            }
-        }).start();
+        Log.w(TAG, "Closing unexpected data channel from the VM: " + dc.label());
+        dc.close();
     }
 
     @Override public void onRenegotiationNeeded() {
@@ -213,8 +253,104 @@ public class PCObserver implements PeerConnection.Observer {
         // signaling/negotiation protocol.
     }
 
+    // returns the bitrate cap to put in the next offer
+    public int getBitrateCap() {
+        return videoPaused ? PAUSED_BITRATE : bitrateCap;
+    }
+
+    // QualityController.Listener interface method, called on the signaling thread
+    // renegotiate so the VM receives a new offer with the bitrate cap
+    @Override
+    public void onBitrateCapChanged(final int bitrate) {
+        Log.d(TAG, "Changing video bitrate cap to " + (bitrate > 0 ? bitrate + "kbps" : "none"));
+        activity.runOnUiThread(new Runnable() {
+            public void run() {
+                bitrateCap = bitrate;
+                if (!videoPaused)
+                    renegotiate();
+            }
+        });
+    }
+
+    // called on the UI thread when the activity is hidden or shown
+    // while paused, the remote video track is disabled, frames are dropped before they're copied, and the VM is asked
+    // to send at PAUSED_BITRATE; the stream isn't stopped, so it doesn't have to be renegotiated from scratch on resume
+    public void setVideoPaused(boolean paused) {
+        if (videoPaused == paused)
+            return;
+        Log.d(TAG, paused ? "Pausing video" : "Resuming video");
+        videoPaused = paused;
+        synchronized (this) {
+            applyVideoPaused();
+        }
+        if (statsCollector != null)
+            statsCollector.setPaused(paused);
+        renegotiate();
+    }
+
+    private void applyVideoPaused() {
+        if (videoCallbacks != null)
+            videoCallbacks.setPaused(videoPaused);
+        if (remoteVideoTrack != null)
+            remoteVideoTrack.setEnabled(!videoPaused);
+    }
+
+    // sends a new offer with the current bitrate cap; must be called on the UI thread
+    private void renegotiate() {
+        if (pc == null || quit)
+            return;
+        if (pc.signalingState() == PeerConnection.SignalingState.STABLE)
+            createOffer();
+        else
+            renegotiate = true; // wait for the current exchange to finish
+    }
+
+    // gathers new ICE candidates and sends a new offer, e.g. after the active network has changed
+    public void restartIce() {
+        activity.runOnUiThread(new Runnable() {
+            public void run() {
+                if (pc == null || quit)
+                    return;
+                Log.d(TAG, "Restarting ICE");
+                iceRestart = true;
+                if (pc.signalingState() == PeerConnection.SignalingState.STABLE)
+                    createOffer();
+                // otherwise, wait for the current exchange to finish
+            }
+        });
+    }
+
+    private void createOffer() {
+        if (pc == null || quit)
+            return;
+
+        MediaConstraints constraints = activity.getSdpMediaConstraints();
+        if (iceRestart) {
+            iceRestart = false;
+            MediaConstraints restartConstraints = new MediaConstraints();
+            restartConstraints.mandatory.addAll(constraints.mandatory);
+            restartConstraints.optional.addAll(constraints.optional);
+            restartConstraints.mandatory.add(new MediaConstraints.KeyValuePair("IceRestart", "true"));
+            constraints = restartConstraints;
+        }
+        pc.createOffer(activity.getSDPObserver(), constraints);
+    }
+
     public void quit() {
         quit = true;
+        if (statsCollector != null) {
+            statsCollector.stop();
+            statsCollector = null;
+        }
+        if (inputChannel != null) {
+            inputChannel.close();
+            inputChannel = null;
+        }
+        synchronized (this) {
+            // the track is disposed along with the PeerConnection
+            remoteVideoTrack = null;
+            videoCallbacks = null;
+        }
         if (pc != null) {
             pc.dispose();
             pc = null;
@@ -0,0 +1,120 @@
+/*
+ Copyright 2013 The MITRE Corporation, All Rights Reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this work except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.mitre.svmp.apprtc;
+
+/**
+ * @author Joe Portner
+ * Decides how much bandwidth the VM should use for video, based on the receive stats of the video stream
+ * Steps the bitrate cap down quickly when the network is congested, and back up slowly once it recovers; if a step up
+ * causes congestion again, the next step up waits longer (hysteresis)
+ * This class doesn't use any Android or WebRTC APIs, and time is passed in, so it can be driven by a simulated trace
+ */
+public class QualityController {
+    // bitrate caps in kbps, from best to worst quality; 0 means no cap
+    public static final int[] BITRATE_LEVELS = {0, 1500, 800, 400, 200};
+
+    private static final double LOSS_CONGESTED = 0.05; // packet loss at or above this is congestion
+    private static final double LOSS_CLEAR = 0.01;     // packet loss must be below this to step up
+    private static final double RTT_CONGESTED = 2.0;   // RTT at or above this multiple of the lowest RTT is congestion
+    private static final double RTT_CLEAR = 1.25;      // RTT must be below this multiple of the lowest RTT to step up
+    private static final double RTT_SLACK = 50;        // ms added to the lowest RTT before the multiples are applied
+    private static final double RENDER_CONGESTED = 0.75; // rendering fewer than this share of received frames is congestion
+
+    private static final int CONGESTED_SAMPLES = 2;    // consecutive congested samples needed to step down
+    private static final long DOWN_HOLD = 4000;        // ms to wait after any change before stepping down again
+    private static final long UP_HOLD = 15000;         // ms of clear samples needed to step up
+    private static final long UP_HOLD_MAX = 120000;    // ms, upper limit for the step up wait after repeated failures
+    private static final long FAILED_UP_WINDOW = 10000; // ms, congestion this soon after a step up means it failed
+
+    public interface Listener {
+        // bitrate is in kbps, 0 means no cap
+        void onBitrateCapChanged(int bitrate);
+    }
+
+    private Listener listener;
+    private int level;               // index into BITRATE_LEVELS
+    private double minRtt = -1;      // lowest RTT seen, used as the uncongested baseline
+    private int congestedSamples;
+    private long lastChange = -1;    // when the level last changed
+    private long clearSince = -1;    // when the current run of clear samples started
+    private long upHold = UP_HOLD;
+    private boolean steppedUp;       // whether the last change was a step up
+
+    public QualityController(Listener listener) {
+        this.listener = listener;
+    }
+
+    // returns the current bitrate cap in kbps, 0 means no cap
+    public int getBitrateCap() {
+        return BITRATE_LEVELS[level];
+    }
+
+    /**
+     * Called each time stats are collected; any value can be -1 (unknown)
+     * @param now           time in ms, from any monotonic clock
+     * @param packetLoss    % (0.0 to 1.0) of packets lost since the last update
+     * @param rtt           ms
+     * @param receivedFps   frames per second received
+     * @param renderedFps   frames per second rendered
+     */
+    public void update(long now, double packetLoss, double rtt, double receivedFps, double renderedFps) {
+        if (rtt > 0 && (minRtt < 0 || rtt < minRtt))
+            minRtt = rtt;
+        double rttBase = minRtt + RTT_SLACK;
+
+        boolean congested = packetLoss >= LOSS_CONGESTED
+                || (rtt > 0 && minRtt > 0 && rtt >= rttBase * RTT_CONGESTED)
+                || (receivedFps > 0 && renderedFps >= 0 && renderedFps < receivedFps * RENDER_CONGESTED);
+        boolean clear = !congested
+                && packetLoss >= 0 && packetLoss < LOSS_CLEAR
+                && (rtt < 0 || minRtt < 0 || rtt < rttBase * RTT_CLEAR);
+
+        if (congested) {
+            clearSince = -1;
+            congestedSamples++;
+            if (congestedSamples >= CONGESTED_SAMPLES && level < BITRATE_LEVELS.length - 1
+                    && (lastChange < 0 || now - lastChange >= DOWN_HOLD)) {
+                // if we recently stepped up and that caused congestion, wait longer before the next step up
+                if (steppedUp && now - lastChange < FAILED_UP_WINDOW)
+                    upHold = Math.min(upHold * 2, UP_HOLD_MAX);
+                setLevel(level + 1, now, false);
+            }
+        }
+        else {
+            congestedSamples = 0;
+            if (!clear)
+                clearSince = -1;
+            else if (clearSince < 0)
+                clearSince = now;
+            else if (level > 0 && now - clearSince >= upHold && now - lastChange >= upHold) {
+                setLevel(level - 1, now, true);
+                clearSince = now;
+            }
+            // a step up that has held for a while is a success; go back to the normal wait
+            if (steppedUp && lastChange >= 0 && now - lastChange >= FAILED_UP_WINDOW)
+                upHold = UP_HOLD;
+        }
+    }
+
+    private void setLevel(int level, long now, boolean steppedUp) {
+        this.level = level;
+        this.lastChange = now;
+        this.steppedUp = steppedUp;
+        this.congestedSamples = 0;
+        if (listener != null)
+            listener.onBitrateCapChanged(BITRATE_LEVELS[level]);
+    }
+}
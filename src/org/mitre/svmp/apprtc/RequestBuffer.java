@@ -0,0 +1,139 @@
+/*
+ Copyright 2013 The MITRE Corporation, All Rights Reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this work except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.mitre.svmp.apprtc;
+
+import android.view.MotionEvent;
+import org.mitre.svmp.protocol.SVMPProtocol.Request;
+import org.mitre.svmp.protocol.SVMPProtocol.Request.RequestType;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * @author Joe Portner
+ * Holds outgoing requests while the WebSocket isn't connected, so they can be sent in order once it is
+ * Requests that only matter for their latest value are coalesced: a sensor event replaces the buffered event of the same
+ * sensor type, and pings are dropped (they would only measure the outage)
+ * If the buffer is full:
+ *   WebRTC messages are never dropped
+ *   touch events are dropped as whole gestures: a gesture that starts while the buffer is full is dropped up to and
+ *   including its ACTION_UP or ACTION_CANCEL; in a gesture that is already buffered, the newest moves are dropped, but
+ *   pointer downs/ups and the end of the gesture are kept, so the VM never replays half a gesture
+ *   for anything else, the oldest buffered request that isn't a WebRTC message or a touch event is dropped, or the new
+ *   request itself if there isn't one
+ * Requests that are kept must be added even when the buffer is full, so it can hold a few more than its capacity
+ */
+public class RequestBuffer {
+    private int capacity;
+    private List<Request> requests = new ArrayList<Request>();
+    private int dropped; // requests that were coalesced or dropped since the last clear
+    private boolean droppingGesture; // the current touch gesture started while the buffer was full
+
+    public RequestBuffer(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public synchronized void add(Request request) {
+        RequestType type = request.getType();
+        if (type == RequestType.PING) {
+            dropped++;
+            return;
+        }
+        else if (type == RequestType.SENSOREVENT && request.getSensorCount() > 0) {
+            Iterator<Request> iterator = requests.iterator();
+            while (iterator.hasNext()) {
+                Request buffered = iterator.next();
+                if (buffered.getType() == RequestType.SENSOREVENT && buffered.getSensorCount() > 0
+                        && buffered.getSensor(0).getType() == request.getSensor(0).getType()) {
+                    iterator.remove();
+                    dropped++;
+                    break;
+                }
+            }
+        }
+        else if (type == RequestType.TOUCHEVENT && request.getTouchCount() > 0) {
+            addTouch(request);
+            return;
+        }
+
+        if (requests.size() >= capacity && !dropOldest() && type != RequestType.WEBRTC) {
+            dropped++; // nothing older can be dropped, so drop this one
+            return;
+        }
+        requests.add(request);
+    }
+
+    private void addTouch(Request request) {
+        int action = request.getTouch(0).getAction() & MotionEvent.ACTION_MASK;
+        boolean endsGesture = action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL;
+        if (action == MotionEvent.ACTION_DOWN)
+            droppingGesture = requests.size() >= capacity && !dropOldest();
+        if (droppingGesture) {
+            dropped++;
+            if (endsGesture)
+                droppingGesture = false;
+            return;
+        }
+
+        if (requests.size() >= capacity && !dropOldest()) {
+            // the gesture's start is buffered, so keep anything that changes its pointers and drop only moves
+            boolean keep = endsGesture || action == MotionEvent.ACTION_POINTER_DOWN
+                    || action == MotionEvent.ACTION_POINTER_UP;
+            if (!keep) {
+                dropped++;
+                return;
+            }
+        }
+        requests.add(request);
+    }
+
+    // drops the oldest request that isn't a WebRTC message or a touch event; returns false if there isn't one
+    private boolean dropOldest() {
+        Iterator<Request> iterator = requests.iterator();
+        while (iterator.hasNext()) {
+            RequestType type = iterator.next().getType();
+            if (type != RequestType.WEBRTC && type != RequestType.TOUCHEVENT) {
+                iterator.remove();
+                dropped++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // returns the buffered requests in the order they were added, and empties the buffer
+    public synchronized List<Request> take() {
+        List<Request> value = requests;
+        requests = new ArrayList<Request>();
+        dropped = 0;
+        return value;
+    }
+
+    public synchronized void clear() {
+        requests.clear();
+        dropped = 0;
+        droppingGesture = false;
+    }
+
+    public synchronized int size() {
+        return requests.size();
+    }
+
+    public synchronized int getDropped() {
+        return dropped;
+    }
+}
@@ -47,6 +47,7 @@ import android.util.Log;
 import org.json.JSONObject;
 import org.mitre.svmp.activities.AppRTCVideoActivity;
 import org.mitre.svmp.client.R;
+import org.mitre.svmp.performance.StartupPhase;
 import org.webrtc.PeerConnection;
 import org.webrtc.SdpObserver;
 import org.webrtc.SessionDescription;
@@ -67,8 +68,10 @@ public class SDPObserver implements SdpObserver {
         new Thread(new Runnable() {
             public void run() {
                 activity.logAndToast(R.string.appRTC_toast_sdpObserver_sendOffer);
-                SessionDescription sdp = new SessionDescription(
-                        origSdp.type, AppRTCHelper.preferISAC(origSdp.description));
+                // if the QualityController has capped the video bitrate, ask the VM to send no more than that
+                String description = activity.getSdpPolicy().applyLocal(origSdp.description,
+                        activity.getPCObserver().getBitrateCap());
+                SessionDescription sdp = new SessionDescription(origSdp.type, description);
 
                 activity.getPCObserver().getPC().setLocalDescription(parent, sdp);
             }
@@ -91,9 +94,12 @@ public class SDPObserver implements SdpObserver {
             public void run() {
                 PCObserver pcObserver = activity.getPCObserver();
                 //if (activity.isInitiator()) {
-                    if (pcObserver.getPC().getRemoteDescription() != null) {
+                    // check the signaling state instead of the remote description, so this also works when
+                    // renegotiating (the remote description from the first negotiation is still set)
+                    if (pcObserver.getPC().signalingState() != PeerConnection.SignalingState.HAVE_LOCAL_OFFER) {
                         // We've set our local offer and received & set the remote
                         // answer, so drain candidates.
+                        activity.getPerformanceAdapter().endPhase(StartupPhase.OFFER_ANSWER);
                         pcObserver.drainRemoteCandidates();
                     } else {
                         // We've just set our local description so time to send it.
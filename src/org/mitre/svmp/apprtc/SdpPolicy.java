@@ -0,0 +1,375 @@
+/*
+ Copyright 2013 The MITRE Corporation, All Rights Reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this work except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.mitre.svmp.apprtc;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * @author Joe Portner
+ * Rewrites SDP to apply a connection's codec and bitrate rules (replaces preferISAC and setVideoBandwidth)
+ * Rules are a string of "key=value" pairs separated by semicolons, e.g. "video=H264,VP8;maxBitrate=1500;audio=off"
+ *   video         preferred video codecs, most preferred first (default: codecs that this device can decode in hardware)
+ *   audio         preferred audio codecs, optionally with a clock rate (default: ISAC/16000), or "off" to remove audio
+ *   maxBitrate    the most video the VM should send, in kbps (b=AS and x-google-max-bitrate)
+ *   minBitrate    the least video the VM should send, in kbps (x-google-min-bitrate)
+ *   startBitrate  the video bitrate the VM should start at, in kbps (x-google-start-bitrate)
+ * Our offer can also ask the VM for a video resolution (a=imageattr), see setReceiveResolution
+ * The SDP is scanned once, line by line, without regular expressions
+ */
+public class SdpPolicy {
+    private static final String TAG = SdpPolicy.class.getName();
+    private static final String CRLF = "\r\n";
+    private static final String DEFAULT_AUDIO = "ISAC/16000";
+
+    // these payload types aren't codecs of their own, so they keep their place after the real codecs
+    private static final String[] SUPPORT_CODECS = {"red", "ulpfec", "rtx", "cn", "telephone-event"};
+
+    // maps MediaCodec MIME types to SDP codec names
+    private static final String[][] VIDEO_MIME_TYPES = {
+            {"video/avc", "H264"},
+            {"video/x-vnd.on2.vp8", "VP8"},
+            {"video/x-vnd.on2.vp9", "VP9"}
+    };
+
+    private static List<String> hardwareVideoCodecs; // lazily initialized
+
+    private List<String> videoCodecs = new ArrayList<String>();
+    private List<String> audioCodecs = new ArrayList<String>();
+    private boolean audioEnabled = true;
+    private int maxBitrate; // kbps, 0 if not set
+    private int minBitrate; // kbps, 0 if not set
+    private int startBitrate; // kbps, 0 if not set
+    private int receiveWidth, receiveHeight; // the video resolution to ask for, 0 if not set
+
+    // invalid rules are logged and ignored, so a typo doesn't keep the connection from working
+    public SdpPolicy(String rules) {
+        boolean videoSet = false, audioSet = false;
+        if (rules != null) {
+            for (String rule : rules.split(";")) {
+                rule = rule.trim();
+                int index = rule.indexOf('=');
+                if (rule.length() == 0)
+                    continue;
+                else if (index < 1) {
+                    Log.w(TAG, "Ignoring invalid SDP rule: " + rule);
+                    continue;
+                }
+                String key = rule.substring(0, index).trim();
+                String value = rule.substring(index + 1).trim();
+                try {
+                    if (key.equalsIgnoreCase("video")) {
+                        videoCodecs = splitList(value);
+                        videoSet = true;
+                    }
+                    else if (key.equalsIgnoreCase("audio")) {
+                        audioEnabled = !value.equalsIgnoreCase("off");
+                        if (audioEnabled)
+                            audioCodecs = splitList(value);
+                        audioSet = true;
+                    }
+                    else if (key.equalsIgnoreCase("maxBitrate"))
+                        maxBitrate = Integer.parseInt(value);
+                    else if (key.equalsIgnoreCase("minBitrate"))
+                        minBitrate = Integer.parseInt(value);
+                    else if (key.equalsIgnoreCase("startBitrate"))
+                        startBitrate = Integer.parseInt(value);
+                    else
+                        Log.w(TAG, "Ignoring unknown SDP rule: " + rule);
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Ignoring invalid SDP rule: " + rule);
+                }
+            }
+        }
+
+        if (!videoSet)
+            videoCodecs = getHardwareVideoCodecs();
+        if (!audioSet)
+            audioCodecs.add(DEFAULT_AUDIO);
+    }
+
+    public boolean isAudioEnabled() {
+        return audioEnabled;
+    }
+
+    // asks the VM to send video at this resolution (e.g. the device's display size), so the frames don't need to be
+    // scaled to fit the screen; this is added to our offer as an "a=imageattr" line (RFC 6236)
+    public void setReceiveResolution(int width, int height) {
+        this.receiveWidth = width;
+        this.receiveHeight = height;
+    }
+
+    // applies all rules to our offer; bitrateCap is an additional cap on the video bitrate in kbps (e.g. from the
+    // QualityController), 0 if none
+    public String applyLocal(String sdpDescription, int bitrateCap) {
+        return apply(sdpDescription, bitrateCap, true);
+    }
+
+    // applies the codec rules to the VM's answer, leaving its bitrate limits alone
+    public String applyRemote(String sdpDescription) {
+        return apply(sdpDescription, 0, false);
+    }
+
+    private String apply(String sdpDescription, int bitrateCap, boolean setBitrate) {
+        // split the SDP into the session section and its media sections
+        List<String> session = new ArrayList<String>();
+        List<MediaSection> sections = new ArrayList<MediaSection>();
+        MediaSection section = null;
+        int start = 0;
+        while (start < sdpDescription.length()) {
+            int end = sdpDescription.indexOf(CRLF, start);
+            if (end < 0)
+                end = sdpDescription.length();
+            String line = sdpDescription.substring(start, end);
+            start = end + CRLF.length();
+            if (line.length() == 0)
+                continue;
+
+            if (line.startsWith("m=")) {
+                section = new MediaSection(line);
+                sections.add(section);
+            }
+            else if (section == null)
+                session.add(line);
+            else
+                section.addLine(line);
+        }
+
+        int bitrate = minNonZero(maxBitrate, bitrateCap);
+        StringBuilder value = new StringBuilder(sdpDescription.length() + 128);
+        for (String line : session) {
+            if (!audioEnabled && line.startsWith("a=group:BUNDLE"))
+                line = removeMids(line, sections);
+            value.append(line).append(CRLF);
+        }
+        for (MediaSection item : sections) {
+            if (item.media.equals("audio")) {
+                if (!audioEnabled)
+                    continue;
+                item.prefer(audioCodecs);
+            }
+            else if (item.media.equals("video")) {
+                item.prefer(videoCodecs);
+                if (setBitrate) {
+                    item.setBitrate(bitrate, minBitrate, startBitrate);
+                    if (receiveWidth > 0 && receiveHeight > 0)
+                        item.setImageAttr(receiveWidth, receiveHeight);
+                }
+            }
+            item.appendTo(value);
+        }
+        return value.toString();
+    }
+
+    // the audio sections' MIDs are taken out of the BUNDLE group along with the sections
+    private static String removeMids(String line, List<MediaSection> sections) {
+        StringBuilder value = new StringBuilder();
+        for (String token : line.split(" ")) {
+            boolean remove = false;
+            for (MediaSection section : sections)
+                if (section.media.equals("audio") && token.equals(section.mid))
+                    remove = true;
+            if (!remove)
+                value.append(value.length() > 0 ? " " : "").append(token);
+        }
+        return value.toString();
+    }
+
+    private static int minNonZero(int a, int b) {
+        if (a <= 0)
+            return Math.max(b, 0);
+        else if (b <= 0)
+            return a;
+        return Math.min(a, b);
+    }
+
+    private static List<String> splitList(String value) {
+        List<String> list = new ArrayList<String>();
+        for (String item : value.split(","))
+            if (item.trim().length() > 0)
+                list.add(item.trim());
+        return list;
+    }
+
+    // returns the video codecs that this device has a hardware decoder for, in the order of VIDEO_MIME_TYPES
+    public static synchronized List<String> getHardwareVideoCodecs() {
+        if (hardwareVideoCodecs == null) {
+            hardwareVideoCodecs = new ArrayList<String>();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+                findHardwareVideoCodecs(hardwareVideoCodecs);
+            Log.d(TAG, "Hardware video codecs: " + hardwareVideoCodecs);
+        }
+        return new ArrayList<String>(hardwareVideoCodecs);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static void findHardwareVideoCodecs(List<String> list) {
+        Set<String> found = new LinkedHashSet<String>();
+        for (int i = 0; i < MediaCodecList.getCodecCount(); i++) {
+            MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
+            // software decoders are named "OMX.google.*" (or "c2.android.*" on newer devices)
+            String name = info.getName();
+            if (info.isEncoder() || name.startsWith("OMX.google.") || name.startsWith("c2.android."))
+                continue;
+            for (String type : info.getSupportedTypes())
+                found.add(type.toLowerCase());
+        }
+        for (String[] mimeType : VIDEO_MIME_TYPES)
+            if (found.contains(mimeType[0]))
+                list.add(mimeType[1]);
+    }
+
+    private static class MediaSection {
+        private String media;
+        private String[] mLine; // m=<media> <port> <proto> <fmt> ...
+        private String mid;
+        private List<String> lines = new ArrayList<String>();
+
+        private MediaSection(String line) {
+            mLine = line.split(" ");
+            media = mLine[0].substring(2);
+        }
+
+        private void addLine(String line) {
+            if (line.startsWith("a=mid:"))
+                mid = line.substring(6);
+            lines.add(line);
+        }
+
+        // returns the "<name>/<clock rate>[/<channels>]" of a payload type, or null if it has no rtpmap
+        private String getRtpMap(String payloadType) {
+            String prefix = "a=rtpmap:" + payloadType + " ";
+            for (String line : lines)
+                if (line.startsWith(prefix))
+                    return line.substring(prefix.length());
+            return null;
+        }
+
+        // a codec matches "NAME" or "NAME/<clock rate>", case-insensitively
+        private static boolean matches(String rtpMap, String codec) {
+            if (rtpMap == null)
+                return false;
+            if (codec.indexOf('/') < 0) {
+                int index = rtpMap.indexOf('/');
+                return (index < 0 ? rtpMap : rtpMap.substring(0, index)).equalsIgnoreCase(codec);
+            }
+            return rtpMap.regionMatches(true, 0, codec, 0, codec.length())
+                    && (rtpMap.length() == codec.length() || rtpMap.charAt(codec.length()) == '/');
+        }
+
+        private boolean isSupportCodec(String payloadType) {
+            for (String codec : SUPPORT_CODECS)
+                if (matches(getRtpMap(payloadType), codec))
+                    return true;
+            return false;
+        }
+
+        // moves the preferred codecs' payload types to the front of the m-line, in order of preference
+        private void prefer(List<String> codecs) {
+            if (mLine.length <= 3 || codecs.isEmpty())
+                return;
+            List<String> order = new ArrayList<String>();
+            for (String codec : codecs)
+                for (int i = 3; i < mLine.length; i++)
+                    if (!order.contains(mLine[i]) && matches(getRtpMap(mLine[i]), codec))
+                        order.add(mLine[i]);
+            if (order.isEmpty()) {
+                Log.d(TAG, String.format(Locale.US, "No preferred %s codecs %s in SDP", media, codecs));
+                return;
+            }
+            for (int i = 3; i < mLine.length; i++)
+                if (!order.contains(mLine[i]))
+                    order.add(mLine[i]);
+            for (int i = 3; i < mLine.length; i++)
+                mLine[i] = order.get(i - 3);
+        }
+
+        // sets (or removes, if bitrate is 0) the b=AS line, and adds x-google bitrate parameters to the codecs
+        private void setBitrate(int bitrate, int minBitrate, int startBitrate) {
+            StringBuilder params = new StringBuilder();
+            if (bitrate > 0)
+                params.append(";x-google-max-bitrate=").append(bitrate);
+            if (minBitrate > 0)
+                params.append(";x-google-min-bitrate=").append(minBitrate);
+            if (startBitrate > 0)
+                params.append(";x-google-start-bitrate=").append(startBitrate);
+
+            List<String> newLines = new ArrayList<String>(lines.size() + mLine.length);
+            List<String> withFmtp = new ArrayList<String>();
+            for (String line : lines) {
+                if (line.startsWith("b=AS:"))
+                    continue; // remove any existing cap
+                if (params.length() > 0 && line.startsWith("a=fmtp:")) {
+                    String payloadType = line.substring(7, Math.max(line.indexOf(' '), 7));
+                    if (!isSupportCodec(payloadType)) {
+                        line += params;
+                        withFmtp.add(payloadType);
+                    }
+                }
+                newLines.add(line);
+                // the "b=" line goes after the "c=" line of the media section
+                if (bitrate > 0 && line.startsWith("c="))
+                    newLines.add("b=AS:" + bitrate);
+            }
+
+            // codecs that don't have an fmtp line get one after their rtpmap line
+            if (params.length() > 0) {
+                for (int i = 0; i < newLines.size(); i++) {
+                    String line = newLines.get(i);
+                    if (!line.startsWith("a=rtpmap:"))
+                        continue;
+                    String payloadType = line.substring(9, Math.max(line.indexOf(' '), 9));
+                    if (!withFmtp.contains(payloadType) && !isSupportCodec(payloadType))
+                        newLines.add(++i, "a=fmtp:" + payloadType + " " + params.substring(1));
+                }
+            }
+            lines = newLines;
+        }
+
+        // replaces any "a=imageattr" lines with ones that ask to receive each codec at the given resolution
+        private void setImageAttr(int width, int height) {
+            List<String> newLines = new ArrayList<String>(lines.size() + mLine.length);
+            for (String line : lines) {
+                if (line.startsWith("a=imageattr:"))
+                    continue;
+                newLines.add(line);
+                if (!line.startsWith("a=rtpmap:"))
+                    continue;
+                String payloadType = line.substring(9, Math.max(line.indexOf(' '), 9));
+                if (!isSupportCodec(payloadType))
+                    newLines.add("a=imageattr:" + payloadType + " recv [x=" + width + ",y=" + height + "]");
+            }
+            lines = newLines;
+        }
+
+        private void appendTo(StringBuilder value) {
+            for (int i = 0; i < mLine.length; i++)
+                value.append(i > 0 ? " " : "").append(mLine[i]);
+            value.append(CRLF);
+            for (String line : lines)
+                value.append(line).append(CRLF);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ Copyright 2013 The MITRE Corporation, All Rights Reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this work except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.mitre.svmp.apprtc;
+
+import android.content.Context;
+import android.graphics.SurfaceTexture;
+import android.util.Log;
+import org.webrtc.PeerConnectionFactory;
+import org.webrtc.VideoRenderer.I420Frame;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * @author Joe Portner
+ * Detects at runtime whether the WebRTC library can hand decoded video to the renderer as a SurfaceTexture instead of
+ * I420 buffers, so hardware-decoded frames don't have to be copied from the GPU to the CPU and back
+ * Libraries that support this have "textureId" and "textureObject" fields in I420Frame, and take the renderer's EGL
+ * context in PeerConnectionFactory.initializeAndroidGlobals; if any of that is missing, frames stay I420
+ */
+public class TextureFrames {
+    private static final String TAG = TextureFrames.class.getName();
+
+    private static boolean checked;
+    private static Field textureIdField;
+    private static Field textureObjectField;
+    private static Method initializeMethod;
+
+    public static synchronized boolean isSupported() {
+        if (!checked) {
+            checked = true;
+            try {
+                textureIdField = I420Frame.class.getField("textureId");
+                textureObjectField = I420Frame.class.getField("textureObject");
+                // initializeAndroidGlobals(Object context, boolean initializeAudio, boolean initializeVideo,
+                //                          boolean vp8HwAcceleration, Object renderEGLContext)
+                for (Method method : PeerConnectionFactory.class.getMethods())
+                    if (method.getName().equals("initializeAndroidGlobals") && method.getParameterTypes().length == 5)
+                        initializeMethod = method;
+            } catch (NoSuchFieldException e) {
+                // don't care
+            }
+            Log.d(TAG, "Texture frames supported: " + (initializeMethod != null));
+        }
+        return initializeMethod != null;
+    }
+
+    // enables hardware decoding into textures that are shared with the given EGL context
+    // must be called before the PeerConnectionFactory is created; returns false if it isn't supported or fails
+    public static boolean enable(Context context, Object eglContext) {
+        if (!isSupported())
+            return false;
+        try {
+            return (Boolean) initializeMethod.invoke(null, context, true, true, true, eglContext);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to enable texture frames:", e);
+            return false;
+        }
+    }
+
+    // returns the SurfaceTexture that holds the frame, or null if it's an I420 frame
+    public static SurfaceTexture getSurfaceTexture(I420Frame frame) {
+        try {
+            Object textureObject = textureObjectField.get(frame);
+            if (textureObject instanceof SurfaceTexture)
+                return (SurfaceTexture) textureObject;
+        } catch (IllegalAccessException e) {
+            // don't care
+        }
+        return null;
+    }
+
+    // returns the GL_TEXTURE_EXTERNAL_OES texture of the frame's SurfaceTexture
+    public static int getTextureId(I420Frame frame) {
+        try {
+            return textureIdField.getInt(frame);
+        } catch (IllegalAccessException e) {
+            return 0;
+        }
+    }
+}
@@ -52,6 +52,7 @@ import org.webrtc.VideoRenderer.I420Frame;
 public class VideoCallbacks implements VideoRenderer.Callbacks {
     private final VideoStreamsView view;
     private final VideoStreamsView.Endpoint stream;
+    private volatile boolean paused; // while the view is hidden, frames are dropped instead of copied and queued
 
     public VideoCallbacks(
             VideoStreamsView view, VideoStreamsView.Endpoint stream) {
@@ -68,8 +69,13 @@ public class VideoCallbacks implements VideoRenderer.Callbacks {
         });
     }
 
+    public void setPaused(boolean paused) {
+        this.paused = paused;
+    }
+
     @Override
     public void renderFrame(I420Frame frame) {
-        view.queueFrame(stream, frame);
+        if (!paused)
+            view.queueFrame(stream, frame);
     }
 }
@@ -0,0 +1,211 @@
+/*
+ Copyright 2013 The MITRE Corporation, All Rights Reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this work except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.mitre.svmp.apprtc;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+import org.mitre.svmp.client.BuildConfig;
+import org.mitre.svmp.performance.PerformanceAdapter;
+import org.webrtc.PeerConnection;
+import org.webrtc.StatsObserver;
+import org.webrtc.StatsReport;
+
+/**
+ * @author Joe Portner
+ * Polls the PeerConnection for stats on an interval, and parses the reports into typed values
+ * Values are handed to the PerformanceAdapter, and are stored along with the next performance sample
+ * If a QualityController is given, it is updated with the parsed values after each poll
+ * Raw reports are only logged in debug builds
+ */
+public class WebRTCStatsCollector implements Runnable, StatsObserver {
+    private static final String TAG = WebRTCStatsCollector.class.getName();
+
+    private View view; // used to schedule polls on the UI thread
+    private PeerConnection pc;
+    private PerformanceAdapter performanceAdapter;
+    private QualityController qualityController; // can be null
+    private long interval; // ms
+    private volatile boolean stopped;
+    private volatile boolean paused; // while video is paused, no frames are rendered, so don't count that as congestion
+
+    // values from the previous video report; bitrate and packet loss are computed from the change in these
+    private String lastReportId;
+    private double lastTimestamp;
+    private long lastBytesReceived;
+    private long lastPacketsReceived;
+    private long lastPacketsLost;
+
+    // values from the current poll, passed to the QualityController
+    private boolean hasVideo;
+    private double packetLoss;
+    private double rtt;
+    private double frameRateReceived;
+    private double frameRateOutput;
+
+    public WebRTCStatsCollector(View view, PeerConnection pc, PerformanceAdapter performanceAdapter,
+                                QualityController qualityController, long interval) {
+        this.view = view;
+        this.pc = pc;
+        this.performanceAdapter = performanceAdapter;
+        this.qualityController = qualityController;
+        this.interval = interval;
+    }
+
+    public void start() {
+        view.postDelayed(this, interval);
+    }
+
+    public void stop() {
+        stopped = true;
+        view.removeCallbacks(this);
+    }
+
+    public void setPaused(boolean paused) {
+        this.paused = paused;
+    }
+
+    public void run() {
+        if (stopped)
+            return;
+
+        // if stats can't be retrieved right now, try again after the next interval
+        if (!pc.getStats(this, null)) {
+            Log.w(TAG, "getStats() returned false");
+            view.postDelayed(this, interval);
+        }
+    }
+
+    // StatsObserver interface method, called on the signaling thread
+    @Override
+    public void onComplete(StatsReport[] reports) {
+        if (stopped)
+            return;
+
+        hasVideo = false;
+        rtt = -1;
+        for (StatsReport report : reports) {
+            if (BuildConfig.DEBUG)
+                Log.d(TAG, "Stats: " + report.toString());
+
+            if ("ssrc".equals(report.type))
+                parseSsrcReport(report);
+            else if ("googCandidatePair".equals(report.type))
+                parseCandidatePairReport(report);
+        }
+
+        if (qualityController != null && hasVideo && !paused)
+            qualityController.update(SystemClock.elapsedRealtime(), packetLoss, rtt, frameRateReceived,
+                    frameRateOutput);
+
+        view.postDelayed(this, interval);
+    }
+
+    private void parseSsrcReport(StatsReport report) {
+        long bytesReceived = -1, packetsReceived = -1, packetsLost = -1;
+        double frameRateReceived = -1, frameRateDecoded = -1, frameRateOutput = -1;
+        double jitterBuffer = -1, decodeTime = -1;
+
+        for (StatsReport.Value value : report.values) {
+            String name = value.name;
+            if ("bytesReceived".equals(name))
+                bytesReceived = parseLong(value.value);
+            else if ("packetsReceived".equals(name))
+                packetsReceived = parseLong(value.value);
+            else if ("packetsLost".equals(name))
+                packetsLost = parseLong(value.value);
+            else if ("googFrameRateReceived".equals(name))
+                frameRateReceived = parseDouble(value.value);
+            else if ("googFrameRateDecoded".equals(name))
+                frameRateDecoded = parseDouble(value.value);
+            else if ("googFrameRateOutput".equals(name))
+                frameRateOutput = parseDouble(value.value);
+            else if ("googJitterBufferMs".equals(name))
+                jitterBuffer = parseDouble(value.value);
+            else if ("googDecodeMs".equals(name))
+                decodeTime = parseDouble(value.value);
+        }
+
+        // only the received video stream has a decoded frame rate; skip audio and outgoing streams
+        if (frameRateDecoded < 0 || bytesReceived < 0)
+            return;
+
+        double receivedBitrate = -1;
+        packetLoss = -1;
+        if (report.id.equals(lastReportId) && report.timestamp > lastTimestamp) {
+            receivedBitrate = (bytesReceived - lastBytesReceived) * 8 / (report.timestamp - lastTimestamp); // kbps
+            long lost = packetsLost - lastPacketsLost;
+            long total = lost + packetsReceived - lastPacketsReceived;
+            if (packetsLost >= 0 && packetsReceived >= 0 && total > 0)
+                packetLoss = Math.max(lost, 0) / (double)total;
+        }
+        lastReportId = report.id;
+        lastTimestamp = report.timestamp;
+        lastBytesReceived = bytesReceived;
+        lastPacketsReceived = packetsReceived;
+        lastPacketsLost = packetsLost;
+
+        double droppedFrameRate = -1;
+        if (frameRateReceived >= 0 && frameRateOutput >= 0)
+            droppedFrameRate = Math.max(frameRateReceived - frameRateOutput, 0);
+
+        hasVideo = true;
+        this.frameRateReceived = frameRateReceived;
+        this.frameRateOutput = frameRateOutput;
+        performanceAdapter.setVideoStats(receivedBitrate, packetLoss, jitterBuffer, frameRateDecoded,
+                droppedFrameRate, decodeTime);
+    }
+
+    private void parseCandidatePairReport(StatsReport report) {
+        boolean active = false;
+        double rtt = -1;
+        String localType = "", remoteType = "";
+
+        for (StatsReport.Value value : report.values) {
+            String name = value.name;
+            if ("googActiveConnection".equals(name))
+                active = "true".equals(value.value);
+            else if ("googRtt".equals(name))
+                rtt = parseDouble(value.value);
+            else if ("googLocalCandidateType".equals(name))
+                localType = value.value;
+            else if ("googRemoteCandidateType".equals(name))
+                remoteType = value.value;
+        }
+
+        // there is a report for each candidate pair that has been checked; only record the one in use
+        if (active) {
+            this.rtt = rtt;
+            performanceAdapter.setConnectionStats(rtt, localType + "/" + remoteType);
+        }
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static double parseDouble(String value) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
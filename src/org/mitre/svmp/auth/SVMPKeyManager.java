@@ -30,10 +30,14 @@ import java.security.cert.X509Certificate;
 /**
  * @author Joe Portner
  * Used for SSL client certificate authentication
+ * KeyChain calls block, so the certificate chain and private key are kept after they are first read; the SSLContext
+ * that uses this key manager is cached by SSLConfig, which makes a new one if the alias changes
  */
 public class SVMPKeyManager implements X509KeyManager {
     private Context context;
     private String savedAlias;
+    private X509Certificate[] certificates;
+    private PrivateKey privateKey;
 
     public SVMPKeyManager(Context context, String savedAlias) {
         this.context = context;
@@ -52,17 +56,19 @@ public class SVMPKeyManager implements X509KeyManager {
 
     @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
     @Override
-    public X509Certificate[] getCertificateChain(String s) {
-        X509Certificate[] certificates = null;
-        try {
-            certificates = KeyChain.getCertificateChain(context, savedAlias);
-        } catch (KeyChainException e) {
-            e.printStackTrace();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+    public synchronized X509Certificate[] getCertificateChain(String s) {
+        // if this fails, don't keep the result; try again on the next handshake
+        if (certificates == null) {
+            try {
+                certificates = KeyChain.getCertificateChain(context, savedAlias);
+            } catch (KeyChainException e) {
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            if (certificates == null)
+                return new X509Certificate[0];
         }
-        if (certificates == null)
-            certificates = new X509Certificate[0];
         return certificates;
     }
 
@@ -83,14 +89,15 @@ public class SVMPKeyManager implements X509KeyManager {
 
     @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
     @Override
-    public PrivateKey getPrivateKey(String s) {
-        PrivateKey privateKey = null;
-        try {
-            privateKey = KeyChain.getPrivateKey(context, savedAlias);
-        } catch (KeyChainException e) {
-            e.printStackTrace();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+    public synchronized PrivateKey getPrivateKey(String s) {
+        if (privateKey == null) {
+            try {
+                privateKey = KeyChain.getPrivateKey(context, savedAlias);
+            } catch (KeyChainException e) {
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
         }
         return privateKey;
     }
@@ -23,7 +23,7 @@ import org.mitre.svmp.apprtc.AppRTCClient;
 import org.mitre.svmp.common.Constants;
 import org.mitre.svmp.common.Utility;
 import org.mitre.svmp.performance.PerformanceAdapter;
-import org.mitre.svmp.performance.SpanPerformanceData;
+import org.mitre.svmp.performance.SpanCounter;
 import org.mitre.svmp.protocol.SVMPProtocol;
 import org.mitre.svmp.protocol.SVMPProtocol.Request;
 import org.mitre.svmp.protocol.SVMPProtocol.SensorType;
@@ -117,7 +117,7 @@ public class SensorHandler implements SensorEventListener, Constants {
             lastSensorUpdate[type] = event.timestamp;
 
             // increment the sensor update count for performance measurement
-            performanceAdapter.incrementSensorUpdates();
+            performanceAdapter.increment(SpanCounter.SENSOR_UPDATES);
 
             // send the sensor request message
             service.sendMessage(makeSensorRequest(event));
@@ -15,13 +15,15 @@
  */
 package org.mitre.svmp.client;
 
+import org.appspot.apprtc.VideoStreamsView;
 import org.mitre.svmp.activities.AppRTCActivity;
 import org.mitre.svmp.common.Constants;
 import org.mitre.svmp.performance.PerformanceAdapter;
+import org.mitre.svmp.performance.SpanCounter;
 import org.mitre.svmp.protocol.SVMPProtocol;
 import org.mitre.svmp.protocol.SVMPProtocol.Request.RequestType;
 
-import android.graphics.Point;
+import android.graphics.Rect;
 import android.util.Log;
 import android.view.MotionEvent;
 
@@ -35,14 +37,18 @@ public class TouchHandler implements Constants {
 
     private AppRTCActivity activity;
     private PerformanceAdapter spi;
-    private Point displaySize;
+    private VideoStreamsView view;
 
-    private float xScaleFactor, yScaleFactor = 0;
+    private int screenWidth, screenHeight; // size of the VM's screen
+    private float xScaleFactor, yScaleFactor, xOffset, yOffset = 0;
+    private Rect viewport; // the view's viewport that the scale factors and offsets were computed from
     private boolean gotScreenInfo = false;
 
-    public TouchHandler(AppRTCActivity activity, Point displaySize, PerformanceAdapter spi) {
+    // touches are mapped to the VM's screen through the view's viewport, so they line up with the video however it
+    // is scaled (stretched, letterboxed, or cropped)
+    public TouchHandler(AppRTCActivity activity, VideoStreamsView view, PerformanceAdapter spi) {
         this.activity = activity;
-        this.displaySize = displaySize;
+        this.view = view;
         this.spi = spi;
     }
 
@@ -62,20 +68,44 @@ public class TouchHandler implements Constants {
         final int y = msg.getScreenInfo().getY();
 
         Log.d(TAG, "Got the ServerInfo: xsize=" + x + " ; ysize=" + y);
-        this.xScaleFactor = (float)x/(float)displaySize.x;
-        this.yScaleFactor = (float)y/(float)displaySize.y;
-        Log.i(TAG, "Scale factor: " + xScaleFactor + " ; " + yScaleFactor);
+        this.screenWidth = x;
+        this.screenHeight = y;
+        this.viewport = null;
+        updateTransform();
 
         gotScreenInfo = true;
 
         return true;
     }
 
+    // recomputes the scale factors and offsets if the viewport has changed (e.g. the VM's video changed resolution)
+    private void updateTransform() {
+        Rect viewport = view.getViewport();
+        if (viewport.equals(this.viewport) || viewport.width() <= 0 || viewport.height() <= 0)
+            return;
+        this.viewport = viewport;
+        this.xScaleFactor = (float)screenWidth/(float)viewport.width();
+        this.yScaleFactor = (float)screenHeight/(float)viewport.height();
+        this.xOffset = viewport.left;
+        this.yOffset = viewport.top;
+        Log.i(TAG, "Scale factor: " + xScaleFactor + " ; " + yScaleFactor + ", viewport: " + viewport.toShortString());
+    }
+
+    // touches outside of the video (e.g. on letterbox bars) are clamped to the edge of the VM's screen
+    private float mapX(float x) {
+        return Math.max(0, Math.min(screenWidth - 1, (x - xOffset) * xScaleFactor));
+    }
+
+    private float mapY(float y) {
+        return Math.max(0, Math.min(screenHeight - 1, (y - yOffset) * yScaleFactor));
+    }
+
     public boolean onTouchEvent(final MotionEvent event) {
         if (!activity.isConnected() || !gotScreenInfo) return false;
+        updateTransform();
 
         // increment the touch update count for performance measurement
-        spi.incrementTouchUpdates();
+        spi.increment(SpanCounter.TOUCH_UPDATES);
 
         // Create Protobuf message builders
         SVMPProtocol.Request.Builder msg = SVMPProtocol.Request.newBuilder();
@@ -92,8 +122,8 @@ public class TouchHandler implements Constants {
         // Loop and set pointer/coordinate information
         final int pointerCount = event.getPointerCount();
         for (int i = 0; i < pointerCount; i++) {
-            final float adjX = event.getX(i) * this.xScaleFactor;
-            final float adjY = event.getY(i) * this.yScaleFactor;
+            final float adjX = mapX(event.getX(i));
+            final float adjY = mapY(event.getY(i));
             p.clear();
             p.setId(event.getPointerId(i));
             p.setX(adjX);
@@ -108,8 +138,8 @@ public class TouchHandler implements Constants {
             for (int j = 0; j < pointerCount; j++) {
                 p.clear();
                 p.setId(event.getPointerId(j));
-                p.setX(event.getHistoricalX(j,i) * this.xScaleFactor);
-                p.setY(event.getHistoricalY(j,i) * this.yScaleFactor);
+                p.setX(mapX(event.getHistoricalX(j,i)));
+                p.setY(mapY(event.getHistoricalY(j,i)));
                 h.addCoords(p.build());
             }
             h.setEventTime(event.getHistoricalEventTime(i));
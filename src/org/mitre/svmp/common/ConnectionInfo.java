@@ -30,11 +30,12 @@ public class ConnectionInfo implements Constants{
     private int encryptionType;
     private int authType;
     private String certificateAlias;
+    private String sdpPolicy; // codec and bitrate rules, see SdpPolicy
     private int appCount;
 
     // constructor
     public ConnectionInfo(int connectionID, String description, String username, String host, int port,
-                          int encryptionType, int authType, String certificateAlias, int appCount) {
+                          int encryptionType, int authType, String certificateAlias, String sdpPolicy, int appCount) {
         this.connectionID = connectionID;
         this.description = description;
         this.username = username;
@@ -43,6 +44,7 @@ public class ConnectionInfo implements Constants{
         this.encryptionType = encryptionType;
         this.authType = authType;
         this.certificateAlias = certificateAlias;
+        this.sdpPolicy = sdpPolicy;
         this.appCount = appCount;
     }
 
@@ -79,6 +81,10 @@ public class ConnectionInfo implements Constants{
         return certificateAlias;
     }
 
+    public String getSdpPolicy() {
+        return sdpPolicy;
+    }
+
     public int getAppCount() {
         return appCount;
     }
@@ -18,18 +18,31 @@ package org.mitre.svmp.common;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.mitre.svmp.performance.CpuThreadGroup;
 import org.mitre.svmp.performance.MeasurementInfo;
+import org.mitre.svmp.performance.PerformanceSample;
+import org.mitre.svmp.performance.PerformanceSummary;
+import org.mitre.svmp.performance.PingPerformanceData;
 import org.mitre.svmp.performance.PointPerformanceData;
+import org.mitre.svmp.performance.SpanCounter;
 import org.mitre.svmp.performance.SpanPerformanceData;
+import org.mitre.svmp.performance.TraceSpan;
+import org.mitre.svmp.performance.TrafficPerformanceData;
+import org.mitre.svmp.performance.WebRTCPerformanceData;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
@@ -40,17 +53,23 @@ public class DatabaseHandler extends SQLiteOpenHelper {
     private static final String TAG = DatabaseHandler.class.getName();
 
     public static final String DB_NAME = "org.mitre.svmp.db";
-    public static final int DB_VERSION = 12;
+    public static final int DB_VERSION = 21;
 
     public static final int TABLE_CONNECTIONS = 0;
     public static final int TABLE_MEASUREMENT_INFO = 1; // groups together performance data
     public static final int TABLE_PERFORMANCE_DATA = 2; // raw performance data
     public static final int TABLE_APPS = 3; // app data for each connection
+    public static final int TABLE_TRAFFIC_DATA = 4; // raw message traffic data, per message type
+    public static final int TABLE_PERFORMANCE_SUMMARY = 5; // per-minute aggregates of older performance data
+    public static final int TABLE_TRACE_DATA = 6; // startup phase spans, see PhaseTracer
     public static final String[] Tables = new String[]{
         "Connections",
         "MeasurementInfo",
         "PerformanceData",
-        "Apps"
+        "Apps",
+        "TrafficData",
+        "PerformanceSummary",
+        "TraceData"
     };
 
     // this is used to generate queries to create new tables with appropriate constraints
@@ -74,7 +93,8 @@ public class DatabaseHandler extends SQLiteOpenHelper {
             {"LastDisconnected", "INTEGER DEFAULT 0"}, // UNUSED/OBSOLETE
             {"SessionHost", "TEXT DEFAULT ''"},
             {"SessionPort", "TEXT DEFAULT ''"},
-            {"SessionWebrtc", "TEXT DEFAULT ''"}
+            {"SessionWebrtc", "TEXT DEFAULT ''"},
+            {"SdpPolicy", "TEXT DEFAULT ''"}
         }, {
             {"StartDate", "INTEGER", "PRIMARY KEY"},
             {"ConnectionID", "INTEGER"}, // foreign key
@@ -83,16 +103,47 @@ public class DatabaseHandler extends SQLiteOpenHelper {
         }, {
             {"MeasureDate", "INTEGER", "PRIMARY KEY"},
             {"StartDate", "INTEGER"},     // foreign key
-            {"FrameCount", "INTEGER"},    // count since last measurement
-            {"SensorUpdates", "INTEGER"}, // count since last measurement
-            {"TouchUpdates", "INTEGER"},  // count since last measurement
+            {"FrameCount", "INTEGER"},    // count since last measurement (SpanCounter)
+            {"SensorUpdates", "INTEGER"}, // count since last measurement (SpanCounter)
+            {"TouchUpdates", "INTEGER"},  // count since last measurement (SpanCounter)
             {"CPUUsage", "REAL"},         // percentage (0.0 to 1.0)
             {"MemoryUsage", "INTEGER"},   // measured in kB
             {"WifiStrength", "REAL"},     // percentage (0.0 to 1.0)
             {"BatteryLevel", "REAL"},     // percentage (0.0 to 1.0)
             {"CellNetwork", "INTEGER"},   // what network the device is on (see TelephonyManager.NETWORK_* constants)
             {"CellValues", "TEXT"},       // a variety of cell values (depends on network type; LTE, GSM, CDMA/EVDO...)
-            {"Ping", "INTEGER"}           // last ping response in ms
+            {"Ping", "INTEGER"},          // last ping response in ms
+            {"PingMin", "REAL"},          // ms, pings received since last measurement (-1 if none)
+            {"PingP50", "REAL"},          // ms, pings received since last measurement (-1 if none)
+            {"PingP95", "REAL"},          // ms, pings received since last measurement (-1 if none)
+            {"PingP99", "REAL"},          // ms, pings received since last measurement (-1 if none)
+            {"PingMax", "REAL"},          // ms, pings received since last measurement (-1 if none)
+            {"PingJitter", "REAL"},       // ms, smoothed variation between consecutive pings (-1 if unknown)
+            {"PingsSent", "INTEGER"},     // count since last measurement
+            {"PingsReceived", "INTEGER"}, // count since last measurement
+            {"PingsLost", "INTEGER"},     // count since last measurement (pings that timed out)
+            {"ClockOffset", "REAL"},      // ms, server clock minus client clock (NULL if unknown)
+            {"UplinkDelay", "REAL"},      // ms, one-way delay from client to server (NULL if unknown)
+            {"DownlinkDelay", "REAL"},    // ms, one-way delay from server to client (NULL if unknown)
+            {"CpuUI", "REAL"},            // percentage (0.0 to 1.0) or -1 (unknown) (CpuThreadGroup)
+            {"CpuRenderer", "REAL"},      // percentage (0.0 to 1.0) or -1 (unknown) (CpuThreadGroup)
+            {"CpuWebSocket", "REAL"},     // percentage (0.0 to 1.0) or -1 (unknown) (CpuThreadGroup)
+            {"CpuWebRTC", "REAL"},        // percentage (0.0 to 1.0) or -1 (unknown) (CpuThreadGroup)
+            {"CpuOther", "REAL"},         // percentage (0.0 to 1.0) or -1 (unknown) (CpuThreadGroup)
+            {"RecvBitrate", "REAL"},      // kbps of received video, or -1 (unknown) (WebRTC stats)
+            {"PacketLoss", "REAL"},       // percentage (0.0 to 1.0) of received video packets lost, or -1 (unknown)
+            {"Jitter", "REAL"},           // ms, video jitter buffer delay, or -1 (unknown)
+            {"DecodedFps", "REAL"},       // frames per second decoded, or -1 (unknown)
+            {"DroppedFps", "REAL"},       // frames per second received but not output, or -1 (unknown)
+            {"DecodeTime", "REAL"},       // ms per frame, or -1 (unknown)
+            {"Rtt", "REAL"},              // ms, round trip time of the active candidate pair, or -1 (unknown)
+            {"CandidatePair", "TEXT"},    // "<local type>/<remote type>" of the active candidate pair, e.g. "local/relay"
+            {"DcPingP50", "REAL"},        // ms, pings over the input data channel since last measurement (-1 if none)
+            {"DcPingP95", "REAL"},        // ms, pings over the input data channel since last measurement (-1 if none)
+            {"DcPingsSent", "INTEGER"},   // count since last measurement
+            {"DcPingsReceived", "INTEGER"}, // count since last measurement
+            {"DcPingsLost", "INTEGER"}    // count since last measurement (pings that timed out)
+            // any other SpanCounter columns are appended by addSpanCounterColumns
         }, {
             {"ConnectionID", "INTEGER", "PRIMARY KEY"},
             {"PackageName", "TEXT", "PRIMARY KEY"}, // this might exist on multiple connections
@@ -100,9 +151,39 @@ public class DatabaseHandler extends SQLiteOpenHelper {
             {"Favorite", "BOOLEAN"},
             {"Icon", "BLOB"},
             {"IconHash", "BLOB"}
+        }, {
+            {"MeasureDate", "INTEGER", "PRIMARY KEY"}, // foreign key
+            {"Direction", "INTEGER", "PRIMARY KEY"},   // 0 (client -> server) or 1 (server -> client)
+            {"MessageType", "TEXT", "PRIMARY KEY"},    // RequestType or ResponseType name
+            {"StartDate", "INTEGER"},                  // foreign key
+            {"Messages", "INTEGER"},                   // count since last measurement
+            {"Bytes", "INTEGER"},                      // count since last measurement
+            {"CodecTime", "REAL"}                      // ms spent encoding or decoding since last measurement
+        }, {
+            {"StartDate", "INTEGER", "PRIMARY KEY"},   // foreign key
+            {"MinuteDate", "INTEGER", "PRIMARY KEY"},  // start of the minute that was summarized
+            {"Metric", "TEXT", "PRIMARY KEY"},         // PerformanceData column name, or traffic metric name
+            {"Samples", "INTEGER"},                    // number of raw values that were summarized
+            {"Min", "REAL"},
+            {"Avg", "REAL"},
+            {"Max", "REAL"},
+            {"P95", "REAL"},
+            {"Sum", "REAL"}
+        }, {
+            {"StartDate", "INTEGER", "PRIMARY KEY"},   // foreign key
+            {"StartTime", "INTEGER", "PRIMARY KEY"},   // us since the epoch
+            {"Name", "TEXT", "PRIMARY KEY"},           // StartupPhase trace name
+            {"Duration", "INTEGER"},                   // us, 0 for instant events
+            {"Thread", "TEXT"}                         // name of the thread that began the span
         }
     };
 
+    // indexes that aren't covered by primary keys; table, column
+    private static final String[][] TableIndexes = new String[][] {
+        {"PerformanceData", "StartDate"},
+        {"TrafficData", "StartDate"}
+    };
+
     private SQLiteDatabase db;
     private Context context;
 
@@ -128,6 +209,7 @@ public class DatabaseHandler extends SQLiteOpenHelper {
         // loop through the tables and create them from the TableColumns jagged array
         for (int i = 0; i < Tables.length; i++)
             createTable(i, db);
+        createIndexes(db);
     }
 
     @Override
@@ -180,6 +262,44 @@ public class DatabaseHandler extends SQLiteOpenHelper {
                     e.printStackTrace();
                 }
                 updateRecord(TABLE_CONNECTIONS, values, null);
+            case 12:
+                // added ping statistics columns to performance data table
+                for (int i = 12; i <= 17; i++)
+                    addTableColumn(TABLE_PERFORMANCE_DATA, i, "-1", db); // PingMin ... PingJitter columns added
+                for (int i = 18; i <= 20; i++)
+                    addTableColumn(TABLE_PERFORMANCE_DATA, i, "0", db); // PingsSent ... PingsLost columns added
+            case 13:
+                // added clock offset and one-way delay columns to performance data table
+                for (int i = 21; i <= 23; i++)
+                    addTableColumn(TABLE_PERFORMANCE_DATA, i, "NULL", db); // ClockOffset ... DownlinkDelay columns added
+            case 14:
+                // added traffic data table, no need to change existing data
+                createTable(TABLE_TRAFFIC_DATA, db);
+            case 15:
+                // added per-thread-group cpu usage columns to performance data table
+                for (int i = 24; i <= 28; i++)
+                    addTableColumn(TABLE_PERFORMANCE_DATA, i, "-1", db); // CpuUI ... CpuOther columns added
+            case 16:
+                // added performance summary table and StartDate indexes, no need to change existing data
+                createTable(TABLE_PERFORMANCE_SUMMARY, db);
+                createIndexes(db);
+            case 17:
+                // added WebRTC stats columns to performance data table
+                for (int i = 29; i <= 35; i++)
+                    addTableColumn(TABLE_PERFORMANCE_DATA, i, "-1", db); // RecvBitrate ... Rtt columns added
+                addTableColumn(TABLE_PERFORMANCE_DATA, 36, "''", db); // CandidatePair column added
+            case 18:
+                // added trace data table, no need to change existing data
+                createTable(TABLE_TRACE_DATA, db);
+            case 19:
+                // added input data channel ping columns to performance data table
+                for (int i = 37; i <= 38; i++)
+                    addTableColumn(TABLE_PERFORMANCE_DATA, i, "-1", db); // DcPingP50 ... DcPingP95 columns added
+                for (int i = 39; i <= 41; i++)
+                    addTableColumn(TABLE_PERFORMANCE_DATA, i, "0", db); // DcPingsSent ... DcPingsLost columns added
+            case 20:
+                // added SDP policy column to connections table
+                addTableColumn(TABLE_CONNECTIONS, 16, "''", db); // SdpPolicy column added
             default:
                 break;
         }
@@ -192,6 +312,34 @@ public class DatabaseHandler extends SQLiteOpenHelper {
         if (!db.isReadOnly()) {
             // Enable foreign key constraints
             db.execSQL("PRAGMA foreign_keys=ON;");
+            addSpanCounterColumns(db);
+        }
+    }
+
+    // adds a PerformanceData column for any SpanCounter that doesn't have one yet
+    private void addSpanCounterColumns(SQLiteDatabase db) {
+        List<String> existing = new ArrayList<String>();
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery(String.format("PRAGMA table_info(%s)", Tables[TABLE_PERFORMANCE_DATA]), null);
+            while (cursor.moveToNext())
+                existing.add(cursor.getString(1)); // column name
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+
+        for (SpanCounter counter : SpanCounter.values()) {
+            if (!existing.contains(counter.getColumn())) {
+                try {
+                    db.execSQL(String.format("ALTER TABLE %s ADD COLUMN %s INTEGER DEFAULT 0",
+                            Tables[TABLE_PERFORMANCE_DATA], counter.getColumn()));
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
         }
     }
 
@@ -222,6 +370,18 @@ public class DatabaseHandler extends SQLiteOpenHelper {
         createTable(tableID, db);
     }
 
+    // creates any indexes in the TableIndexes array that don't exist yet
+    private void createIndexes(SQLiteDatabase db) {
+        for (String[] index : TableIndexes) {
+            try {
+                db.execSQL(String.format("CREATE INDEX IF NOT EXISTS %s_%s ON %s (%s);",
+                        index[0], index[1], index[0], index[1]));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     // creates a table, along with constraints, based on the TableColumns jagged array
     private void createTable(int tableID, SQLiteDatabase db) {
         StringBuilder query = new StringBuilder();
@@ -353,7 +513,7 @@ public class DatabaseHandler extends SQLiteOpenHelper {
         return queryBuilder.query(
                 getDb(),
                 new String[]{"ConnectionID", "Description", "Username", "Host", "Port", "EncryptionType",
-                        "AuthType", "CertificateAlias",
+                        "AuthType", "CertificateAlias", "SdpPolicy",
                         "COUNT(PackageName)"}, // columns (null == "*")
                 selection, // selection ('where' clause)
                 selectionArgs, // selection args
@@ -444,31 +604,131 @@ public class DatabaseHandler extends SQLiteOpenHelper {
         return measurementInfoList;
     }
 
-    public List<String> getAllPerformanceData(MeasurementInfo measurementInfo) {
-        Cursor cursor = getDb().query(
+    // returns all performance data for a measurement session, ordered by MeasureDate; the caller must close it
+    public Cursor getPerformanceDataCursor(MeasurementInfo measurementInfo) {
+        return getDb().query(
                 Tables[TABLE_PERFORMANCE_DATA], // table
                 null, // columns (null == "*")
                 "StartDate=?", // selection ('where' clause)
                 new String[] {String.valueOf(measurementInfo.getStartDate().getTime())}, // selection args
                 null, // group by
                 null, // having
-                null // order by
+                "MeasureDate" // order by
         );
+    }
 
-        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ssZ");
+    // returns all traffic data for a measurement session, ordered by MeasureDate; the caller must close it
+    public Cursor getTrafficDataCursor(MeasurementInfo measurementInfo) {
+        return getDb().query(
+                Tables[TABLE_TRAFFIC_DATA], // table
+                new String[] {"MeasureDate", "Direction", "MessageType", "Messages", "Bytes", "CodecTime"}, // columns
+                "StartDate=?", // selection ('where' clause)
+                new String[] {String.valueOf(measurementInfo.getStartDate().getTime())}, // selection args
+                null, // group by
+                null, // having
+                "MeasureDate, Direction, MessageType" // order by
+        );
+    }
+
+    // returns all summaries for a measurement session, ordered by MinuteDate; the caller must close it
+    public Cursor getPerformanceSummaryCursor(MeasurementInfo measurementInfo) {
+        return getDb().query(
+                Tables[TABLE_PERFORMANCE_SUMMARY], // table
+                new String[] {"MinuteDate", "Metric", "Samples", "Min", "Avg", "Max", "P95", "Sum"}, // columns
+                "StartDate=?", // selection ('where' clause)
+                new String[] {String.valueOf(measurementInfo.getStartDate().getTime())}, // selection args
+                null, // group by
+                null, // having
+                "MinuteDate, Metric" // order by
+        );
+    }
 
-        // try to get results and add String objects to the list
-        List<String> performanceDataList = new ArrayList<String>();
+    // returns all trace spans for a measurement session, ordered by StartTime; the caller must close it
+    public Cursor getTraceDataCursor(MeasurementInfo measurementInfo) {
+        return getDb().query(
+                Tables[TABLE_TRACE_DATA], // table
+                new String[] {"Name", "Thread", "StartTime", "Duration"}, // columns
+                "StartDate=?", // selection ('where' clause)
+                new String[] {String.valueOf(measurementInfo.getStartDate().getTime())}, // selection args
+                null, // group by
+                null, // having
+                "StartTime" // order by
+        );
+    }
+
+    // returns the total number of performance, traffic, summary, and trace rows (used to show export progress)
+    public int countPerformanceRows() {
+        return (int)(DatabaseUtils.queryNumEntries(getDb(), Tables[TABLE_PERFORMANCE_DATA])
+                + DatabaseUtils.queryNumEntries(getDb(), Tables[TABLE_TRAFFIC_DATA])
+                + DatabaseUtils.queryNumEntries(getDb(), Tables[TABLE_PERFORMANCE_SUMMARY])
+                + DatabaseUtils.queryNumEntries(getDb(), Tables[TABLE_TRACE_DATA]));
+    }
+
+    // returns sessions that still have raw performance data, other than the newest keepSessions sessions
+    public List<MeasurementInfo> getMeasurementInfoToSummarize(int keepSessions) {
+        Cursor cursor = getDb().rawQuery(
+                "SELECT * FROM MeasurementInfo m"
+                        + " WHERE m.StartDate NOT IN (SELECT StartDate FROM MeasurementInfo ORDER BY StartDate DESC LIMIT ?)"
+                        + " AND EXISTS (SELECT 1 FROM PerformanceData p WHERE p.StartDate = m.StartDate)"
+                        + " ORDER BY m.StartDate",
+                new String[] {String.valueOf(Math.max(keepSessions, 0))});
+
+        List<MeasurementInfo> measurementInfoList = new ArrayList<MeasurementInfo>();
         while (cursor.moveToNext()) {
-            // construct a new String from the cursor
-            String performanceData = makePerformanceData(cursor, measurementInfo, dateFormat);
+            MeasurementInfo measurementInfo = makeMeasurementInfo(cursor);
+            if (measurementInfo != null)
+                measurementInfoList.add(measurementInfo);
+        }
 
-            // add the String to the list
-            if (performanceData != null)
-                performanceDataList.add(performanceData);
+        // cleanup
+        try {
+            cursor.close();
+        } catch (Exception e) {
+            // don't care
         }
 
-        return performanceDataList;
+        return measurementInfoList;
+    }
+
+    // in a single transaction, inserts the summaries for a session and deletes its raw performance and traffic data
+    // returns true if the transaction was committed
+    public boolean replaceWithSummaries(MeasurementInfo measurementInfo, List<PerformanceSummary> summaries) {
+        SQLiteDatabase db = getDb();
+        SQLiteStatement statement = null;
+        long startDate = measurementInfo.getStartDate().getTime();
+        boolean success = false;
+
+        db.beginTransaction();
+        try {
+            statement = db.compileStatement(makeInsertQuery(TABLE_PERFORMANCE_SUMMARY, new String[] {
+                    "StartDate", "MinuteDate", "Metric", "Samples", "Min", "Avg", "Max", "P95", "Sum"}));
+            for (PerformanceSummary summary : summaries) {
+                statement.clearBindings();
+                statement.bindLong(1, startDate);
+                statement.bindLong(2, summary.getMinuteDate());
+                statement.bindString(3, summary.getMetric());
+                statement.bindLong(4, summary.getSamples());
+                statement.bindDouble(5, summary.getMin());
+                statement.bindDouble(6, summary.getAvg());
+                statement.bindDouble(7, summary.getMax());
+                statement.bindDouble(8, summary.getP95());
+                statement.bindDouble(9, summary.getSum());
+                statement.executeInsert();
+            }
+
+            // traffic data is deleted by the foreign key cascade
+            db.delete(Tables[TABLE_PERFORMANCE_DATA], "StartDate=?", new String[] {String.valueOf(startDate)});
+
+            db.setTransactionSuccessful();
+            success = true;
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            db.endTransaction();
+            if (statement != null)
+                statement.close();
+        }
+        return success;
     }
 
     public List<AppInfo> getAppInfoList_All(int connectionID) {
@@ -556,10 +816,11 @@ public class DatabaseHandler extends SQLiteOpenHelper {
             int encryptionType = cursor.getInt(5);
             int authType = cursor.getInt(6);
             String certificateAlias = cursor.getString(7);
-            int appCount = cursor.getInt(8);
+            String sdpPolicy = cursor.getString(8);
+            int appCount = cursor.getInt(9);
 
             return new ConnectionInfo(connectionID, description, username, host, port, encryptionType,
-                    authType, certificateAlias, appCount);
+                    authType, certificateAlias, sdpPolicy, appCount);
         } catch( Exception e ) {
             e.printStackTrace();
             return null;
@@ -581,57 +842,6 @@ public class DatabaseHandler extends SQLiteOpenHelper {
         }
     }
 
-    private String makePerformanceData(Cursor cursor, MeasurementInfo measurementInfo, SimpleDateFormat dateFormat) {
-        try {
-            // get values from query
-            long measureDate = cursor.getLong(0);
-            //long startDate = cursor.getLong(1); // don't need this, it's just a foreign key
-            int frameCount = cursor.getInt(2);
-            int sensorUpdates = cursor.getInt(3);
-            int touchUpdates = cursor.getInt(4);
-            double cpuUsage = cursor.getDouble(5);
-            int memoryUsage = cursor.getInt(6);
-            double wifiStrength = cursor.getDouble(7);
-            double batteryLevel = cursor.getDouble(8);
-            int cellNetwork = cursor.getInt(9);
-            String cellValues = cursor.getString(10);
-            int ping = cursor.getInt(11);
-
-            StringBuilder stringBuilder = new StringBuilder();
-            stringBuilder.append(dateFormat.format(new Date(measureDate)));
-            stringBuilder.append(",");
-            stringBuilder.append(numberPerSecond(frameCount, measurementInfo.getMeasureInterval()));
-            stringBuilder.append(",");
-            stringBuilder.append(numberPerSecond(sensorUpdates, measurementInfo.getMeasureInterval()));
-            stringBuilder.append(",");
-            stringBuilder.append(numberPerSecond(touchUpdates, measurementInfo.getMeasureInterval()));
-            stringBuilder.append(",");
-            stringBuilder.append(cpuUsage);
-            stringBuilder.append(",");
-            stringBuilder.append(memoryUsage);
-            stringBuilder.append(",");
-            stringBuilder.append(wifiStrength);
-            stringBuilder.append(",");
-            stringBuilder.append(batteryLevel);
-            stringBuilder.append(",");
-            stringBuilder.append(Utility.cellNetwork(cellNetwork));
-            stringBuilder.append(",");
-            stringBuilder.append(cellValues);
-            stringBuilder.append(",");
-            stringBuilder.append(ping);
-
-            return stringBuilder.toString();
-        } catch( Exception e ) {
-            e.printStackTrace();
-            return null;
-        }
-    }
-    private double numberPerSecond(int input, int interval) {
-        if (interval > 0) // sanity
-            return ((double)input) / (interval/1000);
-        return input;
-    }
-
     private AppInfo makeAppInfo(Cursor cursor) {
         try {
             // get values from query
@@ -671,23 +881,183 @@ public class DatabaseHandler extends SQLiteOpenHelper {
         return insertRecord(TABLE_MEASUREMENT_INFO, contentValues);
     }
 
-    public long insertPerformanceData(long startDate, SpanPerformanceData spanMeasurements,
-                                      PointPerformanceData pointMeasurements) {
-        ContentValues contentValues = new ContentValues();
-        contentValues.put("MeasureDate", System.currentTimeMillis());
-        contentValues.put("StartDate", startDate);
-        contentValues.put("FrameCount", spanMeasurements.getFrameCount());
-        contentValues.put("SensorUpdates", spanMeasurements.getSensorUpdates());
-        contentValues.put("TouchUpdates", spanMeasurements.getTouchUpdates());
-        contentValues.put("CpuUsage", pointMeasurements.getCpuUsage());
-        contentValues.put("MemoryUsage", pointMeasurements.getMemoryUsage());
-        contentValues.put("WifiStrength", pointMeasurements.getWifiStrength());
-        contentValues.put("BatteryLevel", pointMeasurements.getBatteryLevel());
-        contentValues.put("CellNetwork", pointMeasurements.getCellNetwork());
-        contentValues.put("CellValues", pointMeasurements.getCellValues());
-        contentValues.put("Ping", pointMeasurements.getPing());
-
-        return insertRecord(TABLE_PERFORMANCE_DATA, contentValues);
+    // writes a batch of samples and trace spans (and the MeasurementInfo, if requested) in a single transaction
+    // a row that can't be written is logged and skipped, so it doesn't cost the rest of the batch
+    // returns true if the transaction was committed, false if it (or the MeasurementInfo insert) failed
+    public boolean insertPerformanceSamples(MeasurementInfo measurementInfo, boolean includeMeasurementInfo,
+                                            List<PerformanceSample> samples, List<TraceSpan> spans) {
+        SQLiteDatabase db = getDb();
+        SQLiteStatement performanceStatement = null;
+        SQLiteStatement trafficStatement = null;
+        SQLiteStatement traceStatement = null;
+        boolean success = false;
+
+        db.beginTransaction();
+        try {
+            if (includeMeasurementInfo && insertMeasurementInfo(measurementInfo) == -1)
+                return false;
+
+            long startDate = measurementInfo.getStartDate().getTime();
+            performanceStatement = db.compileStatement(makeInsertQuery(TABLE_PERFORMANCE_DATA, getPerformanceColumns()));
+            trafficStatement = db.compileStatement(makeInsertQuery(TABLE_TRAFFIC_DATA, TRAFFIC_COLUMNS));
+            for (PerformanceSample sample : samples) {
+                try {
+                    bindPerformanceData(performanceStatement, startDate, sample);
+                    performanceStatement.executeInsert();
+                    insertTrafficData(trafficStatement, startDate, sample);
+                } catch (SQLException e) {
+                    Log.e(TAG, "Skipping performance sample: " + e.getMessage());
+                }
+            }
+            if (spans.size() > 0) {
+                traceStatement = db.compileStatement(makeInsertQuery(TABLE_TRACE_DATA, TRACE_COLUMNS));
+                for (TraceSpan span : spans) {
+                    traceStatement.clearBindings();
+                    traceStatement.bindLong(1, startDate);
+                    traceStatement.bindLong(2, span.getStartTime());
+                    traceStatement.bindString(3, span.getName());
+                    traceStatement.bindLong(4, span.getDuration());
+                    traceStatement.bindString(5, span.getThread());
+                    try {
+                        traceStatement.executeInsert();
+                    } catch (SQLiteConstraintException e) {
+                        // a span with the same name and start time was already written; keep the first one
+                    }
+                }
+            }
+
+            db.setTransactionSuccessful();
+            success = true;
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            db.endTransaction();
+            if (performanceStatement != null)
+                performanceStatement.close();
+            if (trafficStatement != null)
+                trafficStatement.close();
+            if (traceStatement != null)
+                traceStatement.close();
+        }
+        return success;
+    }
+
+    private static final String[] TRAFFIC_COLUMNS = new String[] {
+            "MeasureDate", "Direction", "MessageType", "StartDate", "Messages", "Bytes", "CodecTime"};
+
+    private static final String[] TRACE_COLUMNS = new String[] {"StartDate", "StartTime", "Name", "Duration", "Thread"};
+
+    // the order of these columns must match bindPerformanceData
+    private static String[] getPerformanceColumns() {
+        List<String> columns = new ArrayList<String>();
+        columns.add("MeasureDate");
+        columns.add("StartDate");
+        for (SpanCounter counter : SpanCounter.values())
+            columns.add(counter.getColumn());
+        columns.addAll(Arrays.asList("CPUUsage", "MemoryUsage", "WifiStrength", "BatteryLevel", "CellNetwork",
+                "CellValues", "Ping", "PingMin", "PingP50", "PingP95", "PingP99", "PingMax", "PingJitter", "PingsSent",
+                "PingsReceived", "PingsLost", "ClockOffset", "UplinkDelay", "DownlinkDelay"));
+        for (CpuThreadGroup group : CpuThreadGroup.values())
+            columns.add(group.getColumn());
+        columns.addAll(Arrays.asList("RecvBitrate", "PacketLoss", "Jitter", "DecodedFps", "DroppedFps", "DecodeTime",
+                "Rtt", "CandidatePair", "DcPingP50", "DcPingP95", "DcPingsSent", "DcPingsReceived", "DcPingsLost"));
+        return columns.toArray(new String[columns.size()]);
+    }
+
+    private static String makeInsertQuery(int tableID, String[] columns) {
+        StringBuilder query = new StringBuilder();
+        query.append(String.format("INSERT INTO %s (", Tables[tableID]));
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0)
+                query.append(", ");
+            query.append(columns[i]);
+        }
+        query.append(") VALUES (");
+        for (int i = 0; i < columns.length; i++)
+            query.append(i > 0 ? ", ?" : "?");
+        query.append(");");
+        return query.toString();
+    }
+
+    private void bindPerformanceData(SQLiteStatement statement, long startDate, PerformanceSample sample) {
+        SpanPerformanceData spanMeasurements = sample.getSpanMeasurements();
+        PointPerformanceData pointMeasurements = sample.getPointMeasurements();
+        PingPerformanceData pingMeasurements = sample.getPingMeasurements();
+        WebRTCPerformanceData webRTCMeasurements = sample.getWebRTCMeasurements();
+        PingPerformanceData dataChannelPingMeasurements = sample.getDataChannelPingMeasurements();
+
+        int i = 1; // bind indexes start at 1
+        statement.clearBindings();
+        statement.bindLong(i++, sample.getMeasureDate());
+        statement.bindLong(i++, startDate);
+        for (SpanCounter counter : SpanCounter.values())
+            statement.bindLong(i++, spanMeasurements.get(counter));
+        statement.bindDouble(i++, pointMeasurements.getCpuUsage());
+        statement.bindLong(i++, pointMeasurements.getMemoryUsage());
+        statement.bindDouble(i++, pointMeasurements.getWifiStrength());
+        statement.bindDouble(i++, pointMeasurements.getBatteryLevel());
+        statement.bindLong(i++, pointMeasurements.getCellNetwork());
+        statement.bindString(i++, pointMeasurements.getCellValues());
+        statement.bindLong(i++, pingMeasurements.getPing());
+        statement.bindDouble(i++, pingMeasurements.getMin());
+        statement.bindDouble(i++, pingMeasurements.getP50());
+        statement.bindDouble(i++, pingMeasurements.getP95());
+        statement.bindDouble(i++, pingMeasurements.getP99());
+        statement.bindDouble(i++, pingMeasurements.getMax());
+        statement.bindDouble(i++, pingMeasurements.getJitter());
+        statement.bindLong(i++, pingMeasurements.getSent());
+        statement.bindLong(i++, pingMeasurements.getReceived());
+        statement.bindLong(i++, pingMeasurements.getLost());
+        bindNullable(statement, i++, pingMeasurements.getClockOffset());
+        bindNullable(statement, i++, pingMeasurements.getUplinkDelay());
+        bindNullable(statement, i++, pingMeasurements.getDownlinkDelay());
+        for (CpuThreadGroup group : CpuThreadGroup.values())
+            statement.bindDouble(i++, pointMeasurements.getThreadCpuUsage(group));
+        statement.bindDouble(i++, webRTCMeasurements.getReceivedBitrate());
+        statement.bindDouble(i++, webRTCMeasurements.getPacketLoss());
+        statement.bindDouble(i++, webRTCMeasurements.getJitter());
+        statement.bindDouble(i++, webRTCMeasurements.getDecodedFrameRate());
+        statement.bindDouble(i++, webRTCMeasurements.getDroppedFrameRate());
+        statement.bindDouble(i++, webRTCMeasurements.getDecodeTime());
+        statement.bindDouble(i++, webRTCMeasurements.getRtt());
+        statement.bindString(i++, webRTCMeasurements.getCandidatePair());
+        statement.bindDouble(i++, dataChannelPingMeasurements.getP50());
+        statement.bindDouble(i++, dataChannelPingMeasurements.getP95());
+        statement.bindLong(i++, dataChannelPingMeasurements.getSent());
+        statement.bindLong(i++, dataChannelPingMeasurements.getReceived());
+        statement.bindLong(i++, dataChannelPingMeasurements.getLost());
+    }
+
+    // inserts a row for each message type that had traffic
+    private void insertTrafficData(SQLiteStatement statement, long startDate, PerformanceSample sample) {
+        TrafficPerformanceData trafficMeasurements = sample.getTrafficMeasurements();
+        for (int direction = TrafficPerformanceData.DIRECTION_OUT; direction <= TrafficPerformanceData.DIRECTION_IN;
+             direction++) {
+            String[] typeNames = TrafficPerformanceData.getTypeNames(direction);
+            for (int i = 0; i < typeNames.length; i++) {
+                long messages = trafficMeasurements.getMessages(direction, i);
+                if (messages == 0)
+                    continue;
+
+                statement.clearBindings();
+                statement.bindLong(1, sample.getMeasureDate());
+                statement.bindLong(2, direction);
+                statement.bindString(3, typeNames[i]);
+                statement.bindLong(4, startDate);
+                statement.bindLong(5, messages);
+                statement.bindLong(6, trafficMeasurements.getBytes(direction, i));
+                statement.bindDouble(7, trafficMeasurements.getCodecTime(direction, i));
+                statement.executeInsert();
+            }
+        }
+    }
+
+    // NaN values are stored as NULL
+    private void bindNullable(SQLiteStatement statement, int index, double value) {
+        if (Double.isNaN(value))
+            statement.bindNull(index);
+        else
+            statement.bindDouble(index, value);
     }
 
     public long insertAppInfo(AppInfo appInfo) {
@@ -809,6 +1179,7 @@ public class DatabaseHandler extends SQLiteOpenHelper {
             contentValues.put("Domain", "");
             contentValues.put("AuthType", connectionInfo.getAuthType());
             contentValues.put("CertificateAlias", connectionInfo.getCertificateAlias());
+            contentValues.put("SdpPolicy", connectionInfo.getSdpPolicy());
         }
 
         return contentValues;
@@ -0,0 +1,89 @@
+/*
+ Copyright 2013 The MITRE Corporation, All Rights Reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this work except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.mitre.svmp.net;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+
+/**
+ * @author Joe Portner
+ * Watches for changes to the active network (e.g. moving from Wi-Fi to LTE, or to a different Wi-Fi network)
+ * Connections that were made on the old network won't work anymore, so the listener is told to move them over
+ * Losing the network and then getting the same one back isn't a change; connections may survive that
+ */
+public class ConnectivityMonitor extends BroadcastReceiver {
+    private static final String TAG = ConnectivityMonitor.class.getName();
+
+    public interface Listener {
+        // called on the main thread; network is a description of the new network, e.g. "WIFI/MyNetwork"
+        void onNetworkChanged(String network);
+    }
+
+    private Context context;
+    private Listener listener;
+    private ConnectivityManager connectivityManager;
+    private String lastNetwork; // the network that was last connected, or null if we haven't been connected
+    private boolean registered;
+
+    public ConnectivityMonitor(Context context, Listener listener) {
+        this.context = context;
+        this.listener = listener;
+        this.connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    public void start() {
+        if (!registered) {
+            lastNetwork = getActiveNetwork();
+            // the current (sticky) broadcast is delivered right away; it matches lastNetwork, so it's ignored
+            context.registerReceiver(this, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+            registered = true;
+        }
+    }
+
+    public void stop() {
+        if (registered) {
+            context.unregisterReceiver(this);
+            registered = false;
+        }
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        String network = getActiveNetwork();
+        if (network == null)
+            Log.d(TAG, "Network lost");
+        else if (!network.equals(lastNetwork)) {
+            Log.i(TAG, String.format("Network changed from '%s' to '%s'", lastNetwork, network));
+            boolean changed = lastNetwork != null;
+            lastNetwork = network;
+            if (changed)
+                listener.onNetworkChanged(network);
+        }
+    }
+
+    // returns "<type>/<extra info>" of the active network (extra info is the SSID or APN), or null if not connected
+    private String getActiveNetwork() {
+        NetworkInfo info = connectivityManager.getActiveNetworkInfo();
+        if (info == null || !info.isConnected())
+            return null;
+        return String.format("%s/%s", info.getTypeName(), info.getExtraInfo());
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ Copyright 2013 The MITRE Corporation, All Rights Reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this work except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.mitre.svmp.net;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HTTP;
+import org.mitre.svmp.common.ConnectionInfo;
+
+import javax.net.ssl.SSLContext;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Joe Portner
+ * Keeps one HttpClient for each connection, so REST API calls (login, password change) can reuse a kept-alive
+ * connection instead of opening a new socket and doing a new TLS handshake each time
+ * A connection's HttpClient is replaced if its host, port, encryption, or SSLContext changes
+ */
+public class HttpClientCache {
+    private static final long IDLE_TIMEOUT = 60; // seconds, idle pooled connections older than this are closed
+
+    private static final Map<Integer, CachedClient> clients = new HashMap<Integer, CachedClient>();
+
+    // sslConfig must already be configured if useSSL is true
+    public static synchronized HttpClient getClient(ConnectionInfo connectionInfo, boolean useSSL, SSLConfig sslConfig) {
+        String host = connectionInfo.getHost();
+        int port = connectionInfo.getPort();
+        SSLContext sslContext = useSSL ? sslConfig.getSSLContext() : null;
+
+        CachedClient cached = clients.get(connectionInfo.getConnectionID());
+        if (cached != null && cached.matches(host, port, sslContext)) {
+            // the server may have closed connections that sat in the pool for a while
+            cached.client.getConnectionManager().closeIdleConnections(IDLE_TIMEOUT, TimeUnit.SECONDS);
+            return cached.client;
+        }
+        else if (cached != null)
+            cached.client.getConnectionManager().shutdown();
+
+        // set up HttpParams
+        HttpParams params = new BasicHttpParams();
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+
+        // set up ConnectionManager
+        SchemeRegistry registry = new SchemeRegistry();
+        if (useSSL)
+            registry.register(new Scheme("https", sslConfig.getSocketFactory(), port));
+        else
+            registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), port));
+        ClientConnectionManager ccm = new ThreadSafeClientConnManager(params, registry);
+
+        // create HttpClient
+        cached = new CachedClient(host, port, sslContext, new DefaultHttpClient(ccm, params));
+        clients.put(connectionInfo.getConnectionID(), cached);
+        return cached.client;
+    }
+
+    private static class CachedClient {
+        private String host;
+        private int port;
+        private SSLContext sslContext; // null if SSL isn't used
+        private DefaultHttpClient client;
+
+        private CachedClient(String host, int port, SSLContext sslContext, DefaultHttpClient client) {
+            this.host = host;
+            this.port = port;
+            this.sslContext = sslContext;
+            this.client = client;
+        }
+
+        private boolean matches(String host, int port, SSLContext sslContext) {
+            return this.host.equals(host) && this.port == port && this.sslContext == sslContext;
+        }
+    }
+}
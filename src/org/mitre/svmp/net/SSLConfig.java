@@ -34,13 +34,28 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.security.*;
 import java.security.cert.CertificateException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
 
 /**
  * @author Joe Portner, Dave Keppler
+ * The SSLContext for a connection is kept and reused as long as the connection's security settings don't change; its
+ * session cache is shared by the REST client and the WebSocket, so TLS sessions can be resumed across logins
+ * The local trust store is only loaded once, and the key manager keeps the client certificate once it is read, so
+ * repeat connections don't touch the key store or KeyChain
  */
 public class SSLConfig implements Constants {
     private static final String TAG = SSLConfig.class.getName();
 
+    // SSLContexts (and the MemorizingTrustManager, if any) that have been configured, see getCacheKey()
+    private static final Map<String, CachedContext> contextCache = new HashMap<String, CachedContext>();
+    // trust managers for "res/raw/client_truststore.bks", or null if it is empty; only loaded once
+    private static TrustManager[] localTrustManagers;
+    private static boolean localTrustStoreLoaded;
+    private static boolean prngFixesApplied;
+
     private ConnectionInfo connectionInfo;
     private Activity activity;
     private Context context;
@@ -111,6 +126,21 @@ public class SSLConfig implements Constants {
         boolean useCertificateAuth = Constants.API_14 &&
                 (connectionInfo.getAuthType() & CertificateModule.AUTH_MODULE_ID) == CertificateModule.AUTH_MODULE_ID;
 
+        // if we already have an SSLContext for these settings, reuse it (and the TLS sessions it has cached)
+        String cacheKey = getCacheKey(useMTM, useCertificateAuth);
+        synchronized (contextCache) {
+            CachedContext cached = contextCache.get(cacheKey);
+            if (cached != null) {
+                sslContext = cached.sslContext;
+                mtm = cached.mtm;
+                if (mtm != null)
+                    mtm.bindDisplayActivity(activity); // the activity that was bound before may be gone
+                return;
+            }
+            // the settings for this connection have changed, the old SSLContext won't be used again
+            invalidate(connectionInfo.getConnectionID());
+        }
+
         // set up key managers
         KeyManager[] keyManagers = null;
         // if certificate authentication is enabled, use a key manager with the provided alias
@@ -120,21 +150,16 @@ public class SSLConfig implements Constants {
 
         // set up trust managers
         TrustManager[] trustManagers = null;
-
-        KeyStore localTrustStore = KeyStore.getInstance("BKS");
-        InputStream in = context.getResources().openRawResource(R.raw.client_truststore);
-        localTrustStore.load(in, Constants.TRUSTSTORE_PASSWORD.toCharArray());
-        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-        trustManagerFactory.init(localTrustStore);
+        TrustManager[] pinnedTrustManagers = getLocalTrustManagers(context);
 
         // 1) If "res/raw/client_truststore.bks" is not empty, use it as the pinned cert trust store (default is empty)
         // 2) Otherwise, if the "Show certificate dialog" developer preference is enabled, use that (default is disabled)
         // 3) Otherwise, use the default system trust store, consists of normal trusted Android CA certs
-        if (localTrustStore.size() > 0) {
+        if (pinnedTrustManagers != null) {
             // this means that "res/raw/client_truststore.bks" has been replaced with a trust store that is not empty
             // we will use that "pinned" store to check server certificate trust
             Log.d(TAG, "SSLConfig: Using static BKS trust store to check server cert trust");
-            trustManagers = trustManagerFactory.getTrustManagers();
+            trustManagers = pinnedTrustManagers;
         // After switching to WebSockets, MTM causes the app to freeze; removed for now
         } else if (useMTM) {
             // by default useMTM is false ("Show certificate dialog" in developer preferences)
@@ -148,8 +173,79 @@ public class SSLConfig implements Constants {
             // leaving trustManagers null accomplishes this
         }
 
-        PRNGFixes.apply(); // fix Android SecureRandom issue on pre-KitKat platforms
+        applyPRNGFixes();
         sslContext = SSLContext.getInstance("TLS");
         sslContext.init(keyManagers, trustManagers, new SecureRandom());
+
+        synchronized (contextCache) {
+            contextCache.put(cacheKey, new CachedContext(sslContext, mtm));
+        }
+    }
+
+    // removes the cached SSLContext for a connection, e.g. when the connection is changed or deleted
+    public static void invalidate(int connectionID) {
+        String prefix = connectionID + "|";
+        synchronized (contextCache) {
+            Iterator<String> iterator = contextCache.keySet().iterator();
+            while (iterator.hasNext())
+                if (iterator.next().startsWith(prefix))
+                    iterator.remove();
+        }
+    }
+
+    // returns true if "res/raw/client_truststore.bks" is not empty
+    public static boolean hasLocalTrustStore(Context context) throws KeyStoreException, CertificateException,
+            NoSuchAlgorithmException, IOException {
+        return getLocalTrustManagers(context) != null;
+    }
+
+    // the trust store is a resource, so it can't change while the app is running; load it once
+    private static synchronized TrustManager[] getLocalTrustManagers(Context context) throws KeyStoreException,
+            CertificateException, NoSuchAlgorithmException, IOException {
+        if (!localTrustStoreLoaded) {
+            KeyStore localTrustStore = KeyStore.getInstance("BKS");
+            InputStream in = context.getResources().openRawResource(R.raw.client_truststore);
+            try {
+                localTrustStore.load(in, Constants.TRUSTSTORE_PASSWORD.toCharArray());
+            } finally {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // don't care
+                }
+            }
+            if (localTrustStore.size() > 0) {
+                TrustManagerFactory trustManagerFactory =
+                        TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                trustManagerFactory.init(localTrustStore);
+                localTrustManagers = trustManagerFactory.getTrustManagers();
+            }
+            localTrustStoreLoaded = true;
+        }
+        return localTrustManagers;
+    }
+
+    // fix Android SecureRandom issue on pre-KitKat platforms; this only needs to be done once per process
+    private static synchronized void applyPRNGFixes() {
+        if (!prngFixesApplied) {
+            PRNGFixes.apply();
+            prngFixesApplied = true;
+        }
+    }
+
+    // everything that changes how the SSLContext is configured for this connection
+    private String getCacheKey(boolean useMTM, boolean useCertificateAuth) {
+        return String.format(Locale.US, "%d|%s|%s|%s", connectionInfo.getConnectionID(), useMTM, useCertificateAuth,
+                useCertificateAuth ? connectionInfo.getCertificateAlias() : "");
+    }
+
+    private static class CachedContext {
+        private SSLContext sslContext;
+        private MemorizingTrustManager mtm; // can be null
+
+        private CachedContext(SSLContext sslContext, MemorizingTrustManager mtm) {
+            this.sslContext = sslContext;
+            this.mtm = mtm;
+        }
     }
 }
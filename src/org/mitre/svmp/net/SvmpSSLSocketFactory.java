@@ -1,10 +1,14 @@
 package org.mitre.svmp.net;
 
 import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 
 /**
@@ -32,10 +36,34 @@ public class SvmpSSLSocketFactory extends SSLSocketFactory {
         return value;
     }
 
+    // returns an unconnected plain socket; TLS is layered over it in connectSocket, once the host is known
     @Override
     public Socket createSocket() throws IOException {
-        Socket value = sslContext.getSocketFactory().createSocket();
-        setExtras(value);
+        return new Socket();
+    }
+
+    // connects the plain socket, then layers TLS over it with the host and port; the SSLContext's session cache is
+    // keyed by host and port, so this lets a previous TLS session be resumed instead of doing a full handshake
+    @Override
+    public Socket connectSocket(Socket sock, String host, int port, InetAddress localAddress, int localPort,
+                                HttpParams params) throws IOException {
+        Socket plain = sock != null ? sock : createSocket();
+        if (localAddress != null || localPort > 0)
+            plain.bind(new InetSocketAddress(localAddress, Math.max(localPort, 0)));
+        plain.connect(new InetSocketAddress(host, port), HttpConnectionParams.getConnectionTimeout(params));
+        plain.setSoTimeout(HttpConnectionParams.getSoTimeout(params));
+
+        Socket value = createSocket(plain, host, port, true);
+        try {
+            getHostnameVerifier().verify(host, (SSLSocket) value);
+        } catch (IOException e) {
+            try {
+                value.close();
+            } catch (IOException e2) {
+                // don't care
+            }
+            throw e;
+        }
         return value;
     }
 
@@ -0,0 +1,89 @@
+/*
+ Copyright 2013 The MITRE Corporation, All Rights Reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this work except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.mitre.svmp.performance;
+
+/**
+ * @author Joe Portner
+ * Estimates the clock offset between the client and the VM, and the one-way delay in each direction, from the four
+ * timestamps of an NTP-style ping exchange:
+ *   t0: client sends the ping      t1: server receives the ping
+ *   t2: server sends the response  t3: client receives the response
+ * The estimate comes from the sample with the lowest round-trip delay in a sliding window (as in the NTP clock filter),
+ * because that is the sample least distorted by queuing.
+ * The one-way delays of the latest sample are measured against that offset, so queuing in one direction shows up in
+ * that direction's delay only (measuring them against the sample's own offset would always split the delay in half).
+ * This class is not thread-safe; it is guarded by the PingPerformanceData that owns it.
+ */
+public class ClockSyncEstimator {
+    private static final int WINDOW_SIZE = 8;
+
+    // ring buffer of recent samples, all values in ms
+    private final double[] offsets = new double[WINDOW_SIZE];
+    private final double[] delays = new double[WINDOW_SIZE];
+    private final double[] uplinks = new double[WINDOW_SIZE]; // t1 - t0, in the two clocks
+    private final double[] downlinks = new double[WINDOW_SIZE]; // t3 - t2, in the two clocks
+    private int latest = -1;
+    private int next;
+    private int count;
+
+    // adds a sample; all timestamps are wall clock times in ms
+    public void addSample(double t0, double t1, double t2, double t3) {
+        double delay = (t3 - t0) - (t2 - t1); // round trip, minus time spent on the server
+        if (delay < 0)
+            return; // the server's timestamps don't make sense, discard them
+
+        double offset = ((t1 - t0) + (t2 - t3)) / 2; // server clock minus client clock
+        offsets[next] = offset;
+        delays[next] = delay;
+        uplinks[next] = t1 - t0;
+        downlinks[next] = t3 - t2;
+        latest = next;
+        next = (next + 1) % WINDOW_SIZE;
+        if (count < WINDOW_SIZE)
+            count++;
+    }
+
+    public boolean hasEstimate() {
+        return count > 0;
+    }
+
+    // ms, server clock minus client clock (NaN if there are no samples)
+    public double getOffset() {
+        int best = bestSample();
+        return best < 0 ? Double.NaN : offsets[best];
+    }
+
+    // ms, client to server for the latest sample (NaN if there are no samples)
+    public double getUplinkDelay() {
+        int best = bestSample();
+        return best < 0 ? Double.NaN : Math.max(0, uplinks[latest] - offsets[best]);
+    }
+
+    // ms, server to client for the latest sample (NaN if there are no samples)
+    public double getDownlinkDelay() {
+        int best = bestSample();
+        return best < 0 ? Double.NaN : Math.max(0, downlinks[latest] + offsets[best]);
+    }
+
+    // returns the index of the sample with the lowest delay, or -1 if there are no samples
+    private int bestSample() {
+        int best = -1;
+        for (int i = 0; i < count; i++)
+            if (best < 0 || delays[i] < delays[best])
+                best = i;
+        return best;
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ Copyright 2013 The MITRE Corporation, All Rights Reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this work except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.mitre.svmp.performance;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * @author Joe Portner
+ * Measures CPU usage of this process, and of groups of its threads, by reading the kernel's counters in /proc
+ * Each call to sample() compares the counters against the previous call; values are a share of total CPU time across
+ * all cores (0.0 to 1.0), the same as "top" reports. Nothing is forked, and the buffers are reused between calls.
+ * Each thread's stat file is opened once, when the thread is first seen, and kept open until it exits; only the
+ * listing of /proc/self/task (needed to find new threads) allocates on every sample.
+ * Called by MeasureTask on the measure interval; this class is not thread-safe.
+ */
+public class CpuSampler {
+    private static final String TAG = CpuSampler.class.getName();
+
+    private static final String TASK_DIR = "/proc/self/task";
+    private static final CpuThreadGroup[] GROUPS = CpuThreadGroup.values();
+
+    private final int pid = android.os.Process.myPid();
+    private final byte[] buffer = new byte[1024];
+
+    // "/proc/stat" and "/proc/self/stat" stay open and are re-read from the start each time
+    private RandomAccessFile systemStat;
+    private RandomAccessFile processStat;
+
+    // counters from the previous sample, in clock ticks
+    private long lastSystemTicks = -1;
+    private long lastProcessTicks;
+    private int[] lastTids = new int[64];
+    private long[] lastThreadTicks = new long[64];
+    private RandomAccessFile[] lastThreadStats = new RandomAccessFile[64];
+    private int lastThreadCount;
+
+    // counters from the current sample, swapped with the "last" arrays after each sample
+    private int[] tids = new int[64];
+    private long[] threadTicks = new long[64];
+    private RandomAccessFile[] threadStats = new RandomAccessFile[64];
+    private final long[] groupTicks = new long[GROUPS.length];
+
+    public CpuSampler() {
+        try {
+            systemStat = new RandomAccessFile("/proc/stat", "r");
+            processStat = new RandomAccessFile("/proc/self/stat", "r");
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open /proc stat files: " + e.getMessage());
+        }
+    }
+
+    // records CPU usage since the last call; the first call only records a baseline
+    public void sample(PointPerformanceData pointPerformanceData) {
+        if (systemStat == null || processStat == null)
+            return;
+
+        long systemTicks = readSystemTicks();
+        long processTicks = readProcessTicks();
+        if (systemTicks < 0 || processTicks < 0)
+            return;
+        readThreadTicks();
+
+        long systemDelta = systemTicks - lastSystemTicks;
+        if (lastSystemTicks >= 0 && systemDelta > 0) {
+            synchronized (pointPerformanceData) {
+                pointPerformanceData.setCpuUsage((double)(processTicks - lastProcessTicks) / systemDelta);
+                for (CpuThreadGroup group : GROUPS)
+                    pointPerformanceData.setThreadCpuUsage(group, (double)groupTicks[group.ordinal()] / systemDelta);
+            }
+        }
+
+        // the current sample becomes the baseline for the next one
+        lastSystemTicks = systemTicks;
+        lastProcessTicks = processTicks;
+        int[] swapTids = lastTids;
+        long[] swapTicks = lastThreadTicks;
+        RandomAccessFile[] swapStats = lastThreadStats;
+        lastTids = tids;
+        lastThreadTicks = threadTicks;
+        lastThreadStats = threadStats;
+        tids = swapTids;
+        threadTicks = swapTicks;
+        threadStats = swapStats;
+    }
+
+    public void close() {
+        closeQuietly(systemStat);
+        closeQuietly(processStat);
+        for (int i = 0; i < lastThreadCount; i++) {
+            closeQuietly(lastThreadStats[i]);
+            lastThreadStats[i] = null;
+        }
+        lastThreadCount = 0;
+    }
+
+    // the first line of /proc/stat is "cpu  user nice system idle iowait irq softirq steal guest guest_nice"
+    // returns the sum of user through steal (guest time is already counted in user time), or -1 on error
+    private long readSystemTicks() {
+        int length = read(systemStat);
+        if (length < 0)
+            return -1;
+        int position = skipField(0, length); // skip "cpu"
+        long total = 0;
+        for (int i = 0; i < 8 && position < length; i++) {
+            total += parseLong(position, length);
+            position = skipField(position, length);
+        }
+        return total;
+    }
+
+    // returns utime + stime for this process, or -1 on error
+    private long readProcessTicks() {
+        int length = read(processStat);
+        return length < 0 ? -1 : parseStatTicks(length);
+    }
+
+    // reads utime + stime for each thread, and adds the change since the last sample to its group
+    private void readThreadTicks() {
+        Arrays.fill(groupTicks, 0);
+        String[] names = new File(TASK_DIR).list();
+        int count = 0;
+        if (names != null) {
+            for (String name : names) {
+                int tid;
+                try {
+                    tid = Integer.parseInt(name);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+
+                // reuse the thread's stat file from the last sample, or open it if the thread is new
+                int last = findLast(tid);
+                long lastTicks = 0; // a thread we haven't seen before started after the last sample
+                RandomAccessFile stat;
+                if (last >= 0) {
+                    stat = lastThreadStats[last];
+                    lastThreadStats[last] = null; // moved to the current sample
+                    lastTicks = lastThreadTicks[last];
+                } else {
+                    try {
+                        stat = new RandomAccessFile(TASK_DIR + "/" + name + "/stat", "r");
+                    } catch (IOException e) {
+                        continue; // the thread exited while we were looking at it
+                    }
+                }
+
+                int length = read(stat);
+                long ticks = length < 0 ? -1 : parseStatTicks(length);
+                if (ticks < 0) {
+                    closeQuietly(stat);
+                    continue;
+                }
+
+                if (count == tids.length) {
+                    tids = Arrays.copyOf(tids, count * 2);
+                    threadTicks = Arrays.copyOf(threadTicks, count * 2);
+                    threadStats = Arrays.copyOf(threadStats, count * 2);
+                }
+                tids[count] = tid;
+                threadTicks[count] = ticks;
+                threadStats[count] = stat;
+                count++;
+
+                long delta = ticks - lastTicks;
+                if (delta > 0)
+                    groupTicks[classify(tid, length).ordinal()] += delta;
+            }
+        }
+
+        // whatever wasn't moved belongs to threads that have exited
+        for (int i = 0; i < lastThreadCount; i++) {
+            closeQuietly(lastThreadStats[i]);
+            lastThreadStats[i] = null;
+        }
+        lastThreadCount = count; // applies once the arrays are swapped at the end of sample()
+    }
+
+    // returns the index of the thread in the last sample, or -1 if it wasn't there
+    private int findLast(int tid) {
+        for (int i = 0; i < lastThreadCount; i++)
+            if (lastTids[i] == tid && lastThreadStats[i] != null)
+                return i;
+        return -1;
+    }
+
+    // uses the thread name (in parentheses) that is currently in the buffer
+    private CpuThreadGroup classify(int tid, int length) {
+        if (tid == pid)
+            return CpuThreadGroup.UI;
+        int start = indexOf('(', 0, length) + 1;
+        int end = lastIndexOf(')', length);
+        if (start > 0 && end > start)
+            for (CpuThreadGroup group : GROUPS)
+                if (group.matches(buffer, start, end))
+                    return group;
+        return CpuThreadGroup.OTHER;
+    }
+
+    // a stat line is "pid (comm) state ppid ..." where utime and stime are fields 14 and 15
+    // comm may contain spaces or parentheses, so fields are counted from the last ')'
+    private long parseStatTicks(int length) {
+        int position = lastIndexOf(')', length);
+        if (position < 0)
+            return -1;
+        position += 2; // now at field 3 (state)
+        for (int field = 3; field < 14 && position < length; field++)
+            position = skipField(position, length);
+        if (position >= length)
+            return -1;
+        long utime = parseLong(position, length);
+        position = skipField(position, length);
+        return utime + parseLong(position, length);
+    }
+
+    private int read(RandomAccessFile file) {
+        try {
+            file.seek(0);
+            return fill(file.read(buffer, 0, buffer.length));
+        } catch (IOException e) {
+            return -1; // for a thread's stat file, the thread has exited
+        }
+    }
+
+    private static void closeQuietly(RandomAccessFile file) {
+        if (file != null)
+            try {
+                file.close();
+            } catch (IOException e) {
+                // don't care
+            }
+    }
+
+    // stat lines are short enough that one read is always enough; this just handles an empty read
+    private int fill(int length) {
+        return length <= 0 ? -1 : length;
+    }
+
+    // returns the position of the next field after the one at position
+    private int skipField(int position, int length) {
+        while (position < length && buffer[position] != ' ' && buffer[position] != '\n')
+            position++;
+        while (position < length && buffer[position] == ' ')
+            position++;
+        return position;
+    }
+
+    private long parseLong(int position, int length) {
+        long value = 0;
+        while (position < length && buffer[position] >= '0' && buffer[position] <= '9')
+            value = value * 10 + (buffer[position++] - '0');
+        return value;
+    }
+
+    private int indexOf(char c, int start, int length) {
+        for (int i = start; i < length; i++)
+            if (buffer[i] == c)
+                return i;
+        return -1;
+    }
+
+    private int lastIndexOf(char c, int length) {
+        for (int i = length - 1; i >= 0; i--)
+            if (buffer[i] == c)
+                return i;
+        return -1;
+    }
+}
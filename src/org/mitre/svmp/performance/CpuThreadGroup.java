@@ -0,0 +1,67 @@
+/*
+ Copyright 2013 The MITRE Corporation, All Rights Reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this work except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.mitre.svmp.performance;
+
+/**
+ * @author Joe Portner
+ * Groups of threads that CpuSampler reports CPU usage for, matched by thread name
+ * The kernel truncates thread names to 15 characters, so the prefixes must be no longer than that
+ */
+public enum CpuThreadGroup {
+    UI("CpuUI", "CPU UI thread (%)"), // matched by thread ID (the main thread's ID is the process ID)
+    RENDERER("CpuRenderer", "CPU renderer (%)", "GLThread"),
+    WEBSOCKET("CpuWebSocket", "CPU WebSocket (%)", "WebSocketReader", "WebSocketWriter", "WebSocketConnec",
+            "svmp-websocket"),
+    WEBRTC("CpuWebRTC", "CPU WebRTC (%)", "signaling_threa", "worker_thread", "VoiceProcessThr", "ProcessThread",
+            "PacedSender", "IncomingVideoSt", "DecodingThread", "Trace", "AudioRecord", "AudioTrack"),
+    OTHER("CpuOther", "CPU other threads (%)");
+
+    private final String column;
+    private final String header;
+    private final byte[][] prefixes; // ASCII bytes, compared against /proc/<pid>/task/<tid>/stat without decoding
+
+    private CpuThreadGroup(String column, String header, String... prefixes) {
+        this.column = column;
+        this.header = header;
+        this.prefixes = new byte[prefixes.length][];
+        for (int i = 0; i < prefixes.length; i++)
+            this.prefixes[i] = prefixes[i].getBytes();
+    }
+
+    // name of the PerformanceData column
+    public String getColumn() {
+        return column;
+    }
+
+    // name of the exported CSV column
+    public String getHeader() {
+        return header;
+    }
+
+    // returns true if the thread name in buffer[start, end) begins with one of this group's prefixes
+    boolean matches(byte[] buffer, int start, int end) {
+        for (byte[] prefix : prefixes) {
+            if (end - start < prefix.length)
+                continue;
+            int i = 0;
+            while (i < prefix.length && buffer[start + i] == prefix[i])
+                i++;
+            if (i == prefix.length)
+                return true;
+        }
+        return false;
+    }
+}
@@ -27,7 +27,7 @@ import android.telephony.PhoneStateListener;
 import android.telephony.SignalStrength;
 import android.telephony.TelephonyManager;
 import android.util.Log;
-import org.mitre.svmp.common.DatabaseHandler;
+import org.mitre.svmp.client.BuildConfig;
 
 import java.util.TimerTask;
 
@@ -43,21 +43,35 @@ public class MeasureTask extends TimerTask {
     private Context context;
     private SpanPerformanceData spanPerformanceData;
     private final PointPerformanceData pointPerformanceData;
-    private long startDate;
+    private PingPerformanceData pingPerformanceData;
+    private PingPerformanceData dataChannelPingPerformanceData;
+    private TrafficPerformanceData trafficPerformanceData;
+    private WebRTCPerformanceData webRTCPerformanceData;
+    private PhaseTracer phaseTracer;
 
-    private DatabaseHandler databaseHandler; // used to record values to database
+    private PerformanceRecorder recorder; // used to record values to database
+    private CpuSampler cpuSampler; // used to get cpu usage
     private ActivityManager activityManager; // used to get memory usage
     private WifiManager wifiManager; // used to get wifi strength
     private TelephonyManager telephonyManager; // used to get cell signal values
     private int phoneType; // PHONE_TYPE_NONE, PHONE_TYPE_GSM, PHONE_TYPE_CDMA
 
-    public MeasureTask(Context context, SpanPerformanceData spanPerformanceData, PointPerformanceData pointPerformanceData, long startDate) {
+    public MeasureTask(Context context, SpanPerformanceData spanPerformanceData, PointPerformanceData pointPerformanceData,
+                       PingPerformanceData pingPerformanceData, PingPerformanceData dataChannelPingPerformanceData,
+                       TrafficPerformanceData trafficPerformanceData, WebRTCPerformanceData webRTCPerformanceData,
+                       PhaseTracer phaseTracer, MeasurementInfo measurementInfo) {
         this.context = context;
         this.spanPerformanceData = spanPerformanceData;
         this.pointPerformanceData = pointPerformanceData;
-        this.startDate = startDate;
+        this.pingPerformanceData = pingPerformanceData;
+        this.dataChannelPingPerformanceData = dataChannelPingPerformanceData;
+        this.trafficPerformanceData = trafficPerformanceData;
+        this.webRTCPerformanceData = webRTCPerformanceData;
+        this.phaseTracer = phaseTracer;
 
-        this.databaseHandler = new DatabaseHandler(context);
+        this.recorder = new PerformanceRecorder(context, measurementInfo);
+        this.cpuSampler = new CpuSampler();
+        cpuSampler.sample(pointPerformanceData); // take a baseline, the first measurement is relative to this
         this.activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
         context.registerReceiver(this.batteryInfoReceiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
         this.wifiManager = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
@@ -70,39 +84,64 @@ public class MeasureTask extends TimerTask {
     public void run() {
         // create a copy of the measurement data, and reset the values for the original object
         SpanPerformanceData spanMeasurements = spanPerformanceData.reset();
+        PingPerformanceData pingMeasurements = pingPerformanceData.reset();
+        PingPerformanceData dataChannelPingMeasurements = dataChannelPingPerformanceData.reset();
+        TrafficPerformanceData trafficMeasurements = trafficPerformanceData.reset();
+        WebRTCPerformanceData webRTCMeasurements = webRTCPerformanceData.copy(); // last values polled from WebRTC
+        long measureDate = System.currentTimeMillis();
 
+        cpuSampler.sample(pointPerformanceData); // set cpu usage, for the process and for each thread group
         int memoryUsage = getMemoryUsage();
         double wifiStrength = getWifiStrength();
 
-        // take single-point-in-time measurements, then add them
+        // take single-point-in-time measurements, then copy them
+        PointPerformanceData pointMeasurements;
         synchronized (pointPerformanceData) {
-            // cpu usage is set by the MeasureCpuThread
+            // cpu usage is set by the cpuSampler
             pointPerformanceData.setMemoryUsage(memoryUsage); // set memory used
             pointPerformanceData.setWifiStrength(wifiStrength); // set wifi strength
             // battery level is set by the batteryInfoReceiver
             // cell signal values are set by the phoneStateListener
-            // ping value is set by the AppRTCActivity
-
-            if (running)
-                databaseHandler.insertPerformanceData(startDate, spanMeasurements, pointPerformanceData);
+            // ping values are recorded by the PingTask and the SessionService
+            pointMeasurements = pointPerformanceData.copy();
+        }
 
-            Log.d(TAG, String.format("[%s, %s]", spanMeasurements, pointPerformanceData));
+        // the recorder buffers samples and writes them in batches, so this doesn't usually touch the database
+        PerformanceSample sample = new PerformanceSample(measureDate, spanMeasurements, pointMeasurements,
+                pingMeasurements, dataChannelPingMeasurements, trafficMeasurements, webRTCMeasurements);
+        if (running) {
+            recorder.record(phaseTracer.takeCompleted()); // startup phases that have ended since the last run
+            recorder.record(sample);
         }
+
+        if (BuildConfig.DEBUG)
+            Log.d(TAG, sample.toString()); // only build this string in debug builds
     }
 
+    // stops taking measurements; this may be called on any thread, so it doesn't touch the database (see close)
     @Override
     public boolean cancel() {
         try {
             running = false;
             context.unregisterReceiver(batteryInfoReceiver);
             telephonyManager.listen(phoneStateListener, PhoneStateListener.LISTEN_NONE); // unregister listener
-            databaseHandler.close();
         } catch (Exception e) {
             // don't care
         }
         return super.cancel();
     }
 
+    // writes any samples and spans that are still buffered; called on the timer thread after cancel
+    public void close() {
+        try {
+            recorder.record(phaseTracer.takeCompleted());
+            recorder.close();
+            cpuSampler.close();
+        } catch (Exception e) {
+            // don't care
+        }
+    }
+
     // returns memory used in kB (using Debug MemoryInfo, *not* ActivityManager MemoryInfo)
     private int getMemoryUsage() {
         MemoryInfo[] memoryInfoArray = activityManager.getProcessMemoryInfo(new int[]{android.os.Process.myPid()});
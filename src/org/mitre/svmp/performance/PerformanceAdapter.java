@@ -1,5 +1,10 @@
 package org.mitre.svmp.performance;
 
+import org.mitre.svmp.protocol.SVMPProtocol.Ping;
+
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * @author Joe Portner
  * Used by an object to forward performance measurements to SpanPerformanceData and/or PointPerformanceData objects
@@ -8,40 +13,103 @@ package org.mitre.svmp.performance;
 public class PerformanceAdapter {
     private SpanPerformanceData spanPerformanceData;
     private PointPerformanceData pointPerformanceData;
+    private PingPerformanceData pingPerformanceData;
+    private WebRTCPerformanceData webRTCPerformanceData;
+    private PhaseTracer phaseTracer;
+    private List<PendingPhase> pendingPhases = new ArrayList<PendingPhase>(); // recorded before the tracer was set
 
     // setter, used by an object to point to correct performance data objects
     public void setPerformanceData(PerformanceTimer performance) {
         this.spanPerformanceData = performance.getSpanPerformanceData();
         this.pointPerformanceData = performance.getPointPerformanceData();
+        this.pingPerformanceData = performance.getPingPerformanceData();
+        this.webRTCPerformanceData = performance.getWebRTCPerformanceData();
+        this.phaseTracer = performance.getPhaseTracer();
+        for (PendingPhase pending : pendingPhases)
+            phaseTracer.record(pending.phase, pending.thread, pending.startNanos, pending.endNanos);
+        pendingPhases.clear();
     }
 
     // setter, used by an object to clean up when it's done recording performance data
     public void clearPerformanceData() {
         this.spanPerformanceData = null;
         this.pointPerformanceData = null;
+        this.pingPerformanceData = null;
+        this.webRTCPerformanceData = null;
+        this.phaseTracer = null;
     }
 
-    // used by VideoStreamsView to record frame count
-    public void incrementFrameCount() {
+    // used by VideoStreamsView, TouchHandler, and SensorHandler to record frames, touch updates, and sensor updates
+    public void increment(SpanCounter counter) {
         if (spanPerformanceData != null)
-            spanPerformanceData.incrementFrameCount();
+            spanPerformanceData.increment(counter);
     }
 
-    // used by TouchHandler to record touch updates
-    public void incrementTouchUpdates() {
+    // used by VideoStreamsView to record the number of bytes copied
+    public void add(SpanCounter counter, long delta) {
         if (spanPerformanceData != null)
-            spanPerformanceData.incrementTouchUpdates();
+            spanPerformanceData.add(counter, delta);
     }
 
-    // used by SensorHandler to record sensor updates
-    public void incrementSensorUpdates() {
-        if (spanPerformanceData != null)
-            spanPerformanceData.incrementSensorUpdates();
+    // used by MessageHandler to record ping; receivedNanos should be taken from System.nanoTime()
+    public void setPing(Ping pingResponse, long receivedNanos) {
+        if (pingPerformanceData != null)
+            pingPerformanceData.onPingReceived(pingResponse.getStartDate(), receivedNanos,
+                    PingTask.getServerDate(pingResponse, PingTask.FIELD_SERVER_RECEIVE_DATE),
+                    PingTask.getServerDate(pingResponse, PingTask.FIELD_SERVER_SEND_DATE));
+    }
+
+    // used by WebRTCStatsCollector to record statistics of the received video stream
+    public void setVideoStats(double receivedBitrate, double packetLoss, double jitter, double decodedFrameRate,
+                              double droppedFrameRate, double decodeTime) {
+        if (webRTCPerformanceData != null)
+            webRTCPerformanceData.setVideoStats(receivedBitrate, packetLoss, jitter, decodedFrameRate,
+                    droppedFrameRate, decodeTime);
+    }
+
+    // used by WebRTCStatsCollector to record statistics of the active ICE candidate pair
+    public void setConnectionStats(double rtt, String candidatePair) {
+        if (webRTCPerformanceData != null)
+            webRTCPerformanceData.setConnectionStats(rtt, candidatePair);
+    }
+
+    // used by activities and observers to time startup phases
+    public void beginPhase(StartupPhase phase) {
+        if (phaseTracer != null)
+            phaseTracer.begin(phase);
+    }
+
+    public void endPhase(StartupPhase phase) {
+        if (phaseTracer != null)
+            phaseTracer.end(phase);
+    }
+
+    public void instantPhase(StartupPhase phase) {
+        if (phaseTracer != null)
+            phaseTracer.instant(phase);
+    }
+
+    // used for phases that can happen before the performance data objects have been set (e.g. in Activity.onCreate)
+    // startNanos and endNanos should be taken from System.nanoTime()
+    public void recordPhase(StartupPhase phase, long startNanos, long endNanos) {
+        String thread = Thread.currentThread().getName();
+        if (phaseTracer != null)
+            phaseTracer.record(phase, thread, startNanos, endNanos);
+        else
+            pendingPhases.add(new PendingPhase(phase, thread, startNanos, endNanos));
     }
 
-    // used by MessageHandler to record ping
-    public void setPing(long startDate, long endDate) {
-        if (pointPerformanceData != null)
-            pointPerformanceData.setPing(startDate, endDate);
+    private static class PendingPhase {
+        private final StartupPhase phase;
+        private final String thread;
+        private final long startNanos;
+        private final long endNanos;
+
+        private PendingPhase(StartupPhase phase, String thread, long startNanos, long endNanos) {
+            this.phase = phase;
+            this.thread = thread;
+            this.startNanos = startNanos;
+            this.endNanos = endNanos;
+        }
     }
 }
@@ -0,0 +1,483 @@
+/*
+ Copyright 2013 The MITRE Corporation, All Rights Reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this work except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.mitre.svmp.performance;
+
+import android.database.Cursor;
+import org.json.JSONObject;
+import org.mitre.svmp.common.DatabaseHandler;
+import org.mitre.svmp.common.Utility;
+
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * @author Joe Portner
+ * Exports recorded performance data to files, one set of files per measurement session
+ * Rows are streamed from the database cursor straight to a buffered (and optionally gzipped) file, so memory use
+ * doesn't depend on how long a session is. This does blocking I/O; don't call it from the UI thread.
+ *
+ * Two formats are supported:
+ *   CSV: human-readable, counters are converted to rates per second (same as previous versions)
+ *   Binary: raw column values, written in row groups; see writeBinary() for the layout
+ * Startup phase spans are always written as Chrome trace event JSON, which can be opened in chrome://tracing
+ */
+public class PerformanceExporter {
+    public static final String FORMAT_CSV = "csv";
+    public static final String FORMAT_BINARY = "binary";
+
+    // binary format constants
+    private static final byte[] BINARY_MAGIC = {'S', 'V', 'M', 'P', 'C', 'O', 'L', '1'};
+    private static final int ROW_GROUP_SIZE = 1024;
+    private static final byte TYPE_LONG = 1;   // zigzag varint, delta from the previous row in the group
+    private static final byte TYPE_DOUBLE = 2; // IEEE 754, 8 bytes
+    private static final byte TYPE_STRING = 3; // modified UTF-8, as written by DataOutput.writeUTF
+
+    private static final int PROGRESS_ROWS = 256; // how often progress is reported
+
+    // kinds of files that are written for each session
+    private static final int FILE_PERFORMANCE = 0;
+    private static final int FILE_TRAFFIC = 1;
+    private static final int FILE_SUMMARY = 2;
+    private static final int FILE_TRACE = 3;
+
+    public interface ProgressListener {
+        // rowsWritten is the total for all files written so far
+        void onProgress(int rowsWritten);
+    }
+
+    private DatabaseHandler handler;
+    private File folder;
+    private String format;
+    private boolean compress;
+    private String phoneType;
+    private String cellValues;
+    private ProgressListener listener;
+    private int rowsWritten;
+
+    // phoneType and cellValues are only used to label the CSV headers
+    public PerformanceExporter(DatabaseHandler handler, File folder, String format, boolean compress,
+                               String phoneType, String cellValues, ProgressListener listener) {
+        this.handler = handler;
+        this.folder = folder;
+        this.format = format;
+        this.compress = compress;
+        this.phoneType = phoneType;
+        this.cellValues = cellValues;
+        this.listener = listener;
+    }
+
+    // returns the number of files written
+    public int export() throws IOException {
+        List<MeasurementInfo> measurementInfoList = handler.getAllMeasurementInfo();
+        SimpleDateFormat fileDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH_mm_ssZ");
+        int filesWritten = 0;
+
+        for (MeasurementInfo measurementInfo : measurementInfoList) {
+            String baseName = fileDateFormat.format(measurementInfo.getStartDate());
+
+            if (exportCursor(handler.getPerformanceDataCursor(measurementInfo), baseName, measurementInfo,
+                    FILE_PERFORMANCE))
+                filesWritten++;
+            if (exportCursor(handler.getTrafficDataCursor(measurementInfo), baseName + "_traffic", measurementInfo,
+                    FILE_TRAFFIC))
+                filesWritten++;
+            // older sessions only have summaries, see RetentionTask
+            if (exportCursor(handler.getPerformanceSummaryCursor(measurementInfo), baseName + "_summary",
+                    measurementInfo, FILE_SUMMARY))
+                filesWritten++;
+            if (exportCursor(handler.getTraceDataCursor(measurementInfo), baseName + "_trace", measurementInfo,
+                    FILE_TRACE))
+                filesWritten++;
+        }
+
+        return filesWritten;
+    }
+
+    // writes a cursor's rows to a file; returns false (and writes nothing) if the cursor is empty
+    private boolean exportCursor(Cursor cursor, String baseName, MeasurementInfo measurementInfo, int fileType)
+            throws IOException {
+        OutputStream out = null;
+        try {
+            // if there is no data (the user probably connected and immediately exited), skip this file
+            if (!cursor.moveToFirst())
+                return false;
+
+            String extension = fileType == FILE_TRACE ? ".json" : FORMAT_BINARY.equals(format) ? ".svmpcol" : ".csv";
+            if (compress)
+                extension += ".gz";
+            out = new BufferedOutputStream(new FileOutputStream(new File(folder, baseName + extension)), 65536);
+            if (compress)
+                out = new GZIPOutputStream(out, 65536);
+
+            if (fileType == FILE_TRACE)
+                writeTraceJson(cursor, new BufferedWriter(new OutputStreamWriter(out, "UTF-8")));
+            else if (FORMAT_BINARY.equals(format))
+                writeBinary(cursor, new DataOutputStream(out));
+            else {
+                Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+                if (fileType == FILE_TRAFFIC)
+                    writeTrafficCsv(cursor, measurementInfo, writer);
+                else if (fileType == FILE_SUMMARY)
+                    writeSummaryCsv(cursor, writer);
+                else
+                    writePerformanceCsv(cursor, measurementInfo, writer);
+            }
+            return true;
+        } finally {
+            try {
+                cursor.close();
+            } catch (Exception e) {
+                // don't care
+            }
+            if (out != null)
+                out.close();
+        }
+    }
+
+    private void writePerformanceCsv(Cursor cursor, MeasurementInfo measurementInfo, Writer out)
+            throws IOException {
+        SpanCounter[] counters = SpanCounter.values();
+        CpuThreadGroup[] groups = CpuThreadGroup.values();
+        int interval = measurementInfo.getMeasureInterval();
+        DateCache dateCache = new DateCache();
+
+        // print headers
+        out.write("Measure date,");
+        for (SpanCounter counter : counters) {
+            out.write(counter.getHeader());
+            out.write(',');
+        }
+        out.write("CPU usage (%),Memory usage (kB),Wifi strength (%),Battery level (%),Cell network ("
+                + phoneType + "),Cell values (" + cellValues + "),Ping (ms),"
+                + "Ping min (ms),Ping p50 (ms),Ping p95 (ms),Ping p99 (ms),Ping max (ms),Ping jitter (ms),"
+                + "Pings sent,Pings received,Pings lost,"
+                + "Clock offset (ms),Uplink delay (ms),Downlink delay (ms)");
+        for (CpuThreadGroup group : groups) {
+            out.write(',');
+            out.write(group.getHeader());
+        }
+        out.write(",Received bitrate (kbps),Packet loss (%),Jitter (ms),Decoded frames per second,"
+                + "Dropped frames per second,Decode time (ms),RTT (ms),Candidate pair,"
+                + "Data channel ping p50 (ms),Data channel ping p95 (ms),Data channel pings sent,"
+                + "Data channel pings received,Data channel pings lost\n");
+
+        // look up every column by name once, not once per row; the table's column order depends on the order in
+        // which upgrades added the columns, so positions can't be relied on
+        int measureDateColumn = cursor.getColumnIndexOrThrow("MeasureDate");
+        int[] counterColumns = new int[counters.length];
+        for (int i = 0; i < counters.length; i++)
+            counterColumns[i] = cursor.getColumnIndexOrThrow(counters[i].getColumn());
+        int cpuUsageColumn = cursor.getColumnIndexOrThrow("CPUUsage");
+        int memoryUsageColumn = cursor.getColumnIndexOrThrow("MemoryUsage");
+        int wifiStrengthColumn = cursor.getColumnIndexOrThrow("WifiStrength");
+        int batteryLevelColumn = cursor.getColumnIndexOrThrow("BatteryLevel");
+        int cellNetworkColumn = cursor.getColumnIndexOrThrow("CellNetwork");
+        int cellValuesColumn = cursor.getColumnIndexOrThrow("CellValues");
+        int pingColumn = cursor.getColumnIndexOrThrow("Ping");
+        int[] pingStatColumns = getColumns(cursor, "PingMin", "PingP50", "PingP95", "PingP99", "PingMax", "PingJitter");
+        int[] pingCountColumns = getColumns(cursor, "PingsSent", "PingsReceived", "PingsLost");
+        int[] clockColumns = getColumns(cursor, "ClockOffset", "UplinkDelay", "DownlinkDelay");
+        int[] groupColumns = new int[groups.length];
+        for (int i = 0; i < groups.length; i++)
+            groupColumns[i] = cursor.getColumnIndexOrThrow(groups[i].getColumn());
+        int[] webRTCColumns = getColumns(cursor, "RecvBitrate", "PacketLoss", "Jitter", "DecodedFps", "DroppedFps",
+                "DecodeTime", "Rtt");
+        int candidatePairColumn = cursor.getColumnIndexOrThrow("CandidatePair");
+        int[] dcPingStatColumns = getColumns(cursor, "DcPingP50", "DcPingP95");
+        int[] dcPingCountColumns = getColumns(cursor, "DcPingsSent", "DcPingsReceived", "DcPingsLost");
+
+        StringBuilder row = new StringBuilder(256);
+        do {
+            row.setLength(0);
+            row.append(dateCache.format(cursor.getLong(measureDateColumn)));
+            row.append(',');
+            // StartDate isn't written, it's just a foreign key
+            for (int column : counterColumns) {
+                row.append(numberPerSecond(cursor.getLong(column), interval));
+                row.append(',');
+            }
+            row.append(cursor.getDouble(cpuUsageColumn)).append(',');
+            row.append(cursor.getInt(memoryUsageColumn)).append(',');
+            row.append(cursor.getDouble(wifiStrengthColumn)).append(',');
+            row.append(cursor.getDouble(batteryLevelColumn)).append(',');
+            row.append(Utility.cellNetwork(cursor.getInt(cellNetworkColumn))).append(',');
+            row.append(cursor.getString(cellValuesColumn)).append(',');
+            row.append(cursor.getInt(pingColumn)).append(',');
+            for (int column : pingStatColumns)
+                row.append(cursor.getDouble(column)).append(',');
+            for (int column : pingCountColumns)
+                row.append(cursor.getInt(column)).append(',');
+            for (int i = 0; i < clockColumns.length; i++) { // empty if NULL
+                if (!cursor.isNull(clockColumns[i]))
+                    row.append(cursor.getDouble(clockColumns[i]));
+                if (i < clockColumns.length - 1)
+                    row.append(',');
+            }
+            for (int column : groupColumns)
+                row.append(',').append(cursor.getDouble(column));
+            for (int column : webRTCColumns)
+                row.append(',').append(cursor.getDouble(column));
+            row.append(',').append(cursor.getString(candidatePairColumn));
+            for (int column : dcPingStatColumns)
+                row.append(',').append(cursor.getDouble(column));
+            for (int column : dcPingCountColumns)
+                row.append(',').append(cursor.getInt(column));
+            row.append('\n');
+            out.append(row);
+            rowWritten();
+        } while (cursor.moveToNext());
+
+        out.flush();
+    }
+
+    private static int[] getColumns(Cursor cursor, String... names) {
+        int[] columns = new int[names.length];
+        for (int i = 0; i < names.length; i++)
+            columns[i] = cursor.getColumnIndexOrThrow(names[i]);
+        return columns;
+    }
+
+    private void writeTrafficCsv(Cursor cursor, MeasurementInfo measurementInfo, Writer out) throws IOException {
+        int interval = measurementInfo.getMeasureInterval();
+        DateCache dateCache = new DateCache();
+
+        out.write("Measure date,Direction,Message type,Messages per second,Bytes per second,"
+                + "Encode/decode time (ms)\n");
+
+        int measureDate = cursor.getColumnIndexOrThrow("MeasureDate");
+        int direction = cursor.getColumnIndexOrThrow("Direction");
+        int messageType = cursor.getColumnIndexOrThrow("MessageType");
+        int messages = cursor.getColumnIndexOrThrow("Messages");
+        int bytes = cursor.getColumnIndexOrThrow("Bytes");
+        int codecTime = cursor.getColumnIndexOrThrow("CodecTime");
+
+        StringBuilder row = new StringBuilder(128);
+        do {
+            row.setLength(0);
+            row.append(dateCache.format(cursor.getLong(measureDate))).append(',');
+            row.append(cursor.getInt(direction) == TrafficPerformanceData.DIRECTION_OUT ? "out" : "in").append(',');
+            row.append(cursor.getString(messageType)).append(',');
+            row.append(numberPerSecond(cursor.getLong(messages), interval)).append(',');
+            row.append(numberPerSecond(cursor.getLong(bytes), interval)).append(',');
+            row.append(cursor.getDouble(codecTime)).append('\n');
+            out.append(row);
+            rowWritten();
+        } while (cursor.moveToNext());
+
+        out.flush();
+    }
+
+    // summary values are raw (counters are not converted to rates), see PerformanceSummary
+    private void writeSummaryCsv(Cursor cursor, Writer out) throws IOException {
+        DateCache dateCache = new DateCache();
+
+        out.write("Minute,Metric,Samples,Min,Avg,Max,P95,Sum\n");
+
+        StringBuilder row = new StringBuilder(128);
+        do {
+            row.setLength(0);
+            row.append(dateCache.format(cursor.getLong(0))).append(','); // MinuteDate
+            row.append(cursor.getString(1)).append(',');                 // Metric
+            row.append(cursor.getInt(2));                                // Samples
+            for (int column = 3; column <= 7; column++)                  // Min ... Sum
+                row.append(',').append(cursor.getDouble(column));
+            row.append('\n');
+            out.append(row);
+            rowWritten();
+        } while (cursor.moveToNext());
+
+        out.flush();
+    }
+
+    // Chrome trace event format: complete ("X") events for spans, instant ("i") events for spans with no duration,
+    // and a metadata ("M") event to name each thread; times are in microseconds
+    private void writeTraceJson(Cursor cursor, Writer out) throws IOException {
+        List<String> threads = new ArrayList<String>();
+
+        out.write("{\"traceEvents\":[\n");
+        StringBuilder row = new StringBuilder(128);
+        do {
+            String thread = cursor.getString(1);
+            int tid = threads.indexOf(thread) + 1;
+            if (tid == 0) {
+                threads.add(thread);
+                tid = threads.size();
+            }
+            long duration = cursor.getLong(3);
+
+            row.setLength(0);
+            row.append("{\"name\":").append(JSONObject.quote(cursor.getString(0)));
+            row.append(",\"cat\":\"startup\",\"ph\":\"").append(duration > 0 ? 'X' : 'i').append('"');
+            row.append(",\"ts\":").append(cursor.getLong(2));
+            if (duration > 0)
+                row.append(",\"dur\":").append(duration);
+            else
+                row.append(",\"s\":\"t\"");
+            row.append(",\"pid\":1,\"tid\":").append(tid).append("},\n");
+            out.append(row);
+            rowWritten();
+        } while (cursor.moveToNext());
+
+        for (int i = 0; i < threads.size(); i++) {
+            out.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + (i + 1)
+                    + ",\"args\":{\"name\":" + JSONObject.quote(threads.get(i)) + "}}");
+            out.write(i < threads.size() - 1 ? ",\n" : "\n");
+        }
+        out.write("]}\n");
+
+        out.flush();
+    }
+
+    /* Binary layout (all integers big-endian, as written by DataOutputStream):
+     *   magic        8 bytes, "SVMPCOL1"
+     *   columnCount  int
+     *   columns      columnCount x (name: UTF, type: byte)
+     *   row groups   repeated: rowCount (int, > 0), then for each column:
+     *                  null bitmap: (rowCount + 7) / 8 bytes, bit (row % 8) of byte (row / 8) is set if the value is NULL
+     *                  values: one per non-NULL row, encoded according to the column type
+     *   end          int, 0
+     * Values are raw database values (counters are not converted to rates). A column's type is taken from the first
+     * row; a column that is NULL in the first row is treated as TYPE_DOUBLE.
+     */
+    private void writeBinary(Cursor cursor, DataOutputStream out) throws IOException {
+        int columnCount = cursor.getColumnCount();
+        byte[] types = new byte[columnCount];
+
+        out.write(BINARY_MAGIC);
+        out.writeInt(columnCount);
+        for (int i = 0; i < columnCount; i++) {
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    types[i] = TYPE_LONG;
+                    break;
+                case Cursor.FIELD_TYPE_STRING:
+                    types[i] = TYPE_STRING;
+                    break;
+                default:
+                    types[i] = TYPE_DOUBLE;
+                    break;
+            }
+            out.writeUTF(cursor.getColumnName(i));
+            out.writeByte(types[i]);
+        }
+
+        // buffer one row group at a time, then write it out column by column
+        long[][] longs = new long[columnCount][];
+        double[][] doubles = new double[columnCount][];
+        String[][] strings = new String[columnCount][];
+        boolean[][] nulls = new boolean[columnCount][ROW_GROUP_SIZE];
+        for (int i = 0; i < columnCount; i++) {
+            if (types[i] == TYPE_LONG)
+                longs[i] = new long[ROW_GROUP_SIZE];
+            else if (types[i] == TYPE_DOUBLE)
+                doubles[i] = new double[ROW_GROUP_SIZE];
+            else
+                strings[i] = new String[ROW_GROUP_SIZE];
+        }
+
+        boolean more = true;
+        while (more) {
+            int rows = 0;
+            while (more && rows < ROW_GROUP_SIZE) {
+                for (int i = 0; i < columnCount; i++) {
+                    nulls[i][rows] = cursor.isNull(i);
+                    if (nulls[i][rows])
+                        continue;
+                    if (types[i] == TYPE_LONG)
+                        longs[i][rows] = cursor.getLong(i);
+                    else if (types[i] == TYPE_DOUBLE)
+                        doubles[i][rows] = cursor.getDouble(i);
+                    else
+                        strings[i][rows] = cursor.getString(i);
+                }
+                rows++;
+                rowWritten();
+                more = cursor.moveToNext();
+            }
+
+            out.writeInt(rows);
+            for (int i = 0; i < columnCount; i++) {
+                // null bitmap
+                for (int start = 0; start < rows; start += 8) {
+                    int bits = 0;
+                    for (int bit = 0; bit < 8 && start + bit < rows; bit++)
+                        if (nulls[i][start + bit])
+                            bits |= 1 << bit;
+                    out.writeByte(bits);
+                }
+                // values
+                long previous = 0;
+                for (int row = 0; row < rows; row++) {
+                    if (nulls[i][row])
+                        continue;
+                    if (types[i] == TYPE_LONG) {
+                        writeZigZagVarint(out, longs[i][row] - previous);
+                        previous = longs[i][row];
+                    }
+                    else if (types[i] == TYPE_DOUBLE)
+                        out.writeDouble(doubles[i][row]);
+                    else
+                        out.writeUTF(strings[i][row]);
+                }
+            }
+        }
+        out.writeInt(0);
+        out.flush();
+    }
+
+    private static void writeZigZagVarint(DataOutputStream out, long value) throws IOException {
+        long zigZag = (value << 1) ^ (value >> 63);
+        while ((zigZag & ~0x7FL) != 0) {
+            out.writeByte((int)((zigZag & 0x7F) | 0x80));
+            zigZag >>>= 7;
+        }
+        out.writeByte((int)zigZag);
+    }
+
+    private void rowWritten() {
+        rowsWritten++;
+        if (listener != null && rowsWritten % PROGRESS_ROWS == 0)
+            listener.onProgress(rowsWritten);
+    }
+
+    private static double numberPerSecond(long input, int interval) {
+        if (interval > 0) // sanity
+            return input * 1000.0 / interval;
+        return input;
+    }
+
+    // rows are usually measured less than a second apart, so only format a date when the second changes
+    private static class DateCache {
+        private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ssZ");
+        private final Date date = new Date();
+        private long second = Long.MIN_VALUE;
+        private String formatted;
+
+        public String format(long time) {
+            long thisSecond = time / 1000;
+            if (thisSecond != second) {
+                date.setTime(time);
+                formatted = dateFormat.format(date);
+                second = thisSecond;
+            }
+            return formatted;
+        }
+    }
+}
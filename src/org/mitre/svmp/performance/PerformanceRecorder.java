@@ -0,0 +1,92 @@
+/*
+ Copyright 2013 The MITRE Corporation, All Rights Reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this work except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.mitre.svmp.performance;
+
+import android.content.Context;
+import android.os.SystemClock;
+import org.mitre.svmp.common.DatabaseHandler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Joe Portner
+ * Buffers performance samples in memory and writes them to the database in batches
+ * Each batch is written in a single transaction, so the cost of a commit is shared by many samples
+ * The MeasurementInfo record is written along with the first batch; trace spans are written along with the next batch
+ * If a batch can't be written, it is kept and tried once more with the next flush before it is dropped
+ */
+public class PerformanceRecorder {
+    private static final int FLUSH_SAMPLES = 60; // write after this many samples have been buffered...
+    private static final long FLUSH_INTERVAL = 30000; // ...or after this many ms, whichever comes first
+
+    private MeasurementInfo measurementInfo;
+    private DatabaseHandler databaseHandler;
+    private List<PerformanceSample> samples = new ArrayList<PerformanceSample>();
+    private List<TraceSpan> spans = new ArrayList<TraceSpan>();
+    private boolean wroteMeasurementInfo;
+    private boolean retrying; // the buffered batch failed to write once already
+    private long lastFlush = SystemClock.elapsedRealtime();
+    private boolean closed;
+
+    public PerformanceRecorder(Context context, MeasurementInfo measurementInfo) {
+        this.measurementInfo = measurementInfo;
+        this.databaseHandler = new DatabaseHandler(context);
+    }
+
+    // used by MeasureTask after each measurement
+    public synchronized void record(PerformanceSample sample) {
+        if (closed)
+            return;
+        samples.add(sample);
+        if (samples.size() >= FLUSH_SAMPLES || SystemClock.elapsedRealtime() - lastFlush >= FLUSH_INTERVAL)
+            flush();
+    }
+
+    // used by MeasureTask to record startup phases that have completed
+    public synchronized void record(List<TraceSpan> spans) {
+        if (!closed)
+            this.spans.addAll(spans);
+    }
+
+    public synchronized void flush() {
+        lastFlush = SystemClock.elapsedRealtime();
+        if (samples.size() == 0 && spans.size() == 0)
+            return;
+
+        boolean success = databaseHandler.insertPerformanceSamples(measurementInfo, !wroteMeasurementInfo, samples,
+                spans);
+        if (success)
+            wroteMeasurementInfo = true;
+        else if (!retrying) {
+            retrying = true; // keep the batch, the next flush will try it again
+            return;
+        }
+        // if the write failed twice, drop the batch rather than letting the buffer grow without bound
+        retrying = false;
+        samples.clear();
+        spans.clear();
+    }
+
+    // writes any buffered samples, then closes the database
+    public synchronized void close() {
+        if (!closed) {
+            flush();
+            databaseHandler.close();
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ Copyright 2013 The MITRE Corporation, All Rights Reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this work except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.mitre.svmp.performance;
+
+/**
+ * @author Joe Portner
+ * All of the measurements taken by MeasureTask for one interval; buffered by PerformanceRecorder until it is written
+ */
+public class PerformanceSample {
+    private long measureDate;
+    private SpanPerformanceData spanMeasurements;
+    private PointPerformanceData pointMeasurements;
+    private PingPerformanceData pingMeasurements;
+    private PingPerformanceData dataChannelPingMeasurements;
+    private TrafficPerformanceData trafficMeasurements;
+    private WebRTCPerformanceData webRTCMeasurements;
+
+    // the measurement objects must be copies that won't change after this is constructed
+    public PerformanceSample(long measureDate, SpanPerformanceData spanMeasurements,
+                             PointPerformanceData pointMeasurements, PingPerformanceData pingMeasurements,
+                             PingPerformanceData dataChannelPingMeasurements, TrafficPerformanceData trafficMeasurements,
+                             WebRTCPerformanceData webRTCMeasurements) {
+        this.measureDate = measureDate;
+        this.spanMeasurements = spanMeasurements;
+        this.pointMeasurements = pointMeasurements;
+        this.pingMeasurements = pingMeasurements;
+        this.dataChannelPingMeasurements = dataChannelPingMeasurements;
+        this.trafficMeasurements = trafficMeasurements;
+        this.webRTCMeasurements = webRTCMeasurements;
+    }
+
+    public long getMeasureDate() {
+        return measureDate;
+    }
+
+    public SpanPerformanceData getSpanMeasurements() {
+        return spanMeasurements;
+    }
+
+    public PointPerformanceData getPointMeasurements() {
+        return pointMeasurements;
+    }
+
+    public PingPerformanceData getPingMeasurements() {
+        return pingMeasurements;
+    }
+
+    public PingPerformanceData getDataChannelPingMeasurements() {
+        return dataChannelPingMeasurements;
+    }
+
+    public TrafficPerformanceData getTrafficMeasurements() {
+        return trafficMeasurements;
+    }
+
+    public WebRTCPerformanceData getWebRTCMeasurements() {
+        return webRTCMeasurements;
+    }
+
+    public String toString() {
+        return String.format("[%s, %s, %s, %s, %s]", spanMeasurements, pointMeasurements, pingMeasurements,
+                trafficMeasurements, webRTCMeasurements);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ Copyright 2013 The MITRE Corporation, All Rights Reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this work except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.mitre.svmp.performance;
+
+import java.util.Arrays;
+
+/**
+ * @author Joe Portner
+ * Aggregate of one metric over one minute of a measurement session; replaces raw samples for older sessions
+ * Values are added with add(), then the aggregates are computed once with finish()
+ */
+public class PerformanceSummary {
+    private long minuteDate;
+    private String metric;
+
+    private double[] values = new double[16];
+    private int samples;
+
+    private double min;
+    private double avg;
+    private double max;
+    private double p95;
+    private double sum;
+
+    public PerformanceSummary(long minuteDate, String metric) {
+        this.minuteDate = minuteDate;
+        this.metric = metric;
+    }
+
+    public void add(double value) {
+        if (samples == values.length)
+            values = Arrays.copyOf(values, samples * 2);
+        values[samples++] = value;
+    }
+
+    // computes the aggregates and releases the raw values
+    public void finish() {
+        Arrays.sort(values, 0, samples);
+        for (int i = 0; i < samples; i++)
+            sum += values[i];
+        if (samples > 0) {
+            min = values[0];
+            max = values[samples - 1];
+            avg = sum / samples;
+            p95 = values[Math.max((int)Math.ceil(0.95 * samples) - 1, 0)]; // nearest rank
+        }
+        values = null;
+    }
+
+    public long getMinuteDate() {
+        return minuteDate;
+    }
+
+    public String getMetric() {
+        return metric;
+    }
+
+    public int getSamples() {
+        return samples;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getAvg() {
+        return avg;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public double getP95() {
+        return p95;
+    }
+
+    public double getSum() {
+        return sum;
+    }
+}
@@ -18,32 +18,39 @@ package org.mitre.svmp.performance;
 import android.content.Context;
 import org.mitre.svmp.activities.AppRTCActivity;
 import org.mitre.svmp.apprtc.AppRTCClient;
-import org.mitre.svmp.common.DatabaseHandler;
 import org.mitre.svmp.common.Utility;
 import org.mitre.svmp.client.R;
 
 import java.util.Date;
 import java.util.Timer;
+import java.util.TimerTask;
 
 /**
  * @author Joe Portner
  * Runs tasks on intervals to gather and record performance data
  * Runs all timer tasks on a single background thread
- * Runs CPU measurement task on a separate thread
+ * CPU usage is sampled from /proc by the MeasureTask (see CpuSampler), so no separate thread is needed
  */
 public class PerformanceTimer extends Timer {
+    private static final long MIN_LOSS_TIMEOUT = 2000; // ms
+
     // common variables
     private Context context;
     private AppRTCClient binder;
     private int connectionID;
     private boolean active;
+    private boolean closing; // a final task has been scheduled to write the last samples and stop the timer
 
     // objects that record performance measurements
     private SpanPerformanceData spanPerformanceData;
     private PointPerformanceData pointPerformanceData;
+    private PingPerformanceData pingPerformanceData;
+    private PingPerformanceData dataChannelPingPerformanceData; // pings sent over the input data channel
+    private TrafficPerformanceData trafficPerformanceData;
+    private WebRTCPerformanceData webRTCPerformanceData;
+    private PhaseTracer phaseTracer;
 
     // threads/tasks that take performance measurements
-    private MeasureCpuThread measureCpuThread;
     private MeasureTask measureTask;
     private PingTask pingTask;
 
@@ -60,6 +67,11 @@ public class PerformanceTimer extends Timer {
         // create objects to record performance measurements
         this.spanPerformanceData = new SpanPerformanceData();
         this.pointPerformanceData = new PointPerformanceData();
+        this.pingPerformanceData = new PingPerformanceData(getLossTimeout(context));
+        this.dataChannelPingPerformanceData = new PingPerformanceData(getLossTimeout(context));
+        this.trafficPerformanceData = new TrafficPerformanceData();
+        this.webRTCPerformanceData = new WebRTCPerformanceData();
+        this.phaseTracer = new PhaseTracer(active); // starts timing the STARTUP phase
     }
 
     // getters
@@ -71,6 +83,34 @@ public class PerformanceTimer extends Timer {
         return pointPerformanceData;
     }
 
+    public PingPerformanceData getPingPerformanceData() {
+        return pingPerformanceData;
+    }
+
+    public PingPerformanceData getDataChannelPingPerformanceData() {
+        return dataChannelPingPerformanceData;
+    }
+
+    public TrafficPerformanceData getTrafficPerformanceData() {
+        return trafficPerformanceData;
+    }
+
+    public WebRTCPerformanceData getWebRTCPerformanceData() {
+        return webRTCPerformanceData;
+    }
+
+    public PhaseTracer getPhaseTracer() {
+        return phaseTracer;
+    }
+
+    // a ping is counted as lost if it hasn't been answered by the time two more pings have been sent
+    private static long getLossTimeout(Context context) {
+        int pingInterval = Utility.getPrefInt(context,
+                R.string.preferenceKey_performance_pingInterval,
+                R.string.preferenceValue_performance_pingInterval);
+        return Math.max(2L * pingInterval, MIN_LOSS_TIMEOUT);
+    }
+
     // called when connection handshaking is complete and state is RUNNING
     public void start() {
         if (active) {
@@ -85,41 +125,60 @@ public class PerformanceTimer extends Timer {
             // find the current time
             long startDate = System.currentTimeMillis();
 
-            // add the current time, connection ID, and measure interval to the database (MeasurementInfo table)
-            DatabaseHandler databaseHandler = new DatabaseHandler(context);
-            databaseHandler.insertMeasurementInfo(
-                    new MeasurementInfo(new Date(startDate), connectionID, measureInterval, pingInterval));
-            databaseHandler.close();
+            // the current time, connection ID, and measure interval are written to the database (MeasurementInfo
+            // table) along with the first batch of performance data
+            MeasurementInfo measurementInfo =
+                    new MeasurementInfo(new Date(startDate), connectionID, measureInterval, pingInterval);
 
-            // create a MeasureCpuThread and run it on an interval (start immediately)
-            measureCpuThread = new MeasureCpuThread(pointPerformanceData, context.getPackageName());
-            measureCpuThread.start();
+            // start a RetentionTask on its own thread, to summarize older sessions
+            new RetentionTask(context).start();
 
             // create a PingTask and run it on an interval (start immediately)
-            pingTask = new PingTask(binder);
+            pingTask = new PingTask(binder, pingPerformanceData, dataChannelPingPerformanceData);
             scheduleAtFixedRate(this.pingTask, 0, pingInterval);
 
             // create a MeasureTask and run it on an interval
-            measureTask = new MeasureTask(context, spanPerformanceData, pointPerformanceData, startDate);
+            measureTask = new MeasureTask(context, spanPerformanceData, pointPerformanceData, pingPerformanceData,
+                    dataChannelPingPerformanceData, trafficPerformanceData, webRTCPerformanceData, phaseTracer,
+                    measurementInfo);
             scheduleAtFixedRate(this.measureTask, measureInterval, measureInterval);
         }
         else
             cancel();
     }
 
+    // usually called on the main thread; the last samples are written to the database by a final task on the timer
+    // thread, which then stops the timer
     @Override
-    public void cancel() {
+    public synchronized void cancel() {
+        if (closing)
+            return; // the final task will stop the timer
+        final MeasureTask measureTask = this.measureTask;
         if (active) {
-            if (measureCpuThread != null)
-                measureCpuThread.cancel();
             if (pingTask != null)
                 pingTask.cancel();
             if (measureTask != null)
                 measureTask.cancel();
         }
-        measureCpuThread = null;
         pingTask = null;
-        measureTask = null;
+        this.measureTask = null;
+
+        if (measureTask != null) {
+            try {
+                schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        measureTask.close();
+                        PerformanceTimer.super.cancel();
+                    }
+                }, 0);
+                closing = true;
+                return;
+            } catch (IllegalStateException e) {
+                // the timer was already cancelled, so the task can't run; close the recorder here instead
+                measureTask.close();
+            }
+        }
         super.cancel();
     }
 }
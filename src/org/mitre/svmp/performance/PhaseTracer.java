@@ -0,0 +1,91 @@
+/*
+ Copyright 2013 The MITRE Corporation, All Rights Reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this work except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.mitre.svmp.performance;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Joe Portner
+ * Records how long each StartupPhase takes; spans are timed with System.nanoTime() and converted to wall clock time
+ * Completed spans are collected by the MeasureTask and written along with the performance samples of the session
+ * If performance measurements are turned off, the tracer is disabled and all methods return immediately
+ */
+public class PhaseTracer {
+    private static final String TAG = PhaseTracer.class.getName();
+    private static final long NOT_BEGUN = Long.MIN_VALUE;
+
+    private final boolean enabled;
+    private final long originNanos = System.nanoTime();
+    private final long originMicros = System.currentTimeMillis() * 1000;
+
+    // start time and thread of each phase that has begun but not ended, indexed by ordinal
+    private final long[] beginNanos = new long[StartupPhase.values().length];
+    private final String[] beginThreads = new String[StartupPhase.values().length];
+    private List<TraceSpan> completed = new ArrayList<TraceSpan>();
+
+    public PhaseTracer(boolean enabled) {
+        this.enabled = enabled;
+        for (int i = 0; i < beginNanos.length; i++)
+            beginNanos[i] = NOT_BEGUN;
+        begin(StartupPhase.STARTUP);
+    }
+
+    public synchronized void begin(StartupPhase phase) {
+        if (enabled) {
+            beginNanos[phase.ordinal()] = System.nanoTime();
+            beginThreads[phase.ordinal()] = Thread.currentThread().getName();
+        }
+    }
+
+    // ends a phase that has begun; if the phase hasn't begun (or already ended), this does nothing
+    public synchronized void end(StartupPhase phase) {
+        if (enabled && beginNanos[phase.ordinal()] != NOT_BEGUN) {
+            add(phase, beginThreads[phase.ordinal()], beginNanos[phase.ordinal()], System.nanoTime());
+            beginNanos[phase.ordinal()] = NOT_BEGUN;
+        }
+    }
+
+    // records a point in time, rather than a span
+    public synchronized void instant(StartupPhase phase) {
+        if (enabled) {
+            long now = System.nanoTime();
+            add(phase, Thread.currentThread().getName(), now, now);
+        }
+    }
+
+    // records a phase that was timed elsewhere (e.g. before this tracer was available); times are from System.nanoTime()
+    public synchronized void record(StartupPhase phase, String thread, long startNanos, long endNanos) {
+        if (enabled)
+            add(phase, thread, startNanos, endNanos);
+    }
+
+    // returns the spans that have completed since the last call
+    public synchronized List<TraceSpan> takeCompleted() {
+        List<TraceSpan> value = completed;
+        completed = new ArrayList<TraceSpan>();
+        return value;
+    }
+
+    private void add(StartupPhase phase, String thread, long startNanos, long endNanos) {
+        TraceSpan span = new TraceSpan(phase.getTraceName(), thread,
+                originMicros + (startNanos - originNanos) / 1000, (endNanos - startNanos) / 1000);
+        completed.add(span);
+        Log.d(TAG, span.toString());
+    }
+}
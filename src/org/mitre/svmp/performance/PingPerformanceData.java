@@ -0,0 +1,211 @@
+/*
+ Copyright 2013 The MITRE Corporation, All Rights Reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this work except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.mitre.svmp.performance;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * @author Joe Portner
+ * This object keeps track of ping round-trip times that are measured over a span of time
+ * Samples are taken with System.nanoTime(); the values returned by reset() are summarized in ms
+ * If the server stamps its receive and send times on the response, the clock offset and one-way delays are estimated too
+ */
+public class PingPerformanceData {
+    private static final double NANOS_PER_MS = 1000000.0;
+
+    // pings that haven't been answered within this many ms are counted as lost
+    private long lossTimeout;
+
+    // outstanding pings; maps the start date echoed back by the server to the nanoTime that the ping was sent
+    private final HashMap<Long, Long> pending = new HashMap<Long, Long>();
+
+    // round-trip times (ns) received since the last reset
+    private long[] samples = new long[8];
+    private int received;
+    private int sent;
+    private int lost;
+
+    // these are carried over between intervals
+    private long lastRtt = -1; // ns
+    private double jitter = -1; // ns, smoothed as in RFC 3550 section 6.4.1
+    private ClockSyncEstimator clockSync = new ClockSyncEstimator();
+
+    // summary values, only filled in on copies returned by reset()
+    private double min = -1; // ms or -1 (no samples)
+    private double p50 = -1; // ms or -1 (no samples)
+    private double p95 = -1; // ms or -1 (no samples)
+    private double p99 = -1; // ms or -1 (no samples)
+    private double max = -1; // ms or -1 (no samples)
+    private double clockOffset = Double.NaN; // ms or NaN (unknown)
+    private double uplinkDelay = Double.NaN; // ms or NaN (unknown)
+    private double downlinkDelay = Double.NaN; // ms or NaN (unknown)
+
+    public PingPerformanceData(long lossTimeout) {
+        this.lossTimeout = lossTimeout;
+    }
+
+    // used by PingTask, called immediately before a ping request is sent
+    public synchronized void onPingSent(long startDate, long sentNanos) {
+        pending.put(startDate, sentNanos);
+        sent++;
+    }
+
+    // used by SessionService (through PerformanceAdapter), called immediately after a ping response is received
+    // serverReceiveDate and serverSendDate are the server's wall clock times in ms, or -1 if the server didn't set them
+    public synchronized void onPingReceived(long startDate, long receivedNanos,
+                                            long serverReceiveDate, long serverSendDate) {
+        Long sentNanos = pending.remove(startDate);
+        // ignore responses we didn't ask for, or that arrived after we counted them as lost
+        if (sentNanos == null || receivedNanos <= sentNanos)
+            return;
+
+        long rtt = receivedNanos - sentNanos;
+        if (received == samples.length)
+            samples = Arrays.copyOf(samples, samples.length * 2);
+        samples[received++] = rtt;
+
+        if (lastRtt >= 0) {
+            long difference = Math.abs(rtt - lastRtt);
+            if (jitter < 0)
+                jitter = difference;
+            else
+                jitter += (difference - jitter) / 16.0;
+        }
+        lastRtt = rtt;
+
+        // the receive time is derived from the monotonic round-trip time so a wall clock change can't skew it
+        if (serverReceiveDate >= 0 && serverSendDate >= serverReceiveDate)
+            clockSync.addSample(startDate, serverReceiveDate, serverSendDate, startDate + toMs(rtt));
+    }
+
+    public synchronized PingPerformanceData reset() {
+        // any pings that have been outstanding for too long are counted as lost
+        long cutoff = System.nanoTime() - (lossTimeout * 1000000L);
+        Iterator<Map.Entry<Long, Long>> iterator = pending.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getValue() < cutoff) {
+                iterator.remove();
+                lost++;
+            }
+        }
+
+        // create a summarized copy of the measurements taken
+        PingPerformanceData copy = new PingPerformanceData(lossTimeout);
+        copy.received = received;
+        copy.sent = sent;
+        copy.lost = lost;
+        copy.lastRtt = lastRtt;
+        copy.jitter = jitter;
+        if (received > 0) {
+            long[] sorted = Arrays.copyOf(samples, received);
+            Arrays.sort(sorted);
+            copy.min = toMs(sorted[0]);
+            copy.p50 = toMs(percentile(sorted, 50));
+            copy.p95 = toMs(percentile(sorted, 95));
+            copy.p99 = toMs(percentile(sorted, 99));
+            copy.max = toMs(sorted[sorted.length - 1]);
+        }
+        if (clockSync.hasEstimate()) {
+            copy.clockOffset = clockSync.getOffset();
+            copy.uplinkDelay = clockSync.getUplinkDelay();
+            copy.downlinkDelay = clockSync.getDownlinkDelay();
+        }
+
+        // reset measurements
+        received = 0;
+        sent = 0;
+        lost = 0;
+
+        return copy;
+    }
+
+    // nearest-rank percentile of an array that has already been sorted
+    private static long percentile(long[] sorted, int percent) {
+        int rank = (int)Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(rank - 1, 0)];
+    }
+
+    private static double toMs(double nanos) {
+        return nanos / NANOS_PER_MS;
+    }
+
+    // last round-trip time in ms, or -1 if no ping response has been received yet
+    public int getPing() {
+        return lastRtt < 0 ? -1 : (int)Math.round(toMs(lastRtt));
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getP50() {
+        return p50;
+    }
+
+    public double getP95() {
+        return p95;
+    }
+
+    public double getP99() {
+        return p99;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    // ms, or -1 if fewer than two ping responses have been received
+    public double getJitter() {
+        return jitter < 0 ? -1 : toMs(jitter);
+    }
+
+    // ms, server clock minus client clock, or NaN if the server hasn't stamped any ping responses
+    public double getClockOffset() {
+        return clockOffset;
+    }
+
+    // ms, or NaN if the server hasn't stamped any ping responses
+    public double getUplinkDelay() {
+        return uplinkDelay;
+    }
+
+    // ms, or NaN if the server hasn't stamped any ping responses
+    public double getDownlinkDelay() {
+        return downlinkDelay;
+    }
+
+    public int getSent() {
+        return sent;
+    }
+
+    public int getReceived() {
+        return received;
+    }
+
+    public int getLost() {
+        return lost;
+    }
+
+    public String toString() {
+        return String.format("ping '%dms', min '%sms', p50 '%sms', p95 '%sms', p99 '%sms', max '%sms', jitter '%sms', "
+                + "sent '%d', received '%d', lost '%d', clockOffset '%sms', uplinkDelay '%sms', downlinkDelay '%sms'",
+                getPing(), min, p50, p95, p99, max, getJitter(), sent, received, lost,
+                clockOffset, uplinkDelay, downlinkDelay);
+    }
+}
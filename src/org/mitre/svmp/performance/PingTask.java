@@ -15,6 +15,7 @@
  */
 package org.mitre.svmp.performance;
 
+import com.google.protobuf.UnknownFieldSet;
 import org.mitre.svmp.apprtc.AppRTCClient;
 import org.mitre.svmp.protocol.SVMPProtocol.Ping;
 import org.mitre.svmp.protocol.SVMPProtocol.Request;
@@ -27,23 +28,56 @@ import java.util.TimerTask;
  * Controlled by PerformanceTimer
  */
 public class PingTask extends TimerTask {
+    // the server stamps these on the ping response (int64, ms since epoch) so we can estimate clock offset
+    // they are read as unknown fields so that older generated protocol classes can still make use of them
+    public static final int FIELD_SERVER_RECEIVE_DATE = 2;
+    public static final int FIELD_SERVER_SEND_DATE = 3;
+
     private AppRTCClient binder;
+    private PingPerformanceData pingPerformanceData;
+    private PingPerformanceData dataChannelPingPerformanceData;
 
-    public PingTask(AppRTCClient binder) {
+    public PingTask(AppRTCClient binder, PingPerformanceData pingPerformanceData,
+                    PingPerformanceData dataChannelPingPerformanceData) {
         this.binder = binder;
+        this.pingPerformanceData = pingPerformanceData;
+        this.dataChannelPingPerformanceData = dataChannelPingPerformanceData;
     }
 
     public void run() {
-        binder.sendMessage(makePingRequest());
+        // the start date is echoed back by the server and identifies the ping; the round-trip time itself is
+        // measured with nanoTime, which is monotonic and isn't affected by wall clock adjustments
+        long startDate = System.currentTimeMillis();
+        Request request = makePingRequest(startDate);
+        pingPerformanceData.onPingSent(startDate, System.nanoTime());
+        binder.sendMessage(request);
+
+        // if input is sent over the data channel, ping that too, so its latency can be compared with the WebSocket's
+        if (binder.isInputChannelOpen()) {
+            dataChannelPingPerformanceData.onPingSent(startDate, System.nanoTime());
+            binder.sendOnInputChannel(request);
+        }
     }
 
-    private Request makePingRequest() {
+    private Request makePingRequest(long startDate) {
         Ping.Builder pBuilder = Ping.newBuilder();
-        pBuilder.setStartDate(System.currentTimeMillis());
+        pBuilder.setStartDate(startDate);
 
         return Request.newBuilder()
                 .setType(Request.RequestType.PING)
                 .setPingRequest(pBuilder)
                 .build();
     }
+
+    // returns the given timestamp from a ping response, or -1 if the server didn't set it
+    public static long getServerDate(Ping pingResponse, int fieldNumber) {
+        long value = -1;
+        UnknownFieldSet fields = pingResponse.getUnknownFields();
+        if (fields.hasField(fieldNumber)) {
+            UnknownFieldSet.Field field = fields.getField(fieldNumber);
+            if (field.getVarintList().size() > 0)
+                value = field.getVarintList().get(field.getVarintList().size() - 1); // last value wins
+        }
+        return value;
+    }
 }
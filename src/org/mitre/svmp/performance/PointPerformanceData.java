@@ -17,6 +17,8 @@ package org.mitre.svmp.performance;
 
 import android.telephony.TelephonyManager;
 
+import java.util.Arrays;
+
 /**
  * @author Joe Portner
  * This object keeps track of performance measurements that are taken at a single point in time
@@ -28,11 +30,25 @@ public class PointPerformanceData {
     private double wifiStrength = -1; // % (0.0 to 1.0) or -1 (unknown)
     private int cellNetwork = TelephonyManager.NETWORK_TYPE_UNKNOWN;
     private String cellValues = ""; // varies
-    private int ping; // ms
-    private long lastPingDate; // last time the ping value was set
+    private final double[] threadCpuUsage = new double[CpuThreadGroup.values().length]; // % (0.0 to 1.0) or -1
 
     // constructor
-    public PointPerformanceData() {}
+    public PointPerformanceData() {
+        Arrays.fill(threadCpuUsage, -1);
+    }
+
+    // create a copy of the current measurements; the caller should hold this object's lock
+    public PointPerformanceData copy() {
+        PointPerformanceData copy = new PointPerformanceData();
+        copy.cpuUsage = cpuUsage;
+        copy.memoryUsage = memoryUsage;
+        copy.batteryLevel = batteryLevel;
+        copy.wifiStrength = wifiStrength;
+        copy.cellNetwork = cellNetwork;
+        copy.cellValues = cellValues;
+        System.arraycopy(threadCpuUsage, 0, copy.threadCpuUsage, 0, threadCpuUsage.length);
+        return copy;
+    }
 
     // getters
     public double getCpuUsage() {
@@ -59,8 +75,8 @@ public class PointPerformanceData {
         return cellValues;
     }
 
-    public int getPing() {
-        return ping;
+    public double getThreadCpuUsage(CpuThreadGroup group) {
+        return threadCpuUsage[group.ordinal()];
     }
 
     // setters
@@ -68,6 +84,10 @@ public class PointPerformanceData {
         this.cpuUsage = cpuUsage;
     }
 
+    public void setThreadCpuUsage(CpuThreadGroup group, double cpuUsage) {
+        this.threadCpuUsage[group.ordinal()] = cpuUsage;
+    }
+
     public void setMemoryUsage(int memoryUsage) {
         this.memoryUsage = memoryUsage;
     }
@@ -85,15 +105,8 @@ public class PointPerformanceData {
         this.cellValues = cellValues;
     }
 
-    public synchronized void setPing(long startDate, long endDate) {
-        if (endDate > startDate && endDate > lastPingDate) {
-            this.ping = (int)(endDate - startDate);
-            this.lastPingDate = endDate;
-        }
-    }
-
     public String toString() {
-        return String.format("cpuUsage '%s', memoryUsage '%dkB', wifiStrength '%s', batteryLevel '%s', cellNetwork '%s', cellValues '%s', ping '%sms'",
-                cpuUsage, memoryUsage, wifiStrength, batteryLevel, cellNetwork, cellValues, ping);
+        return String.format("cpuUsage '%s', threadCpuUsage '%s', memoryUsage '%dkB', wifiStrength '%s', batteryLevel '%s', cellNetwork '%s', cellValues '%s'",
+                cpuUsage, Arrays.toString(threadCpuUsage), memoryUsage, wifiStrength, batteryLevel, cellNetwork, cellValues);
     }
 }
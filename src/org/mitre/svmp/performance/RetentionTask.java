@@ -0,0 +1,158 @@
+/*
+ Copyright 2013 The MITRE Corporation, All Rights Reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this work except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.mitre.svmp.performance;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.util.Log;
+import org.mitre.svmp.client.R;
+import org.mitre.svmp.common.DatabaseHandler;
+import org.mitre.svmp.common.Utility;
+
+import java.util.*;
+
+/**
+ * @author Joe Portner
+ * Runs once when measurements start, to keep the performance database from growing without limit
+ * Raw samples are kept for the most recent sessions (set in Preferences); older sessions are rolled up into per-minute
+ * summaries (min/avg/max/p95/sum of each metric), and their raw PerformanceData and TrafficData rows are deleted
+ * Started by PerformanceTimer; it runs on its own low-priority thread, so a large backlog of old sessions doesn't
+ * delay the new session's pings and measurements on the timer thread
+ */
+public class RetentionTask extends Thread {
+    private static final String TAG = RetentionTask.class.getName();
+    private static final long MINUTE = 60000;
+
+    // PerformanceData columns that aren't summarized (keys, or values that aren't numeric measurements)
+    private static final Set<String> EXCLUDED_COLUMNS = new HashSet<String>(Arrays.asList(
+            "MeasureDate", "StartDate", "CellNetwork", "CellValues", "CandidatePair"));
+    // PerformanceData columns that use NULL for unknown values; -1 is a real value in these columns
+    private static final Set<String> NULLABLE_COLUMNS = new HashSet<String>(Arrays.asList(
+            "ClockOffset", "UplinkDelay", "DownlinkDelay"));
+
+    private Context context;
+
+    public RetentionTask(Context context) {
+        super("RetentionTask");
+        this.context = context;
+    }
+
+    public void run() {
+        android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        int keepSessions = Utility.getPrefInt(context,
+                R.string.preferenceKey_performance_keepSessions,
+                R.string.preferenceValue_performance_keepSessions);
+
+        DatabaseHandler handler = new DatabaseHandler(context);
+        try {
+            for (MeasurementInfo measurementInfo : handler.getMeasurementInfoToSummarize(keepSessions)) {
+                List<PerformanceSummary> summaries = new ArrayList<PerformanceSummary>();
+                summarizePerformanceData(handler.getPerformanceDataCursor(measurementInfo), summaries);
+                summarizeTrafficData(handler.getTrafficDataCursor(measurementInfo), summaries);
+
+                if (handler.replaceWithSummaries(measurementInfo, summaries))
+                    Log.d(TAG, String.format("Summarized session '%s' into %d rows",
+                            measurementInfo.getStartDate(), summaries.size()));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error summarizing performance data: " + e.getMessage());
+        } finally {
+            handler.close();
+        }
+    }
+
+    private void summarizePerformanceData(Cursor cursor, List<PerformanceSummary> summaries) {
+        try {
+            // find the columns to summarize
+            List<Integer> columns = new ArrayList<Integer>();
+            for (int i = 0; i < cursor.getColumnCount(); i++)
+                if (!EXCLUDED_COLUMNS.contains(cursor.getColumnName(i)))
+                    columns.add(i);
+
+            Map<String, PerformanceSummary> minute = new LinkedHashMap<String, PerformanceSummary>();
+            long minuteDate = -1;
+            int measureDateColumn = cursor.getColumnIndexOrThrow("MeasureDate");
+            while (cursor.moveToNext()) {
+                long thisMinute = cursor.getLong(measureDateColumn) / MINUTE * MINUTE;
+                if (thisMinute != minuteDate) {
+                    finishMinute(minute, summaries);
+                    minuteDate = thisMinute;
+                }
+
+                for (int column : columns) {
+                    if (cursor.isNull(column))
+                        continue;
+                    String name = cursor.getColumnName(column);
+                    double value = cursor.getDouble(column);
+                    if (value == -1 && !NULLABLE_COLUMNS.contains(name))
+                        continue; // unknown
+                    getSummary(minute, minuteDate, name).add(value);
+                }
+            }
+            finishMinute(minute, summaries);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // traffic metrics are named "<direction> <message type> <Messages|Bytes|CodecTime>", e.g. "out TOUCHEVENT Bytes"
+    private void summarizeTrafficData(Cursor cursor, List<PerformanceSummary> summaries) {
+        try {
+            String[] fields = {"Messages", "Bytes", "CodecTime"};
+            int[] fieldColumns = new int[fields.length];
+            for (int i = 0; i < fields.length; i++)
+                fieldColumns[i] = cursor.getColumnIndexOrThrow(fields[i]);
+            int measureDateColumn = cursor.getColumnIndexOrThrow("MeasureDate");
+            int directionColumn = cursor.getColumnIndexOrThrow("Direction");
+            int messageTypeColumn = cursor.getColumnIndexOrThrow("MessageType");
+
+            Map<String, PerformanceSummary> minute = new LinkedHashMap<String, PerformanceSummary>();
+            long minuteDate = -1;
+            while (cursor.moveToNext()) {
+                long thisMinute = cursor.getLong(measureDateColumn) / MINUTE * MINUTE;
+                if (thisMinute != minuteDate) {
+                    finishMinute(minute, summaries);
+                    minuteDate = thisMinute;
+                }
+
+                String prefix = (cursor.getInt(directionColumn) == TrafficPerformanceData.DIRECTION_OUT ? "out " : "in ")
+                        + cursor.getString(messageTypeColumn) + " ";
+                for (int i = 0; i < fields.length; i++)
+                    getSummary(minute, minuteDate, prefix + fields[i]).add(cursor.getDouble(fieldColumns[i]));
+            }
+            finishMinute(minute, summaries);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private PerformanceSummary getSummary(Map<String, PerformanceSummary> minute, long minuteDate, String metric) {
+        PerformanceSummary summary = minute.get(metric);
+        if (summary == null) {
+            summary = new PerformanceSummary(minuteDate, metric);
+            minute.put(metric, summary);
+        }
+        return summary;
+    }
+
+    private void finishMinute(Map<String, PerformanceSummary> minute, List<PerformanceSummary> summaries) {
+        for (PerformanceSummary summary : minute.values()) {
+            summary.finish();
+            summaries.add(summary);
+        }
+        minute.clear();
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ Copyright 2013 The MITRE Corporation, All Rights Reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this work except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.mitre.svmp.performance;
+
+/**
+ * @author Joe Portner
+ * The counters that are recorded by SpanPerformanceData
+ * Each counter is stored in its own PerformanceData column and exported as its own CSV column (as a rate per second)
+ * To add a counter, add a constant here; the column is added to the database the next time it is opened
+ */
+public enum SpanCounter {
+    FRAME_COUNT("FrameCount", "Frames per second"),
+    FRAMES_RECEIVED("FramesReceived", "Received frames per second"),
+    FRAMES_DROPPED("FramesDropped", "Dropped frames per second"),
+    FRAME_COPY_BYTES("FrameCopyBytes", "Frame bytes copied per second"),
+    FRAME_UPLOAD_MICROS("FrameUploadMicros", "Frame upload microseconds per second"),
+    FRAME_PRESENT_MICROS("FramePresentMicros", "Upload to present microseconds per second"),
+    SENSOR_UPDATES("SensorUpdates", "Sensor updates per second"),
+    TOUCH_UPDATES("TouchUpdates", "Touch updates per second");
+
+    private final String column;
+    private final String header;
+
+    private SpanCounter(String column, String header) {
+        this.column = column;
+        this.header = header;
+    }
+
+    // name of the PerformanceData column
+    public String getColumn() {
+        return column;
+    }
+
+    // name of the exported CSV column
+    public String getHeader() {
+        return header;
+    }
+}
@@ -18,53 +18,47 @@ package org.mitre.svmp.performance;
 /**
  * @author Joe Portner
  * This object keeps track of performance measurements that are taken over a span of time
+ * Counters are lock-free, so the GL, sensor, and UI threads never block each other (or the MeasureTask)
  */
 public class SpanPerformanceData {
-    private int frameCount;
-    private int sensorUpdates;
-    private int touchUpdates;
+    private static final SpanCounter[] COUNTERS = SpanCounter.values();
 
-    public SpanPerformanceData() {}
+    private final StripedCounters counters;
+    private long[] values; // only filled in on copies returned by reset()
 
-    public synchronized SpanPerformanceData reset() {
-        // create a copy of the measurements taken
-        SpanPerformanceData copy = new SpanPerformanceData();
-        copy.frameCount = frameCount;
-        copy.sensorUpdates = sensorUpdates;
-        copy.touchUpdates = touchUpdates;
-
-        // reset measurements
-        frameCount = 0;
-        sensorUpdates = 0;
-        touchUpdates = 0;
-
-        return copy;
+    public SpanPerformanceData() {
+        this.counters = new StripedCounters(COUNTERS.length);
     }
 
-    public int getFrameCount() {
-        return frameCount;
+    private SpanPerformanceData(long[] values) {
+        this.counters = null;
+        this.values = values;
     }
 
-    public int getSensorUpdates() {
-        return sensorUpdates;
+    // create a copy of the measurements taken, and reset the counters
+    public SpanPerformanceData reset() {
+        return new SpanPerformanceData(counters.sumThenReset());
     }
 
-    public int getTouchUpdates() {
-        return touchUpdates;
+    public void increment(SpanCounter counter) {
+        counters.increment(counter.ordinal());
     }
 
-    public synchronized void incrementFrameCount() {
-        this.frameCount++;
+    public void add(SpanCounter counter, long delta) {
+        counters.add(counter.ordinal(), delta);
     }
-    public synchronized void incrementSensorUpdates() {
-        this.sensorUpdates++;
-    }
-    public synchronized void incrementTouchUpdates() {
-        this.touchUpdates++;
+
+    public long get(SpanCounter counter) {
+        return values[counter.ordinal()];
     }
 
     public String toString() {
-        return String.format("frameCount '%d', sensorUpdates '%d', touchUpdates '%d'",
-                frameCount, sensorUpdates, touchUpdates);
+        StringBuilder builder = new StringBuilder();
+        for (SpanCounter counter : COUNTERS) {
+            if (builder.length() > 0)
+                builder.append(", ");
+            builder.append(String.format("%s '%d'", counter.getColumn(), get(counter)));
+        }
+        return builder.toString();
     }
 }
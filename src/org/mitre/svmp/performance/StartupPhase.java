@@ -0,0 +1,48 @@
+/*
+ Copyright 2013 The MITRE Corporation, All Rights Reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this work except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.mitre.svmp.performance;
+
+/**
+ * @author Joe Portner
+ * The phases of a session start, in the order they normally happen; each one is recorded as a span by PhaseTracer
+ * STARTUP covers the whole sequence, from when the service starts connecting until the first frame is rendered
+ */
+public enum StartupPhase {
+    STARTUP("Startup"),
+    AUTHENTICATE("REST login"),                     // SVMPAuthenticator
+    SOCKET_CONNECT("TCP/TLS connect"),              // SocketConnector
+    WEBSOCKET_UPGRADE("WebSocket upgrade"),         // WebSocketConnection.connect until onOpen
+    VM_READY("Wait for VMREADY"),                   // WebSocket onOpen until VMREADY
+    WEBRTC_INIT("WebRTC init"),                     // PeerConnectionFactory.initializeAndroidGlobals
+    PEER_CONNECTION("PeerConnection setup"),        // PeerConnectionFactory and PeerConnection creation
+    OFFER_ANSWER("Offer/answer"),                   // createOffer until the remote answer is set
+    ICE("ICE connectivity"),                        // PeerConnection created until ICE is connected
+    ADD_STREAM("Remote stream added"),              // instant, onAddStream
+    FIRST_FRAME("First frame"),                     // onAddStream until the first frame is rendered
+    RECONNECT("Reconnect"),                         // WebSocket lost until VMREADY after reconnecting (not startup)
+    MIGRATION("Network migration");                 // active network changed until ICE is connected again (not startup)
+
+    private final String traceName;
+
+    private StartupPhase(String traceName) {
+        this.traceName = traceName;
+    }
+
+    // name of the span in the TraceData table and the exported trace
+    public String getTraceName() {
+        return traceName;
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ Copyright 2013 The MITRE Corporation, All Rights Reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this work except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.mitre.svmp.performance;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @author Joe Portner
+ * A fixed-size set of lock-free counters that can be updated from many threads at once
+ * Each counter is split into stripes; a thread only ever touches the stripe picked by its ID, so threads don't contend
+ * on the same cache line. Reading a counter sums its stripes, and the sum is atomically swapped out for zero so no
+ * update is ever lost between two reads.
+ */
+public class StripedCounters {
+    private static final int STRIPES = 4; // must be a power of two
+    private static final int PADDING = 8; // 8 longs == 64 bytes, keeps each stripe on its own cache line
+
+    private final int size;
+    private final AtomicLongArray cells;
+
+    public StripedCounters(int size) {
+        this.size = size;
+        this.cells = new AtomicLongArray(size * STRIPES * PADDING);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void increment(int counter) {
+        add(counter, 1);
+    }
+
+    public void add(int counter, long delta) {
+        int stripe = (int)(Thread.currentThread().getId() & (STRIPES - 1));
+        cells.getAndAdd((counter * STRIPES + stripe) * PADDING, delta);
+    }
+
+    // returns the current value of each counter, and resets each counter to zero
+    public long[] sumThenReset() {
+        long[] values = new long[size];
+        for (int i = 0; i < size; i++)
+            for (int stripe = 0; stripe < STRIPES; stripe++)
+                values[i] += cells.getAndSet((i * STRIPES + stripe) * PADDING, 0);
+        return values;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ Copyright 2013 The MITRE Corporation, All Rights Reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this work except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.mitre.svmp.performance;
+
+/**
+ * @author Joe Portner
+ * One completed span recorded by PhaseTracer; times are in microseconds since the epoch
+ * A span with a duration of 0 is an instant event
+ */
+public class TraceSpan {
+    private String name;
+    private String thread;
+    private long startTime; // us
+    private long duration;  // us
+
+    public TraceSpan(String name, String thread, long startTime, long duration) {
+        this.name = name;
+        this.thread = thread;
+        this.startTime = startTime;
+        this.duration = duration;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getThread() {
+        return thread;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getDuration() {
+        return duration;
+    }
+
+    public String toString() {
+        return String.format("%s on '%s': %.1fms", name, thread, duration / 1000.0);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ Copyright 2013 The MITRE Corporation, All Rights Reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this work except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.mitre.svmp.performance;
+
+import org.mitre.svmp.protocol.SVMPProtocol.Request.RequestType;
+import org.mitre.svmp.protocol.SVMPProtocol.Response.ResponseType;
+
+/**
+ * @author Joe Portner
+ * This object keeps track of message traffic over a span of time, per message type and direction
+ * Outgoing messages are keyed by Request.RequestType, incoming messages are keyed by Response.ResponseType
+ */
+public class TrafficPerformanceData {
+    public static final int DIRECTION_OUT = 0; // client -> server
+    public static final int DIRECTION_IN = 1;  // server -> client
+
+    private static final int TYPES_OUT = RequestType.values().length;
+    private static final int TYPES_IN = ResponseType.values().length;
+
+    // for each message type, we keep three counters: message count, byte count, and encode/decode time (ns)
+    private static final int MESSAGES = 0;
+    private static final int BYTES = 1;
+    private static final int CODEC_NANOS = 2;
+    private static final int COUNTERS_PER_TYPE = 3;
+
+    private final StripedCounters counters;
+    private long[] values; // only filled in on copies returned by reset()
+
+    public TrafficPerformanceData() {
+        this.counters = new StripedCounters((TYPES_OUT + TYPES_IN) * COUNTERS_PER_TYPE);
+    }
+
+    private TrafficPerformanceData(long[] values) {
+        this.counters = null;
+        this.values = values;
+    }
+
+    // used by AppRTCClient after a request has been encoded and sent
+    public void recordOutgoing(RequestType type, int bytes, long encodeNanos) {
+        record(type.ordinal(), bytes, encodeNanos);
+    }
+
+    // used by AppRTCClient after a response has been received and decoded
+    public void recordIncoming(ResponseType type, int bytes, long decodeNanos) {
+        record(TYPES_OUT + type.ordinal(), bytes, decodeNanos);
+    }
+
+    private void record(int typeIndex, int bytes, long codecNanos) {
+        int base = typeIndex * COUNTERS_PER_TYPE;
+        counters.increment(base + MESSAGES);
+        counters.add(base + BYTES, bytes);
+        counters.add(base + CODEC_NANOS, codecNanos);
+    }
+
+    // create a copy of the measurements taken, and reset the counters
+    public TrafficPerformanceData reset() {
+        return new TrafficPerformanceData(counters.sumThenReset());
+    }
+
+    // the names of the message types for a direction, in index order
+    public static String[] getTypeNames(int direction) {
+        Enum<?>[] types = direction == DIRECTION_OUT ? RequestType.values() : ResponseType.values();
+        String[] names = new String[types.length];
+        for (int i = 0; i < types.length; i++)
+            names[i] = types[i].name();
+        return names;
+    }
+
+    public long getMessages(int direction, int typeIndex) {
+        return getValue(direction, typeIndex, MESSAGES);
+    }
+
+    public long getBytes(int direction, int typeIndex) {
+        return getValue(direction, typeIndex, BYTES);
+    }
+
+    // total time spent encoding (outgoing) or decoding (incoming) messages of this type, in ms
+    public double getCodecTime(int direction, int typeIndex) {
+        return getValue(direction, typeIndex, CODEC_NANOS) / 1000000.0;
+    }
+
+    private long getValue(int direction, int typeIndex, int counter) {
+        int offset = direction == DIRECTION_OUT ? 0 : TYPES_OUT;
+        return values[(offset + typeIndex) * COUNTERS_PER_TYPE + counter];
+    }
+
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int direction = DIRECTION_OUT; direction <= DIRECTION_IN; direction++) {
+            String[] names = getTypeNames(direction);
+            for (int i = 0; i < names.length; i++) {
+                long messages = getMessages(direction, i);
+                if (messages > 0) {
+                    if (builder.length() > 0)
+                        builder.append(", ");
+                    builder.append(String.format("%s %s '%d msgs/%dB'",
+                            direction == DIRECTION_OUT ? "out" : "in", names[i], messages, getBytes(direction, i)));
+                }
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ Copyright 2013 The MITRE Corporation, All Rights Reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this work except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.mitre.svmp.performance;
+
+/**
+ * @author Joe Portner
+ * This object keeps track of the most recent WebRTC statistics for the received video stream
+ * Values are set by the WebRTCStatsCollector each time it polls the PeerConnection, and read by the MeasureTask
+ */
+public class WebRTCPerformanceData {
+    private double receivedBitrate = -1; // kbps or -1 (unknown)
+    private double packetLoss = -1;      // % (0.0 to 1.0) of packets lost since the previous poll, or -1 (unknown)
+    private double jitter = -1;          // ms (jitter buffer delay) or -1 (unknown)
+    private double decodedFrameRate = -1; // fps or -1 (unknown)
+    private double droppedFrameRate = -1; // fps (received but not output) or -1 (unknown)
+    private double decodeTime = -1;      // ms or -1 (unknown)
+    private double rtt = -1;             // ms, of the active candidate pair, or -1 (unknown)
+    private String candidatePair = "";   // "<local type>/<remote type>" of the active candidate pair, e.g. "local/relay"
+
+    public WebRTCPerformanceData() {}
+
+    // create a copy of the current values
+    public synchronized WebRTCPerformanceData copy() {
+        WebRTCPerformanceData copy = new WebRTCPerformanceData();
+        copy.receivedBitrate = receivedBitrate;
+        copy.packetLoss = packetLoss;
+        copy.jitter = jitter;
+        copy.decodedFrameRate = decodedFrameRate;
+        copy.droppedFrameRate = droppedFrameRate;
+        copy.decodeTime = decodeTime;
+        copy.rtt = rtt;
+        copy.candidatePair = candidatePair;
+        return copy;
+    }
+
+    // getters
+    public double getReceivedBitrate() {
+        return receivedBitrate;
+    }
+
+    public double getPacketLoss() {
+        return packetLoss;
+    }
+
+    public double getJitter() {
+        return jitter;
+    }
+
+    public double getDecodedFrameRate() {
+        return decodedFrameRate;
+    }
+
+    public double getDroppedFrameRate() {
+        return droppedFrameRate;
+    }
+
+    public double getDecodeTime() {
+        return decodeTime;
+    }
+
+    public double getRtt() {
+        return rtt;
+    }
+
+    public String getCandidatePair() {
+        return candidatePair;
+    }
+
+    // setters, used by WebRTCStatsCollector
+    public synchronized void setVideoStats(double receivedBitrate, double packetLoss, double jitter,
+                                           double decodedFrameRate, double droppedFrameRate, double decodeTime) {
+        this.receivedBitrate = receivedBitrate;
+        this.packetLoss = packetLoss;
+        this.jitter = jitter;
+        this.decodedFrameRate = decodedFrameRate;
+        this.droppedFrameRate = droppedFrameRate;
+        this.decodeTime = decodeTime;
+    }
+
+    public synchronized void setConnectionStats(double rtt, String candidatePair) {
+        this.rtt = rtt;
+        this.candidatePair = candidatePair;
+    }
+
+    public String toString() {
+        return String.format("receivedBitrate '%skbps', packetLoss '%s', jitter '%sms', decodedFrameRate '%s', "
+                + "droppedFrameRate '%s', decodeTime '%sms', rtt '%sms', candidatePair '%s'",
+                receivedBitrate, packetLoss, jitter, decodedFrameRate, droppedFrameRate, decodeTime, rtt,
+                candidatePair);
+    }
+}
@@ -31,6 +31,7 @@ import org.mitre.svmp.apprtc.MessageHandler;
 import org.mitre.svmp.client.*;
 import org.mitre.svmp.common.*;
 import org.mitre.svmp.common.StateMachine.STATE;
+import org.mitre.svmp.net.ConnectivityMonitor;
 import org.mitre.svmp.performance.PerformanceAdapter;
 import org.mitre.svmp.protocol.SVMPProtocol;
 import org.mitre.svmp.protocol.SVMPProtocol.AuthResponse.AuthResponseType;
@@ -43,7 +44,8 @@ import org.mitre.svmp.protocol.SVMPProtocol.Response;
  * 2. Start the service (so it doesn't stop on unbind)
  * 3. Bind to the service
  */
-public class SessionService extends Service implements StateObserver, MessageHandler, SensorEventListener, Constants {
+public class SessionService extends Service implements StateObserver, MessageHandler, SensorEventListener,
+        ConnectivityMonitor.Listener, Constants {
     private static final String TAG = SessionService.class.getName();
     private static final int NOTIFICATION_ID = 0;
 
@@ -80,6 +82,7 @@ public class SessionService extends Service implements StateObserver, MessageHan
     // client components
     private LocationHandler locationHandler;
     private SensorHandler sensorHandler;
+    private ConnectivityMonitor connectivityMonitor;
 
     @Override
     public void onCreate() {
@@ -149,6 +152,9 @@ public class SessionService extends Service implements StateObserver, MessageHan
         // create a sensor handler object
         sensorHandler = new SensorHandler(this, performanceAdapter);
 
+        // create a connectivity monitor object
+        connectivityMonitor = new ConnectivityMonitor(this, this);
+
         // show notification
         showNotification(true);
     }
@@ -174,6 +180,10 @@ public class SessionService extends Service implements StateObserver, MessageHan
         if (sensorHandler != null)
             sensorHandler.cleanupSensors();
 
+        // stop watching for network changes
+        if (connectivityMonitor != null)
+            connectivityMonitor.stop();
+
         // disconnect from the database
         if (databaseHandler != null)
             databaseHandler.close();
@@ -261,6 +271,7 @@ public class SessionService extends Service implements StateObserver, MessageHan
     public void onOpen() {
         locationHandler.initLocationUpdates();
         sensorHandler.initSensors(); // start forwarding sensor data
+        connectivityMonitor.start(); // start watching for network changes
     }
 
     // Google AppEngine message handler method
@@ -311,9 +322,9 @@ public class SessionService extends Service implements StateObserver, MessageHan
                 NotificationHandler.inspect(data, SessionService.this, getConnectionID());
                 break;
             case PING:
-                long endDate = System.currentTimeMillis(); // immediately get end date
+                long receivedNanos = System.nanoTime(); // immediately get receive time
                 if (data.hasPingResponse())
-                    performanceAdapter.setPing(data.getPingResponse().getStartDate(), endDate);
+                    performanceAdapter.setPing(data.getPingResponse(), receivedNanos);
                 break;
             case APPS:
                 consumed = false; // pass this message on to the activity message handler
@@ -330,6 +341,14 @@ public class SessionService extends Service implements StateObserver, MessageHan
             binder.sendMessage(request);
     }
 
+    // ConnectivityMonitor.Listener interface method
+    // move the connection to the new network
+    @Override
+    public void onNetworkChanged(String network) {
+        if (binder != null && getState() == STATE.RUNNING)
+            binder.onNetworkChanged();
+    }
+
     // Bridge the SensorEventListener callbacks to the SensorHandler
     @Override
     public void onAccuracyChanged(Sensor sensor, int accuracy) {
@@ -0,0 +1,179 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.appspot.apprtc;
+
+import junit.framework.TestCase;
+
+import org.webrtc.VideoRenderer.I420Frame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Unit tests for FramePool.  These only need the WebRTC jar (I420Frame
+ * allocates its own buffers), so they run on a desktop JVM as well as on a
+ * device.  Resolution changes are simulated by taking frames of new
+ * dimensions, and idle time by passing a future time to maybeSweep().
+ */
+public class FramePoolTest extends TestCase {
+  private FramePool pool;
+
+  @Override
+  protected void setUp() {
+    pool = new FramePool();
+  }
+
+  public void testReusesReturnedFrame() {
+    I420Frame source = frame(640, 480);
+    I420Frame first = pool.takeFrame(source);
+    pool.returnFrame(first);
+    assertEquals(frameBytes(640, 480), pool.getRetainedBytes());
+
+    assertSame(first, pool.takeFrame(source));
+    assertEquals(1, pool.getHits());
+    assertEquals(1, pool.getMisses());
+    assertEquals(0, pool.getRetainedBytes());
+  }
+
+  public void testCapsFramesPerBucket() {
+    I420Frame source = frame(640, 480);
+    List<I420Frame> taken = new ArrayList<I420Frame>();
+    for (int i = 0; i < FramePool.MAX_FRAMES_PER_BUCKET + 2; ++i) {
+      taken.add(pool.takeFrame(source));
+    }
+    for (I420Frame frame : taken) {
+      pool.returnFrame(frame);
+    }
+    assertEquals(2, pool.getDiscarded());
+    assertEquals(FramePool.MAX_FRAMES_PER_BUCKET * frameBytes(640, 480),
+        pool.getRetainedBytes());
+  }
+
+  public void testPaddedStridesAreNotMixed() {
+    I420Frame padded = new I420Frame(
+        640, 480, new int[] { 704, 352, 352 }, null);
+    pool.returnFrame(pool.takeFrame(padded));
+    I420Frame unpadded = pool.takeFrame(frame(640, 480));
+    assertEquals(640, unpadded.yuvStrides[0]);
+    assertEquals(0, pool.getHits());
+    assertEquals(2, pool.getBucketCount());
+  }
+
+  public void testRotationEvictsLeastRecentlyUsedBucket() {
+    // Portrait, then landscape, then a lower quality after adaptation.
+    pool.returnFrame(pool.takeFrame(frame(480, 640)));
+    pool.returnFrame(pool.takeFrame(frame(640, 480)));
+    I420Frame lowQuality = pool.takeFrame(frame(320, 240));
+
+    assertEquals(FramePool.MAX_BUCKETS, pool.getBucketCount());
+    assertEquals(1, pool.getEvictions());
+    // Only the landscape frame is left; the portrait one went with its bucket.
+    assertEquals(frameBytes(640, 480), pool.getRetainedBytes());
+
+    // A frame of the evicted resolution that comes back late is dropped.
+    pool.returnFrame(frame(480, 640));
+    assertEquals(1, pool.getDiscarded());
+    assertEquals(frameBytes(640, 480), pool.getRetainedBytes());
+
+    pool.returnFrame(lowQuality);
+    assertEquals(frameBytes(640, 480) + frameBytes(320, 240),
+        pool.getRetainedBytes());
+  }
+
+  public void testIdleBucketsAreSwept() {
+    pool.returnFrame(pool.takeFrame(frame(640, 480)));
+    pool.returnFrame(pool.takeFrame(frame(480, 640)));
+
+    // Too soon: nothing has been idle long enough.
+    pool.maybeSweep(System.nanoTime() + FramePool.IDLE_EVICT_NANOS / 2);
+    assertEquals(2, pool.getBucketCount());
+
+    pool.maybeSweep(System.nanoTime() + 2 * FramePool.IDLE_EVICT_NANOS);
+    assertEquals(0, pool.getBucketCount());
+    assertEquals(2, pool.getEvictions());
+    assertEquals(0, pool.getRetainedBytes());
+  }
+
+  public void testConcurrentTakeAndReturnDuringResolutionChanges()
+      throws InterruptedException {
+    final int[][] resolutions = {
+        { 640, 480 }, { 480, 640 }, { 320, 240 }, { 240, 320 } };
+    final int takesPerThread = 2000;
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    final AtomicLong takes = new AtomicLong();
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; ++t) {
+      final int offset = t;
+      threads[t] = new Thread() {
+        public void run() {
+          try {
+            for (int i = 0; i < takesPerThread; ++i) {
+              // Change resolution every 100 frames, like a rotation.
+              int[] size = resolutions[(i / 100 + offset) % resolutions.length];
+              I420Frame frame = pool.takeFrame(frame(size[0], size[1]));
+              takes.incrementAndGet();
+              assertEquals(size[0], frame.width);
+              assertEquals(size[1], frame.height);
+              pool.returnFrame(frame);
+            }
+          } catch (Throwable e) {
+            failure.set(e);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (failure.get() != null) {
+      fail(failure.get().toString());
+    }
+
+    assertEquals(takes.get(), pool.getHits() + pool.getMisses());
+    assertTrue(pool.getBucketCount() <= FramePool.MAX_BUCKETS);
+    long maxRetained = FramePool.MAX_BUCKETS *
+        FramePool.MAX_FRAMES_PER_BUCKET * frameBytes(640, 480);
+    assertTrue(pool.toString(), pool.getRetainedBytes() <= maxRetained);
+
+    // Once everything is evicted, the byte count must come back to zero.
+    pool.maybeSweep(System.nanoTime() + 2 * FramePool.IDLE_EVICT_NANOS);
+    assertEquals(0, pool.getBucketCount());
+    assertEquals(0, pool.getRetainedBytes());
+  }
+
+  private static I420Frame frame(int width, int height) {
+    return new I420Frame(
+        width, height, new int[] { width, width / 2, width / 2 }, null);
+  }
+
+  private static long frameBytes(int width, int height) {
+    return (long) width * height + 2L * (width / 2) * (height / 2);
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ Copyright 2013 The MITRE Corporation, All Rights Reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this work except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.mitre.svmp.apprtc;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Joe Portner
+ * Drives the QualityController with simulated network traces, one stats sample per second, and checks how the bitrate
+ * cap follows the network
+ * QualityController doesn't use any Android or WebRTC APIs, so this runs on a desktop JVM as well as on a device
+ */
+public class QualityControllerTest extends TestCase {
+    private static final long INTERVAL = 1000; // ms between stats samples
+
+    // a clean network: no loss, a steady RTT, every received frame is rendered
+    private static final double[] CLEAN = {0.0, 50, 30, 30};
+    private static final double[] LOSSY = {0.10, 50, 30, 30};
+    private static final double[] BUFFERING = {0.0, 400, 30, 30}; // RTT inflated by queuing
+    private static final double[] SLOW_RENDER = {0.0, 50, 30, 10};
+    private static final double[] UNKNOWN = {-1, -1, -1, -1};
+
+    private QualityController controller;
+    private List<long[]> changes; // {time, bitrate} of each change reported to the listener
+    private long now;
+
+    @Override
+    protected void setUp() {
+        changes = new ArrayList<long[]>();
+        controller = new QualityController(new QualityController.Listener() {
+            @Override
+            public void onBitrateCapChanged(int bitrate) {
+                changes.add(new long[]{now, bitrate});
+            }
+        });
+        now = 0;
+    }
+
+    public void testCleanNetworkIsNotCapped() {
+        run(CLEAN, 300);
+        assertEquals(0, controller.getBitrateCap());
+        assertTrue(changes.isEmpty());
+    }
+
+    public void testUnknownValuesDoNotChangeTheCap() {
+        run(CLEAN, 10);
+        run(UNKNOWN, 60);
+        assertEquals(0, controller.getBitrateCap());
+        assertTrue(changes.isEmpty());
+    }
+
+    public void testSingleLossySampleIsIgnored() {
+        run(CLEAN, 10);
+        run(LOSSY, 1);
+        run(CLEAN, 10);
+        assertEquals(0, controller.getBitrateCap());
+    }
+
+    public void testLossStepsDownUntilItClears() {
+        run(CLEAN, 10);
+        run(LOSSY, 30);
+        // steps down every few seconds while the loss lasts, until the lowest level
+        int lowest = QualityController.BITRATE_LEVELS[QualityController.BITRATE_LEVELS.length - 1];
+        assertEquals(lowest, controller.getBitrateCap());
+        assertEquals(QualityController.BITRATE_LEVELS.length - 1, changes.size());
+        for (int i = 1; i < changes.size(); i++)
+            assertTrue("steps down too quickly", changes.get(i)[0] - changes.get(i - 1)[0] >= 4000);
+    }
+
+    public void testRecoversSlowlyAfterCongestion() {
+        run(CLEAN, 10);
+        run(LOSSY, 6);
+        int capped = controller.getBitrateCap();
+        assertTrue(capped > 0);
+
+        // doesn't step up right away...
+        run(CLEAN, 10);
+        assertEquals(capped, controller.getBitrateCap());
+        // ...but gets back to no cap once the network stays clean
+        run(CLEAN, 300);
+        assertEquals(0, controller.getBitrateCap());
+        long[] last = changes.get(changes.size() - 1);
+        assertEquals(0, last[1]);
+    }
+
+    public void testInflatedRttIsCongestion() {
+        run(CLEAN, 10);
+        run(BUFFERING, 5);
+        assertTrue(controller.getBitrateCap() > 0);
+    }
+
+    public void testSlowRenderingIsCongestion() {
+        run(CLEAN, 10);
+        run(SLOW_RENDER, 5);
+        assertTrue(controller.getBitrateCap() > 0);
+    }
+
+    public void testFailedStepUpWaitsLongerBeforeTheNextOne() {
+        run(CLEAN, 10);
+        run(LOSSY, 6);
+        int capped = controller.getBitrateCap();
+
+        // recover until the first step up
+        long firstWait = runUntilChange(CLEAN, 300);
+        assertTrue(controller.getBitrateCap() > capped || controller.getBitrateCap() == 0); // a higher cap, or none
+
+        // the higher bitrate congests the network again right away, so it's stepped back down
+        run(LOSSY, 4);
+        assertEquals(capped, controller.getBitrateCap());
+
+        // the next step up has to wait longer than the first one did
+        long secondWait = runUntilChange(CLEAN, 300);
+        assertTrue("second wait " + secondWait + " should be longer than " + firstWait, secondWait > firstWait);
+    }
+
+    // feeds the same sample for the given number of seconds
+    private void run(double[] sample, int seconds) {
+        for (int i = 0; i < seconds; i++)
+            update(sample);
+    }
+
+    // feeds the same sample until the cap changes, and returns how long that took in ms
+    private long runUntilChange(double[] sample, int maxSeconds) {
+        long start = now;
+        int count = changes.size();
+        for (int i = 0; i < maxSeconds && changes.size() == count; i++)
+            update(sample);
+        assertTrue("cap didn't change", changes.size() > count);
+        return now - start;
+    }
+
+    private void update(double[] sample) {
+        now += INTERVAL;
+        controller.update(now, sample[0], sample[1], sample[2], sample[3]);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ Copyright 2013 The MITRE Corporation, All Rights Reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this work except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.mitre.svmp.apprtc;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Joe Portner
+ * Checks SdpPolicy's rewriting of a typical offer and answer
+ * Each test sets the video rule, so the result doesn't depend on the device's hardware codecs
+ */
+public class SdpPolicyTest extends TestCase {
+    private static final String OFFER = lines(
+            "v=0",
+            "o=- 123456 2 IN IP4 127.0.0.1",
+            "s=-",
+            "t=0 0",
+            "a=group:BUNDLE audio video",
+            "m=audio 1 RTP/SAVPF 111 103 104 0 126",
+            "c=IN IP4 0.0.0.0",
+            "a=mid:audio",
+            "a=rtpmap:111 opus/48000/2",
+            "a=fmtp:111 minptime=10",
+            "a=rtpmap:103 ISAC/16000",
+            "a=rtpmap:104 ISAC/32000",
+            "a=rtpmap:0 PCMU/8000",
+            "a=rtpmap:126 telephone-event/8000",
+            "m=video 1 RTP/SAVPF 100 120 116 117",
+            "c=IN IP4 0.0.0.0",
+            "a=mid:video",
+            "a=rtpmap:100 VP8/90000",
+            "a=rtpmap:120 H264/90000",
+            "a=fmtp:120 profile-level-id=42e01f",
+            "a=rtpmap:116 red/90000",
+            "a=rtpmap:117 ulpfec/90000");
+
+    public void testPrefersVideoCodecs() {
+        String sdp = new SdpPolicy("video=H264,VP8").applyLocal(OFFER, 0);
+        assertTrue(sdp, sdp.contains("m=video 1 RTP/SAVPF 120 100 116 117\r\n"));
+    }
+
+    public void testUnknownCodecLeavesOrder() {
+        String sdp = new SdpPolicy("video=VP9").applyLocal(OFFER, 0);
+        assertTrue(sdp, sdp.contains("m=video 1 RTP/SAVPF 100 120 116 117\r\n"));
+    }
+
+    public void testPrefersIsac16000ByDefault() {
+        String sdp = new SdpPolicy("video=VP8").applyLocal(OFFER, 0);
+        assertTrue(sdp, sdp.contains("m=audio 1 RTP/SAVPF 103 111 104 0 126\r\n"));
+    }
+
+    public void testAudioCodecWithClockRate() {
+        String sdp = new SdpPolicy("video=VP8;audio=ISAC/32000,opus").applyLocal(OFFER, 0);
+        assertTrue(sdp, sdp.contains("m=audio 1 RTP/SAVPF 104 111 103 0 126\r\n"));
+    }
+
+    public void testAudioOffRemovesAudioSection() {
+        SdpPolicy policy = new SdpPolicy("video=VP8;audio=off");
+        assertFalse(policy.isAudioEnabled());
+        String sdp = policy.applyLocal(OFFER, 0);
+        assertFalse(sdp, sdp.contains("m=audio"));
+        assertFalse(sdp, sdp.contains("opus"));
+        assertTrue(sdp, sdp.contains("a=group:BUNDLE video\r\n"));
+        assertTrue(sdp, sdp.contains("m=video"));
+    }
+
+    public void testBitrateLimits() {
+        String sdp = new SdpPolicy("video=VP8;maxBitrate=1500;minBitrate=300;startBitrate=800").applyLocal(OFFER, 0);
+        String params = ";x-google-max-bitrate=1500;x-google-min-bitrate=300;x-google-start-bitrate=800";
+        // b=AS goes after the video section's c= line
+        assertTrue(sdp, sdp.contains("m=video 1 RTP/SAVPF 100 120 116 117\r\nc=IN IP4 0.0.0.0\r\nb=AS:1500\r\n"));
+        // codecs with an fmtp line get the parameters appended; others get a new fmtp line after their rtpmap
+        assertTrue(sdp, sdp.contains("a=fmtp:120 profile-level-id=42e01f" + params + "\r\n"));
+        assertTrue(sdp, sdp.contains("a=rtpmap:100 VP8/90000\r\na=fmtp:100 " + params.substring(1) + "\r\n"));
+        // red and ulpfec aren't codecs of their own
+        assertFalse(sdp, sdp.contains("a=fmtp:116"));
+        assertFalse(sdp, sdp.contains("a=fmtp:117"));
+        // audio is left alone
+        assertEquals(1, count(sdp, "b=AS:"));
+    }
+
+    public void testBitrateCapLowerThanMax() {
+        SdpPolicy policy = new SdpPolicy("video=VP8;maxBitrate=1500");
+        assertTrue(policy.applyLocal(OFFER, 400).contains("b=AS:400\r\n"));
+        assertTrue(policy.applyLocal(OFFER, 3000).contains("b=AS:1500\r\n"));
+        assertTrue(new SdpPolicy("video=VP8").applyLocal(OFFER, 400).contains("b=AS:400\r\n"));
+    }
+
+    public void testNoLimitsRemovesExistingCap() {
+        String capped = new SdpPolicy("video=VP8").applyLocal(OFFER, 400);
+        String sdp = new SdpPolicy("video=VP8").applyLocal(capped, 0);
+        assertFalse(sdp, sdp.contains("b=AS:"));
+    }
+
+    public void testApplyRemoteKeepsTheVmsBitrate() {
+        String answer = OFFER.replace("a=mid:video\r\n", "a=mid:video\r\nb=AS:2000\r\n");
+        String sdp = new SdpPolicy("video=H264;maxBitrate=500").applyRemote(answer);
+        assertTrue(sdp, sdp.contains("b=AS:2000\r\n"));
+        assertFalse(sdp, sdp.contains("x-google"));
+        assertTrue(sdp, sdp.contains("m=video 1 RTP/SAVPF 120 100 116 117\r\n"));
+    }
+
+    public void testInvalidRulesAreIgnored() {
+        String sdp = new SdpPolicy("video=H264; maxBitrate=fast ;frameRate=30;;nonsense").applyLocal(OFFER, 0);
+        assertTrue(sdp, sdp.contains("m=video 1 RTP/SAVPF 120 100 116 117\r\n"));
+        assertFalse(sdp, sdp.contains("b=AS:"));
+    }
+
+    public void testImageAttr() {
+        SdpPolicy policy = new SdpPolicy("video=VP8");
+        policy.setReceiveResolution(1080, 1920);
+        String sdp = policy.applyLocal(OFFER, 0);
+        assertTrue(sdp, sdp.contains("a=rtpmap:100 VP8/90000\r\na=imageattr:100 recv [x=1080,y=1920]\r\n"));
+        assertTrue(sdp, sdp.contains("a=imageattr:120 recv [x=1080,y=1920]\r\n"));
+        assertFalse(sdp, sdp.contains("a=imageattr:116"));
+        assertEquals(2, count(sdp, "a=imageattr:"));
+        // applying it again replaces the lines instead of adding more
+        assertEquals(2, count(policy.applyLocal(sdp, 0), "a=imageattr:"));
+    }
+
+    public void testOtherLinesAreKept() {
+        String sdp = new SdpPolicy("video=VP8").applyLocal(OFFER, 0);
+        assertEquals(OFFER.length(), sdp.length());
+        assertTrue(sdp.startsWith("v=0\r\no=- 123456 2 IN IP4 127.0.0.1\r\ns=-\r\nt=0 0\r\n"));
+    }
+
+    private static String lines(String... lines) {
+        StringBuilder value = new StringBuilder();
+        for (String line : lines)
+            value.append(line).append("\r\n");
+        return value.toString();
+    }
+
+    private static int count(String value, String part) {
+        int count = 0;
+        for (int index = value.indexOf(part); index >= 0; index = value.indexOf(part, index + 1))
+            count++;
+        return count;
+    }
+}
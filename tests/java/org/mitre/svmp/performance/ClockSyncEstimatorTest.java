@@ -0,0 +1,121 @@
+/*
+ Copyright 2013 The MITRE Corporation, All Rights Reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this work except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.mitre.svmp.performance;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Joe Portner
+ * Checks ClockSyncEstimator against ping exchanges with a known clock offset and known one-way delays
+ * The server's clock runs OFFSET ms ahead of the client's in every test
+ */
+public class ClockSyncEstimatorTest extends TestCase {
+    private static final double OFFSET = 100;
+    private static final double DELTA = 0.001;
+
+    private ClockSyncEstimator estimator;
+    private double clientTime;
+
+    @Override
+    protected void setUp() throws Exception {
+        estimator = new ClockSyncEstimator();
+        clientTime = 1000;
+    }
+
+    public void testNoEstimateBeforeAnySample() {
+        assertFalse(estimator.hasEstimate());
+        assertTrue(Double.isNaN(estimator.getOffset()));
+        assertTrue(Double.isNaN(estimator.getUplinkDelay()));
+        assertTrue(Double.isNaN(estimator.getDownlinkDelay()));
+    }
+
+    public void testSymmetricSampleGivesExactOffset() {
+        ping(20, 20);
+
+        assertTrue(estimator.hasEstimate());
+        assertEquals(OFFSET, estimator.getOffset(), DELTA);
+        assertEquals(20, estimator.getUplinkDelay(), DELTA);
+        assertEquals(20, estimator.getDownlinkDelay(), DELTA);
+    }
+
+    public void testAsymmetricDelaysAgainstKnownOffset() {
+        ping(5, 5); // establishes the offset
+        ping(10, 30);
+
+        assertEquals(OFFSET, estimator.getOffset(), DELTA);
+        assertEquals(10, estimator.getUplinkDelay(), DELTA);
+        assertEquals(30, estimator.getDownlinkDelay(), DELTA);
+
+        ping(40, 8); // queuing in the other direction
+        assertEquals(OFFSET, estimator.getOffset(), DELTA);
+        assertEquals(40, estimator.getUplinkDelay(), DELTA);
+        assertEquals(8, estimator.getDownlinkDelay(), DELTA);
+    }
+
+    public void testWindowKeepsMinimumDelayOffset() {
+        ping(5, 5);
+        // a later sample queued on the downlink: its own offset is off by half the asymmetry
+        ping(5, 205);
+
+        assertEquals(OFFSET, estimator.getOffset(), DELTA);
+        assertEquals(5, estimator.getUplinkDelay(), DELTA);
+        assertEquals(205, estimator.getDownlinkDelay(), DELTA);
+    }
+
+    public void testMinimumDelaySampleLeavesWindow() {
+        ping(5, 5);
+        // fill the window with samples that are all queued the same way, the first sample falls out
+        for (int i = 0; i < 8; i++)
+            ping(5, 25);
+
+        // now the best sample is a queued one, so the asymmetry is split between the two directions
+        assertEquals(OFFSET - 10, estimator.getOffset(), DELTA);
+        assertEquals(15, estimator.getUplinkDelay(), DELTA);
+        assertEquals(15, estimator.getDownlinkDelay(), DELTA);
+    }
+
+    public void testNegativeDelayIsDiscarded() {
+        ping(10, 10);
+
+        // the server claims it spent longer handling the ping than the whole round trip took
+        double t0 = clientTime;
+        double t1 = t0 + OFFSET + 10;
+        double t2 = t1 + 1000;
+        double t3 = t0 + 50;
+        estimator.addSample(t0, t1, t2, t3);
+
+        assertEquals(OFFSET, estimator.getOffset(), DELTA);
+        assertEquals(10, estimator.getUplinkDelay(), DELTA);
+        assertEquals(10, estimator.getDownlinkDelay(), DELTA);
+    }
+
+    public void testNegativeDelayAloneGivesNoEstimate() {
+        estimator.addSample(1000, 1100, 1200, 1050);
+
+        assertFalse(estimator.hasEstimate());
+        assertTrue(Double.isNaN(estimator.getOffset()));
+    }
+
+    // simulates a ping with the given one-way delays and 2 ms spent on the server
+    private void ping(double uplink, double downlink) {
+        double t0 = clientTime;
+        double t1 = t0 + uplink + OFFSET;
+        double t2 = t1 + 2;
+        double t3 = t2 - OFFSET + downlink;
+        estimator.addSample(t0, t1, t2, t3);
+        clientTime += 1000;
+    }
+}